@@ -41,7 +41,9 @@ import android.widget.Toast;
 
 import androidx.fragment.app.Fragment;
 
+import com.yulay.imagefetcher.DisplayOptions;
 import com.yulay.imagefetcher.OneImageFetcher;
+import com.yulay.imagefetcher.ScrollPrefetcher;
 
 import java.util.List;
 
@@ -59,6 +61,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     private int mImageThumbSize;
     private int mImageThumbSpacing;
     private ImageAdapter mAdapter;
+    private ScrollPrefetcher mScrollPrefetcher;
 
     /**
      * Empty constructor as per the Fragment documentation
@@ -95,25 +98,22 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         final GridView mGridView = (GridView) v.findViewById(R.id.gridView);
         mGridView.setAdapter(mAdapter);
         mGridView.setOnItemClickListener(this);
-        mGridView.setOnScrollListener(new AbsListView.OnScrollListener() {
+        // Load the thumbnails about to scroll into view ahead of time, at the size the grid
+        // shows them. Downloads pause during very fast flings, cached thumbnails keep loading.
+        final OneImageFetcher fetcher = OneImageFetcher.with(getActivity());
+        mScrollPrefetcher = new ScrollPrefetcher.Builder(fetcher, new ScrollPrefetcher.DataResolver() {
             @Override
-            public void onScrollStateChanged(AbsListView absListView, int scrollState) {
-                // Pause fetcher to ensure smoother scrolling when flinging
-                if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_FLING) {
-                    // Before Honeycomb pause image loading on scroll to help with performance
-                    if (!Utils.hasHoneycomb()) {
-                        OneImageFetcher.with(getActivity()).setPauseWork(true);
-                    }
-                } else {
-                    OneImageFetcher.with(getActivity()).setPauseWork(false);
-                }
+            public Object getData(int position) {
+                return mAdapter.getItem(position);
             }
-
-            @Override
-            public void onScroll(AbsListView absListView, int firstVisibleItem,
-                    int visibleItemCount, int totalItemCount) {
-            }
-        });
+        })
+                .displayOptions(new DisplayOptions.Builder()
+                        .copyFrom(fetcher.getDefaultDisplayOptions())
+                        .size(mImageThumbSize, mImageThumbSize)
+                        .fadeIn(false)
+                        .build())
+                .build();
+        mGridView.setOnScrollListener(mScrollPrefetcher);
 
         // This listener is used to get the final width of the GridView and then calculate the
         // number of columns and the width of each column. The width of each column is variable
@@ -160,7 +160,9 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     @Override
     public void onPause() {
         super.onPause();
-        OneImageFetcher.with(getActivity()).setPauseWork(false);
+        if (mScrollPrefetcher != null) {
+            mScrollPrefetcher.release();
+        }
         OneImageFetcher.with(getActivity()).setExitTasksEarly(true);
         OneImageFetcher.with(getActivity()).flushCache();
     }
@@ -0,0 +1,170 @@
+package com.yulay.imagefetcher;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
+import android.widget.ImageView;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The bitmaps currently shown by views, by cache key. A bitmap stays here for as long as a view
+ * shows it, even after the memory cache has evicted it, so it is never decoded a second time
+ * while it is on screen. Bitmaps are only weakly referenced.
+ * <p>
+ * Must only be used from the main thread.
+ */
+public final class ActiveResources {
+    private final Map<String, WeakReference<Bitmap>> bitmaps = new HashMap<String, WeakReference<Bitmap>>();
+    /** The cache key of the bitmap each view was last given. */
+    private final Map<ImageView, String> views = new WeakHashMap<ImageView, String>();
+
+    private int hitCount;
+    private int missCount;
+    private int savedDecodeCount;
+
+    ActiveResources() {}
+
+    /** Returns the bitmap a view shows for the key, or null. */
+    Bitmap get(String key) {
+        final WeakReference<Bitmap> reference = bitmaps.get(key);
+        final Bitmap bitmap = reference != null ? reference.get() : null;
+        if (bitmap == null || bitmap.isRecycled()) {
+            if (reference != null) {
+                bitmaps.remove(key);
+            }
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return bitmap;
+    }
+
+    /** Records that a hit was for a bitmap the memory cache no longer held. */
+    void recordSavedDecode() {
+        savedDecodeCount++;
+    }
+
+    /** Records that a view now shows the bitmap loaded for the key. */
+    void activate(ImageView imageView, String key, Bitmap bitmap) {
+        release(imageView);
+        views.put(imageView, key);
+        bitmaps.put(key, new WeakReference<Bitmap>(bitmap));
+    }
+
+    /** Records that a view no longer shows the bitmap it was last given. */
+    void release(ImageView imageView) {
+        final String key = views.remove(imageView);
+        if (key != null && !views.containsValue(key)) {
+            bitmaps.remove(key);
+        }
+    }
+
+    /** Forgets a bitmap that is about to be reused for another image. */
+    void deactivate(Bitmap bitmap) {
+        final Iterator<WeakReference<Bitmap>> references = bitmaps.values().iterator();
+        while (references.hasNext()) {
+            if (references.next().get() == bitmap) {
+                references.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns true if a view still shows the bitmap. Views found showing something else since
+     * are released on the way.
+     */
+    boolean isDisplayed(Bitmap bitmap) {
+        boolean displayed = false;
+        List<ImageView> released = null;
+        for (Map.Entry<ImageView, String> entry : views.entrySet()) {
+            final ImageView imageView = entry.getKey();
+            final WeakReference<Bitmap> reference = bitmaps.get(entry.getValue());
+            final Bitmap shown = reference != null ? reference.get() : null;
+            if (imageView == null) {
+                continue;
+            }
+            if (shown == null || !drawableShows(imageView.getDrawable(), shown)) {
+                // The view has moved on to another image since
+                if (released == null) {
+                    released = new ArrayList<ImageView>();
+                }
+                released.add(imageView);
+            } else if (shown == bitmap) {
+                displayed = true;
+            }
+        }
+        if (released != null) {
+            for (int i = 0, count = released.size(); i < count; i++) {
+                release(released.get(i));
+            }
+        }
+        return displayed;
+    }
+
+    /** Returns the views still showing the bitmap loaded for the key. */
+    List<ImageView> viewsShowing(String key) {
+        final List<ImageView> showing = new ArrayList<ImageView>();
+        final WeakReference<Bitmap> reference = bitmaps.get(key);
+        final Bitmap shown = reference != null ? reference.get() : null;
+        if (shown == null) {
+            return showing;
+        }
+        for (Map.Entry<ImageView, String> entry : views.entrySet()) {
+            final ImageView imageView = entry.getKey();
+            if (imageView != null && key.equals(entry.getValue())
+                    && drawableShows(imageView.getDrawable(), shown)) {
+                showing.add(imageView);
+            }
+        }
+        return showing;
+    }
+
+    private static boolean drawableShows(Drawable drawable, Bitmap bitmap) {
+        if (drawable instanceof BitmapDrawable) {
+            return ((BitmapDrawable) drawable).getBitmap() == bitmap;
+        }
+        if (drawable instanceof FadeInDrawable) {
+            return ((FadeInDrawable) drawable).getBitmap() == bitmap;
+        }
+        if (drawable instanceof LayerDrawable) {
+            final LayerDrawable layers = (LayerDrawable) drawable;
+            for (int i = 0, count = layers.getNumberOfLayers(); i < count; i++) {
+                if (drawableShows(layers.getDrawable(i), bitmap)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the number of lookups served by a bitmap on screen. */
+    public int hitCount() {
+        return hitCount;
+    }
+
+    public int missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of hits for bitmaps the memory cache had already evicted, that is the
+     * number of decodes saved.
+     */
+    public int savedDecodeCount() {
+        return savedDecodeCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ActiveResources[size=%d,hits=%d,misses=%d,savedDecodes=%d]",
+                bitmaps.size(), hitCount, missCount, savedDecodeCount);
+    }
+}
@@ -0,0 +1,241 @@
+package com.yulay.imagefetcher;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build.VERSION_CODES;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps bitmaps that are no longer displayed so that they can be decoded into through
+ * {@link BitmapFactory.Options#inBitmap} instead of allocating new ones. The pool holds at most
+ * a given number of bytes and drops the oldest bitmaps first.
+ * <p>
+ * Reuse follows the platform rules: before Android 4.4 (KitKat) a bitmap can only be reused for
+ * a decode of exactly the same size and config without sampling, from KitKat onward any bitmap
+ * with at least as many bytes allocated will do.
+ */
+public class BitmapPool {
+    /** A bitmap more than this many times larger than needed is not handed out. */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final int maxSize;
+    private int size;
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    /** Pooled bitmaps, oldest first. */
+    private final LinkedHashSet<Bitmap> bitmaps = new LinkedHashSet<Bitmap>();
+    /** Pooled bitmaps by allocated byte count, used from KitKat onward. */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> bitmapsBySize =
+            new TreeMap<Integer, ArrayDeque<Bitmap>>();
+    /** Pooled bitmaps by size and config, used before KitKat. */
+    private final Map<String, ArrayDeque<Bitmap>> bitmapsByShape =
+            new HashMap<String, ArrayDeque<Bitmap>>();
+
+    /**
+     * @param maxSize the maximum number of bytes of bitmaps kept in the pool
+     */
+    public BitmapPool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be a positive number");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Offers a bitmap to the pool. The caller must not use the bitmap afterwards, whether or not
+     * it was accepted.
+     *
+     * @return true if the bitmap was pooled, false if it cannot be reused
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || !Utils.hasHoneycomb()
+                || bitmaps.contains(bitmap)) {
+            return false;
+        }
+        final int bitmapSize = getAllocationSize(bitmap);
+        if (bitmapSize > maxSize) {
+            return false;
+        }
+
+        bitmaps.add(bitmap);
+        if (Utils.hasKitKat()) {
+            addToBucket(bitmapsBySize, bitmapSize, bitmap);
+        } else {
+            addToBucket(bitmapsByShape, getShape(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmap);
+        }
+        size += bitmapSize;
+        putCount++;
+        trimToSize(maxSize);
+        return true;
+    }
+
+    /**
+     * Takes a bitmap out of the pool that an image of the given size and config can be decoded
+     * into, or returns null if there is none.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!Utils.hasHoneycomb() || width <= 0 || height <= 0) {
+            return null;
+        }
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+
+        Bitmap bitmap = null;
+        if (Utils.hasKitKat()) {
+            final int needed = width * height * getBytesPerPixel(config);
+            final Map.Entry<Integer, ArrayDeque<Bitmap>> entry = bitmapsBySize.ceilingEntry(needed);
+            if (entry != null && entry.getKey() <= (long) needed * MAX_SIZE_MULTIPLE) {
+                bitmap = removeFromBucket(bitmapsBySize, entry.getKey());
+            }
+        } else {
+            bitmap = removeFromBucket(bitmapsByShape, getShape(width, height, config));
+        }
+
+        if (bitmap == null) {
+            missCount++;
+            return null;
+        }
+        bitmaps.remove(bitmap);
+        size -= getAllocationSize(bitmap);
+        hitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Takes a bitmap out of the pool for the decode described by {@code options}, whose
+     * {@code outWidth}, {@code outHeight} and {@code inSampleSize} must already be set.
+     */
+    Bitmap getForDecode(BitmapFactory.Options options) {
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        if (!Utils.hasKitKat() && sampleSize > 1) {
+            // Sampled decodes can't reuse bitmaps before KitKat
+            synchronized (this) {
+                missCount++;
+            }
+            return null;
+        }
+        // Rounded up, an overestimate only costs a slightly larger bitmap
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        return get(width, height, options.inPreferredConfig);
+    }
+
+    /** Drops every pooled bitmap. */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(int maxSize) {
+        final Iterator<Bitmap> oldest = bitmaps.iterator();
+        while (size > maxSize && oldest.hasNext()) {
+            final Bitmap bitmap = oldest.next();
+            oldest.remove();
+            final int bitmapSize = getAllocationSize(bitmap);
+            if (Utils.hasKitKat()) {
+                removeFromBucket(bitmapsBySize, bitmapSize, bitmap);
+            } else {
+                removeFromBucket(bitmapsByShape, getShape(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmap);
+            }
+            size -= bitmapSize;
+            evictionCount++;
+        }
+    }
+
+    private static <K> void addToBucket(Map<K, ArrayDeque<Bitmap>> buckets, K key, Bitmap bitmap) {
+        ArrayDeque<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Bitmap>();
+            buckets.put(key, bucket);
+        }
+        bucket.offerLast(bitmap);
+    }
+
+    /** Removes the most recently pooled bitmap of a bucket. */
+    private static <K> Bitmap removeFromBucket(Map<K, ArrayDeque<Bitmap>> buckets, K key) {
+        final ArrayDeque<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+        final Bitmap bitmap = bucket.pollLast();
+        if (bucket.isEmpty()) {
+            buckets.remove(key);
+        }
+        return bitmap;
+    }
+
+    private static <K> void removeFromBucket(Map<K, ArrayDeque<Bitmap>> buckets, K key, Bitmap bitmap) {
+        final ArrayDeque<Bitmap> bucket = buckets.get(key);
+        if (bucket != null && bucket.remove(bitmap) && bucket.isEmpty()) {
+            buckets.remove(key);
+        }
+    }
+
+    private static String getShape(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + " " + config;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    @TargetApi(VERSION_CODES.KITKAT)
+    private static int getAllocationSize(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return Utils.getBitmapSize(bitmap);
+    }
+
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    /** Returns the number of bytes of bitmaps in the pool. */
+    public synchronized final int size() {
+        return size;
+    }
+
+    /** Returns the number of times {@link #get} handed out a pooled bitmap. */
+    public synchronized final int hitCount() {
+        return hitCount;
+    }
+
+    /** Returns the number of times {@link #get} found no bitmap to reuse. */
+    public synchronized final int missCount() {
+        return missCount;
+    }
+
+    /** Returns the number of bitmaps accepted by {@link #put}. */
+    public synchronized final int putCount() {
+        return putCount;
+    }
+
+    /** Returns the number of bitmaps dropped to stay within the byte budget. */
+    public synchronized final int evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized final String toString() {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format("BitmapPool[maxSize=%d,size=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, size, hitCount, missCount, hitPercent);
+    }
+}
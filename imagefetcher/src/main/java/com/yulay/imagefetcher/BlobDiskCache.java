@@ -0,0 +1,13 @@
+package com.yulay.imagefetcher;
+
+/**
+ * A {@link DiskCache} that does not keep each entry in a file of its own. {@link #get(String)}
+ * returns null for such a cache; entries are read back with {@link #getBytes(String)} instead.
+ * Blob caches keep no metadata, so the sources they hold are not revalidated once they expire.
+ */
+public interface BlobDiskCache extends DiskCache {
+    /**
+     * Returns the bytes stored for {@code data}, or null if there are none.
+     */
+    byte[] getBytes(String data);
+}
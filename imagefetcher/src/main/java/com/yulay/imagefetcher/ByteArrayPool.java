@@ -0,0 +1,35 @@
+package com.yulay.imagefetcher;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of equally sized byte arrays, so that decode buffers are not allocated again for
+ * every image that is loaded.
+ */
+final class ByteArrayPool {
+    private final int arraySize;
+    private final int maxArrays;
+    private final ArrayDeque<byte[]> arrays = new ArrayDeque<byte[]>();
+
+    ByteArrayPool(int arraySize, int maxArrays) {
+        this.arraySize = arraySize;
+        this.maxArrays = maxArrays;
+    }
+
+    int getArraySize() {
+        return arraySize;
+    }
+
+    /** Returns a pooled array, or a new one if the pool is empty. */
+    synchronized byte[] get() {
+        byte[] array = arrays.poll();
+        return array != null ? array : new byte[arraySize];
+    }
+
+    /** Returns an array to the pool. Arrays of a different size are dropped. */
+    synchronized void put(byte[] array) {
+        if (array != null && array.length == arraySize && arrays.size() < maxArrays) {
+            arrays.offer(array);
+        }
+    }
+}
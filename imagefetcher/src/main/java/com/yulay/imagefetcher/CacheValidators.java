@@ -0,0 +1,140 @@
+package com.yulay.imagefetcher;
+
+import java.util.Locale;
+
+/**
+ * The HTTP validators of a cached source: its ETag, its Last-Modified date and how long the
+ * server said it stays fresh. They are stored next to the source in the disk cache, so that once
+ * the entry expires it can be revalidated with a conditional request, which a server answers
+ * with 304 Not Modified and no body if the source has not changed.
+ */
+public final class CacheValidators {
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String VERSION = "1";
+
+    private final String etag;
+    private final String lastModified;
+    private final long expiresAt;
+
+    /**
+     * @param expiresAt the time the source stops being fresh, in milliseconds since the epoch,
+     *                  or 0 if the server did not say
+     */
+    public CacheValidators(String etag, String lastModified, long expiresAt) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expiresAt = expiresAt;
+    }
+
+    /** Reads the validators of a response received at {@code now}, or returns null if it has none. */
+    public static CacheValidators fromResponse(Transport.Response response, long now) {
+        final String etag = response.getHeader(HEADER_ETAG);
+        final String lastModified = response.getHeader(HEADER_LAST_MODIFIED);
+        final long maxAge = parseMaxAge(response.getHeader(HEADER_CACHE_CONTROL));
+        if (etag == null && lastModified == null && maxAge <= 0) {
+            return null;
+        }
+        return new CacheValidators(etag, lastModified, maxAge > 0 ? now + maxAge * 1000 : 0);
+    }
+
+    /**
+     * Returns the max-age of a Cache-Control header in seconds, 0 if the response must be
+     * revalidated every time, or -1 if the header does not say.
+     */
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        long maxAge = -1;
+        for (String directive : cacheControl.split(",")) {
+            final String trimmed = directive.trim().toLowerCase(Locale.US);
+            if (trimmed.equals("no-cache") || trimmed.equals("no-store")) {
+                return 0;
+            }
+            if (trimmed.startsWith("max-age=")) {
+                try {
+                    maxAge = Long.parseLong(trimmed.substring("max-age=".length()).replace("\"", ""));
+                } catch (NumberFormatException e) {
+                    // ignore a malformed directive
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    /**
+     * Returns the validators of a 304 response to a request made with these. The response may
+     * carry new ones; those it leaves out are kept.
+     */
+    public CacheValidators updatedBy(Transport.Response notModified, long now) {
+        final CacheValidators fresh = fromResponse(notModified, now);
+        if (fresh == null) {
+            return new CacheValidators(etag, lastModified, 0);
+        }
+        return new CacheValidators(fresh.etag != null ? fresh.etag : etag,
+                fresh.lastModified != null ? fresh.lastModified : lastModified, fresh.expiresAt);
+    }
+
+    /** Adds the headers that make a request conditional on the source having changed. */
+    public void applyTo(Transport.Request.Builder request) {
+        if (etag != null) {
+            request.header(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            request.header(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /** Returns true if a request can be made conditional with these validators. */
+    public boolean canRevalidate() {
+        return etag != null || lastModified != null;
+    }
+
+    /** Returns true if the server said the source is still fresh at {@code now}. */
+    public boolean isFresh(long now) {
+        return expiresAt > 0 && now < expiresAt;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /** Returns the validators as a few lines of text, to be stored in the disk cache. */
+    String encode() {
+        return VERSION + '\n' + (etag != null ? etag : "") + '\n'
+                + (lastModified != null ? lastModified : "") + '\n' + expiresAt + '\n';
+    }
+
+    /** Reads validators written by {@link #encode()}, or returns null if they are unreadable. */
+    static CacheValidators decode(String encoded) {
+        final String[] lines = encoded.split("\n", -1);
+        if (lines.length < 4 || !VERSION.equals(lines[0])) {
+            return null;
+        }
+        try {
+            return new CacheValidators(lines[1].length() > 0 ? lines[1] : null,
+                    lines[2].length() > 0 ? lines[2] : null, Long.parseLong(lines[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CacheValidators{etag=" + etag + ", lastModified=" + lastModified
+                + ", expiresAt=" + expiresAt + '}';
+    }
+}
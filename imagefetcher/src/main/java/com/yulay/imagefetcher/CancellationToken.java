@@ -0,0 +1,72 @@
+package com.yulay.imagefetcher;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tells the work done for one image that it is no longer wanted. Unlike interrupting a thread,
+ * cancelling a token also aborts what does not check for interrupts: listeners close the
+ * connection being read and stop the decode in progress, so the thread and the bandwidth are
+ * freed right away.
+ *
+ * <p>Listeners run on the thread that cancels, often the main thread, so they must not block.
+ * Closing a connection may write to the network and is handed off to another thread.
+ */
+public final class CancellationToken {
+    /** Aborts an operation once its token is cancelled. */
+    public interface OnCancelListener {
+        void onCancel();
+    }
+
+    private final List<OnCancelListener> listeners = new ArrayList<OnCancelListener>(2);
+    private volatile boolean cancelled;
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Throws if the token is cancelled, to stop between two steps of the work. */
+    public void throwIfCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+
+    /** Cancels the token and runs its listeners, once. */
+    public void cancel() {
+        final List<OnCancelListener> toRun;
+        synchronized (listeners) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<OnCancelListener>(listeners);
+            listeners.clear();
+        }
+        for (int i = 0, count = toRun.size(); i < count; i++) {
+            toRun.get(i).onCancel();
+        }
+    }
+
+    /**
+     * Adds a listener run when the token is cancelled. If it already is, the listener runs right
+     * away on the calling thread.
+     */
+    public void addOnCancelListener(OnCancelListener listener) {
+        synchronized (listeners) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+
+    /** Removes a listener once the operation it aborts is over. */
+    public void removeOnCancelListener(OnCancelListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+}
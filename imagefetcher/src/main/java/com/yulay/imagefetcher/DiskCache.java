@@ -3,11 +3,21 @@ package com.yulay.imagefetcher;
 import android.graphics.Bitmap;
 
 import java.io.File;
+import java.io.InputStream;
 
 public interface DiskCache {
     void open();
     File get(String data);
     void put(String data, Bitmap bitmap);
+
+    /**
+     * Stores the raw bytes read from {@code stream} without re-encoding them. The stream is read
+     * to its end but not closed.
+     *
+     * @return true if the entry was written successfully. On failure the stream may have been
+     *         partially consumed.
+     */
+    boolean put(String data, InputStream stream);
     void clear();
     void flush();
     void close();
@@ -0,0 +1,15 @@
+package com.yulay.imagefetcher;
+
+/** Designates what is written to the disk cache once an image has been fetched. */
+public enum DiskCacheMode {
+    /**
+     * Stores the original bytes exactly as they were received from the source. A disk hit is
+     * decoded again at whatever size is requested, so one entry serves every display size.
+     */
+    SOURCE,
+    /**
+     * Stores the decoded and resized bitmap, re-encoded with the disk cache's compress format.
+     * One entry is kept per requested size.
+     */
+    RESULT
+}
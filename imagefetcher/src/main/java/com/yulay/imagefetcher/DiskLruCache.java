@@ -39,14 +39,20 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  ******************************************************************************
@@ -97,10 +103,20 @@ import java.util.concurrent.TimeUnit;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ *
+ * <p>Unlike the original, this cache is safe to use from many threads without
+ * serializing them. {@link #get} takes no lock at all: entries are looked up in
+ * a concurrent map and accesses are queued, to be replayed into the LRU order
+ * and the journal by whichever thread next writes to the journal. Edits and
+ * removals lock only the stripe their key hashes to, plus the journal for the
+ * line they append. Journal lines are written to disk in batches by a
+ * background thread rather than one synchronous write each.
  */
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String JOURNAL_INDEX = "journal.index";
+    static final String JOURNAL_INDEX_TMP = "journal.index.tmp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
@@ -112,6 +128,19 @@ public final class DiskLruCache implements Closeable {
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /** Number of locks editors are spread over. */
+    private static final int STRIPE_COUNT = 32;
+    /** Pending reads that make a background drain worth scheduling. */
+    private static final int READ_DRAIN_THRESHOLD = 64;
+    /** Pending reads beyond which further reads are not recorded. */
+    private static final int MAX_PENDING_READS = 1024;
+    /** Journal records held in memory before appends wait for the disk. */
+    private static final int JOURNAL_CAPACITY = 1024;
+    /** Journal records, characters and delay that make a batch worth flushing. */
+    private static final int JOURNAL_BATCH_RECORDS = 128;
+    private static final int JOURNAL_BATCH_BYTES = IO_BUFFER_SIZE;
+    private static final long JOURNAL_BATCH_DELAY_MILLIS = 200;
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -150,26 +179,79 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Lines are written in batches by a JournalWriter, so the tail of the journal
+     * may be lost in a crash. This is safe because of the order of operations:
+     *   o A DIRTY line is queued before the entry's ".tmp" files are created, but
+     *     is not waited for. Any ".tmp" file found when the cache is opened is
+     *     left over from an unfinished edit and is deleted.
+     *   o A CLEAN line is queued only after the entry's files were written and
+     *     renamed into place, so a CLEAN line never reaches the journal ahead of
+     *     its files.
+     *   o A REMOVE line is queued after the files are deleted. If it is lost,
+     *     the entry's files no longer match its CLEAN line and the entry is
+     *     dropped when the cache is opened.
+     * flush() and close() wait until every queued line is on disk.
+     *
+     * Whenever the journal is rebuilt and when the cache is closed, a binary
+     * snapshot of the entries is written to "journal.index" (see DiskLruIndex),
+     * along with the length of the journal it covers. Opening the cache maps
+     * the snapshot and replays only the journal after that point. The snapshot
+     * answers lookups directly until its entries are loaded in the background.
+     * Its entries are checked against their files like the journal's, when
+     * loaded or first looked up, so an entry whose REMOVE line was lost is
+     * dropped then.
+     * The snapshot is deleted before the journal is rebuilt, so it never covers
+     * a journal other than its own.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File indexFile;
+    private final File indexFileTmp;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
-    private long size = 0;
-    private Writer journalWriter;
+
+    /*
+     * Locking: the cache itself guards the journal, the LRU order, size and
+     * redundantOpCount. The stripe lock of a key guards the editor, lengths
+     * and state of its entry. A stripe lock may be held while taking the cache
+     * lock, never the other way around.
+     */
+    private volatile long size = 0;
+    private volatile JournalWriter journalWriter;
+    /** All entries, for lookups without locking. */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /** The same entries in access order, guarded by the cache. */
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
+    private final Object[] stripes = new Object[STRIPE_COUNT];
+
+    /** Keys read since the last drain, replayed into the LRU order and the journal. */
+    private final ConcurrentLinkedQueue<String> pendingReads = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
      */
-    private long nextSequenceNumber = 0;
+    private final AtomicLong nextSequenceNumber = new AtomicLong();
+
+    /**
+     * The snapshot the cache was opened from, until its entries have been
+     * loaded. Keys in shadowedIndexKeys must not be taken from it anymore;
+     * the stripe lock of a key guards both.
+     */
+    private volatile DiskLruIndex index;
+    private final Set<String> shadowedIndexKeys
+            = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Object indexLoadLock = new Object();
+    /** Size of the snapshot entries replaced by the journal tail while opening. */
+    private long replayShadowedSize;
 
     /* From java.util.Arrays */
     @SuppressWarnings("unchecked")
@@ -272,11 +354,15 @@ public final class DiskLruCache implements Closeable {
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            if (journalWriter == null) {
+                return null; // closed
+            }
+            trimToSize(); // loads the index first
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
+                drainReads();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
                     redundantOpCount = 0;
@@ -291,8 +377,13 @@ public final class DiskLruCache implements Closeable {
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.indexFile = new File(directory, JOURNAL_INDEX);
+        this.indexFileTmp = new File(directory, JOURNAL_INDEX_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Object();
+        }
     }
 
     /**
@@ -318,10 +409,16 @@ public final class DiskLruCache implements Closeable {
         DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
         if (cache.journalFile.exists()) {
             try {
+                cache.index = DiskLruIndex.open(cache.indexFile, appVersion, valueCount,
+                        cache.journalFile.length());
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                cache.entries.putAll(cache.lruEntries);
+                cache.journalWriter = newJournalWriter(new BufferedWriter(
+                        new FileWriter(cache.journalFile, true), IO_BUFFER_SIZE));
+                if (cache.index != null) {
+                    cache.executorService.submit(cache.cleanupCallable);
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -338,7 +435,8 @@ public final class DiskLruCache implements Closeable {
     }
 
     private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+        FileInputStream journalIn = new FileInputStream(journalFile);
+        InputStream in = new BufferedInputStream(journalIn, IO_BUFFER_SIZE);
         try {
             String magic = readAsciiLine(in);
             String version = readAsciiLine(in);
@@ -354,6 +452,15 @@ public final class DiskLruCache implements Closeable {
                         + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
             }
 
+            if (index != null) {
+                // the snapshot stands for everything up to here
+                journalIn.getChannel().position(index.journalLength());
+                in = new BufferedInputStream(journalIn, IO_BUFFER_SIZE);
+                for (String key : index.dirtyKeys()) {
+                    readJournalLine(DIRTY + ' ' + key);
+                }
+            }
+
             while (true) {
                 try {
                     readJournalLine(readAsciiLine(in));
@@ -373,12 +480,24 @@ public final class DiskLruCache implements Closeable {
         }
 
         String key = parts[1];
+        Entry entry = lruEntries.get(key);
+        if (entry == null && index != null && shadowedIndexKeys.add(key)) {
+            // the line replaces the snapshot's entry
+            final long[] lengths = index.find(key);
+            if (lengths != null) {
+                entry = newIndexEntry(key, lengths);
+                lruEntries.put(key, entry);
+                for (long length : lengths) {
+                    replayShadowedSize += length;
+                }
+            }
+        }
+
         if (parts[0].equals(REMOVE) && parts.length == 2) {
             lruEntries.remove(key);
             return;
         }
 
-        Entry entry = lruEntries.get(key);
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
@@ -399,16 +518,23 @@ public final class DiskLruCache implements Closeable {
 
     /**
      * Computes the initial size and collects garbage as a part of opening the
-     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * cache. Dirty entries are assumed to be inconsistent and will be deleted,
+     * and so are clean entries whose files don't match the journal anymore.
      */
     private void processJournal() throws IOException {
-        deleteIfExists(journalFileTmp);
+        if (index == null) {
+            deleteTempFiles();
+        } else {
+            // the other entries are loaded later, see loadIndex()
+            size = index.size() - replayShadowedSize;
+        }
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
-            if (entry.currentEditor == null) {
+            if (entry.currentEditor == null && cleanFilesMatch(entry)) {
                 for (int t = 0; t < valueCount; t++) {
                     size += entry.lengths[t];
                 }
+                entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
             } else {
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
@@ -420,14 +546,54 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Deletes "journal.tmp" and the files of every edit that was in progress
+     * when the cache was last used, including edits whose DIRTY line never
+     * reached the journal.
+     */
+    private void deleteTempFiles() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(".tmp")) {
+                continue;
+            }
+            final int keyEnd = name.lastIndexOf('.', name.length() - ".tmp".length() - 1);
+            if (keyEnd <= 0) {
+                deleteIfExists(file);
+                continue;
+            }
+            final String key = name.substring(0, keyEnd);
+            synchronized (lockFor(key)) {
+                // the cache may be in use already, see loadIndex()
+                Entry entry = entries.get(key);
+                if (entry == null || entry.currentEditor == null) {
+                    deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /** Returns true if every clean file of the entry has its journaled length. */
+    private boolean cleanFilesMatch(Entry entry) {
+        for (int t = 0; t < valueCount; t++) {
+            File file = entry.getCleanFile(t);
+            if (file.length() != entry.lengths[t] || !file.exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Creates a new journal that omits redundant information. This replaces the
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
-        }
+        deleteIfExists(indexFile);
 
         Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
         writer.write(MAGIC);
@@ -450,7 +616,164 @@ public final class DiskLruCache implements Closeable {
 
         writer.close();
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        Writer newWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        if (journalWriter == null) {
+            journalWriter = newJournalWriter(newWriter);
+        } else {
+            journalWriter.replaceWriter(newWriter);
+        }
+        writeIndex();
+    }
+
+    /**
+     * Writes a snapshot of the entries that covers the journal as it is now.
+     * Must be called with the cache lock held, once the journal is on disk.
+     */
+    private void writeIndex() throws IOException {
+        final List<String> keys = new ArrayList<String>(lruEntries.size());
+        final List<long[]> lengths = new ArrayList<long[]>(lruEntries.size());
+        final List<String> dirtyKeys = new ArrayList<String>();
+        for (Entry entry : lruEntries.values()) {
+            if (entry.currentEditor != null) {
+                dirtyKeys.add(entry.key);
+            } else if (entry.readable) {
+                keys.add(entry.key);
+                lengths.add(entry.lengths.clone());
+            }
+        }
+        DiskLruIndex.write(indexFile, indexFileTmp, appVersion, valueCount, journalFile.length(),
+                keys.toArray(new String[keys.size()]), lengths.toArray(new long[lengths.size()][]),
+                dirtyKeys.toArray(new String[dirtyKeys.size()]));
+    }
+
+    /**
+     * Moves the entries of the snapshot the cache was opened from into the
+     * cache, as less recently used than those used since opening. Until then
+     * lookups fall back on the snapshot, and nothing is evicted.
+     */
+    private void loadIndex() throws IOException {
+        synchronized (indexLoadLock) {
+            final DiskLruIndex loading = index;
+            if (loading == null) {
+                return;
+            }
+            final List<Entry> loaded = new ArrayList<Entry>(loading.entryCount());
+            try {
+                loading.forEach(new DiskLruIndex.Visitor() {
+                    @Override
+                    public void visit(String key, long[] lengths) throws IOException {
+                        synchronized (lockFor(key)) {
+                            Entry entry;
+                            if (shadowedIndexKeys.add(key)) {
+                                entry = newIndexEntry(key, lengths);
+                                if (cleanFilesMatch(entry)) {
+                                    entries.put(key, entry);
+                                } else {
+                                    dropIndexEntry(entry);
+                                    entry = null;
+                                }
+                            } else {
+                                entry = entries.get(key); // looked up, maybe edited or removed
+                            }
+                            if (entry != null) {
+                                loaded.add(entry);
+                            }
+                        }
+                    }
+                });
+            } finally {
+                // a corrupt snapshot loses its remaining entries, and only them
+                synchronized (this) {
+                    final List<Entry> used = new ArrayList<Entry>(lruEntries.values());
+                    lruEntries.clear();
+                    for (Entry entry : loaded) {
+                        if (entries.get(entry.key) == entry) {
+                            lruEntries.put(entry.key, entry);
+                        }
+                    }
+                    for (Entry entry : used) {
+                        lruEntries.put(entry.key, entry);
+                    }
+                }
+                index = null;
+                // wait out lookups that still read the snapshot, then forget it
+                for (Object stripe : stripes) {
+                    synchronized (stripe) {
+                        // nothing to do, acquiring each lock once is enough
+                    }
+                }
+                shadowedIndexKeys.clear();
+            }
+            deleteTempFiles();
+        }
+    }
+
+    /**
+     * Returns the entry for {@code key}, taking it from the snapshot the cache
+     * was opened from if that hasn't been loaded yet.
+     */
+    private Entry lookup(String key) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry != null || index == null) {
+            return entry;
+        }
+        synchronized (lockFor(key)) {
+            entry = entries.get(key);
+            final DiskLruIndex lookupIndex = index;
+            if (entry != null || lookupIndex == null || !shadowedIndexKeys.add(key)) {
+                return entry;
+            }
+            final long[] lengths = lookupIndex.find(key);
+            if (lengths == null) {
+                return null;
+            }
+            entry = newIndexEntry(key, lengths);
+            if (!cleanFilesMatch(entry)) {
+                dropIndexEntry(entry);
+                return null;
+            }
+            entries.put(key, entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Forgets a snapshot entry whose files don't match it anymore, as opening
+     * the cache does for the journal's entries. Must be called with the stripe
+     * lock of the entry held.
+     */
+    private void dropIndexEntry(Entry entry) throws IOException {
+        long sizeDelta = 0;
+        for (int t = 0; t < valueCount; t++) {
+            try {
+                deleteIfExists(entry.getCleanFile(t));
+            } catch (IOException ignored) {
+                // unreadable as an entry either way, and not counted anymore
+            }
+            sizeDelta -= entry.lengths[t];
+        }
+        synchronized (this) {
+            size += sizeDelta;
+            redundantOpCount++;
+            if (journalWriter != null) {
+                journalWriter.append(REMOVE + ' ' + entry.key + '\n');
+            }
+        }
+    }
+
+    private Entry newIndexEntry(String key, long[] lengths) {
+        Entry entry = new Entry(key);
+        System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+        entry.readable = true;
+        entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+        return entry;
+    }
+
+    private static JournalWriter newJournalWriter(Writer writer) {
+        JournalWriter journalWriter = new JournalWriter(writer, JOURNAL_CAPACITY,
+                JOURNAL_BATCH_RECORDS, JOURNAL_BATCH_BYTES, JOURNAL_BATCH_DELAY_MILLIS);
+        journalWriter.start();
+        return journalWriter;
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -471,44 +794,117 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
-
-        if (!entry.readable) {
+        Entry entry = lookup(key);
+        if (entry == null || !entry.readable) {
             return null;
         }
 
         /*
          * Open all streams eagerly to guarantee that we see a single published
          * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
+         * from different edits. Without a lock, this holds if no commit was
+         * publishing the entry while the streams were opened; otherwise try
+         * again, taking the entry's lock after a few attempts.
          */
-        File[] files = new File[valueCount];
+        Snapshot snapshot = null;
+        for (int attempt = 0; snapshot == null; attempt++) {
+            if (attempt < 2) {
+                final int version = entry.version;
+                if ((version & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                final long sequenceNumber = entry.sequenceNumber;
+                final InputStream[] ins = openCleanFiles(entry);
+                if (ins == null) {
+                    return null;
+                }
+                if (entry.version == version) {
+                    snapshot = new Snapshot(key, sequenceNumber, cleanFiles(entry), ins);
+                } else {
+                    closeAll(ins);
+                }
+            } else {
+                synchronized (lockFor(key)) {
+                    if (!entry.readable) {
+                        return null;
+                    }
+                    final InputStream[] ins = openCleanFiles(entry);
+                    if (ins == null) {
+                        return null;
+                    }
+                    snapshot = new Snapshot(key, entry.sequenceNumber, cleanFiles(entry), ins);
+                }
+            }
+        }
+
+        recordRead(key);
+        return snapshot;
+    }
+
+    /** Returns streams for every clean file of the entry, or null if one is missing. */
+    private InputStream[] openCleanFiles(Entry entry) {
         InputStream[] ins = new InputStream[valueCount];
         try {
-            File file;
             for (int i = 0; i < valueCount; i++) {
-                file = entry.getCleanFile(i);
-                files[i] = file;
                 ins[i] = new FileInputStream(entry.getCleanFile(i));
             }
+            return ins;
         } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
+            // a file must have been deleted manually, or by a concurrent removal
+            closeAll(ins);
             return null;
         }
+    }
+
+    private File[] cleanFiles(Entry entry) {
+        File[] files = new File[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            files[i] = entry.getCleanFile(i);
+        }
+        return files;
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
+    private static void closeAll(InputStream[] ins) {
+        for (InputStream in : ins) {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Queues a read to be replayed into the LRU order and the journal later,
+     * so that reads never wait for the journal. Reads are dropped when the
+     * queue is full, which only makes the LRU order slightly less precise.
+     */
+    private void recordRead(String key) {
+        final int pending = pendingReadCount.incrementAndGet();
+        if (pending > MAX_PENDING_READS) {
+            pendingReadCount.decrementAndGet();
+            return;
+        }
+        pendingReads.offer(key);
+        if (pending == READ_DRAIN_THRESHOLD) {
             executorService.submit(cleanupCallable);
         }
+    }
+
+    /** Replays queued reads. Must be called with the cache lock held. */
+    private void drainReads() throws IOException {
+        String key;
+        while ((key = pendingReads.poll()) != null) {
+            pendingReadCount.decrementAndGet();
+            if (lruEntries.get(key) != null) {
+                redundantOpCount++;
+                journalWriter.append(READ + ' ' + key + '\n');
+            }
+        }
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, files, ins);
+    private Object lockFor(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPE_COUNT];
     }
 
     /**
@@ -519,28 +915,33 @@ public final class DiskLruCache implements Closeable {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
-        }
+        synchronized (lockFor(key)) {
+            Entry entry = lookup(key);
+            if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                    && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                return null; // snapshot is stale
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+            } else if (entry.currentEditor != null) {
+                return null; // another edit is in progress
+            }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+            Editor editor = new Editor(entry);
+            synchronized (this) {
+                checkNotClosed();
+                entries.put(key, entry);
+                lruEntries.put(key, entry);
+                entry.currentEditor = editor;
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
-        return editor;
+                // files of an edit the journal lost are deleted on open, see processJournal()
+                journalWriter.append(DIRTY + ' ' + key + '\n');
+            }
+            return editor;
+        }
     }
 
     /**
@@ -563,56 +964,83 @@ public final class DiskLruCache implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
+    public long size() {
         return size;
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    private void completeEdit(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
-        }
+        boolean cleanupRequired;
+        synchronized (lockFor(entry.key)) {
+            if (entry.currentEditor != editor) {
+                throw new IllegalStateException();
+            }
 
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
-            for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file " + i);
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !entry.readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (!entry.getDirtyFile(i).exists()) {
+                        editor.abort();
+                        throw new IllegalStateException("edit didn't create file " + i);
+                    }
                 }
             }
-        }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
+            long sizeDelta = 0;
             if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+                entry.version++; // odd: readers retry until the files are published
+            }
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    File dirty = entry.getDirtyFile(i);
+                    if (success) {
+                        if (dirty.exists()) {
+                            File clean = entry.getCleanFile(i);
+                            dirty.renameTo(clean);
+                            long oldLength = entry.lengths[i];
+                            long newLength = clean.length();
+                            entry.lengths[i] = newLength;
+                            sizeDelta += newLength - oldLength;
+                        }
+                    } else {
+                        deleteIfExists(dirty);
+                    }
+                }
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
                 }
+            } finally {
+                if (success) {
+                    entry.version++;
+                }
+            }
+
+            entry.currentEditor = null;
+            final boolean published = entry.readable | success;
+            if (published) {
+                entry.readable = true;
             } else {
-                deleteIfExists(dirty);
+                entries.remove(entry.key);
             }
-        }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+            synchronized (this) {
+                size += sizeDelta;
+                redundantOpCount++;
+                if (journalWriter == null) {
+                    return; // closed while editing
+                }
+                drainReads();
+                if (published) {
+                    journalWriter.append(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                } else {
+                    lruEntries.remove(entry.key);
+                    journalWriter.append(REMOVE + ' ' + entry.key + '\n');
+                }
+                cleanupRequired = size > maxSize || journalRebuildRequired();
             }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
         }
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if (cleanupRequired) {
             executorService.submit(cleanupCallable);
         }
     }
@@ -633,28 +1061,42 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    public boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
-            return false;
-        }
+        boolean cleanupRequired;
+        synchronized (lockFor(key)) {
+            Entry entry = lookup(key);
+            if (entry == null || entry.currentEditor != null) {
+                return false;
+            }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+            entries.remove(key);
+            entry.readable = false;
+            long sizeDelta = 0;
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    File file = entry.getCleanFile(i);
+                    if (!file.delete() && file.exists()) {
+                        throw new IOException("failed to delete " + file);
+                    }
+                    sizeDelta -= entry.lengths[i];
+                    entry.lengths[i] = 0;
+                }
+            } finally {
+                synchronized (this) {
+                    size += sizeDelta;
+                    redundantOpCount++;
+                    lruEntries.remove(key);
+                    if (journalWriter != null) {
+                        journalWriter.append(REMOVE + ' ' + key + '\n');
+                    }
+                    cleanupRequired = journalRebuildRequired();
+                }
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
         }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
-
-        if (journalRebuildRequired()) {
+        if (cleanupRequired) {
             executorService.submit(cleanupCallable);
         }
 
@@ -677,34 +1119,64 @@ public final class DiskLruCache implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
+    public void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        synchronized (this) {
+            checkNotClosed();
+            drainReads();
+            journalWriter.sync();
+        }
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
         if (journalWriter == null) {
             return; // already closed
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            final Editor editor = entry.currentEditor;
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IllegalStateException completedMeanwhile) {
+                }
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        synchronized (this) {
+            if (journalWriter == null) {
+                return;
+            }
+            drainReads();
+            journalWriter.close();
+            journalWriter = null;
+            writeIndex();
+        }
     }
 
     private void trimToSize() throws IOException {
+        loadIndex();
         while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            String eldest = null;
+            synchronized (this) {
+                if (journalWriter != null) {
+                    drainReads();
+                }
+//                Map.Entry<String, Entry> toEvict = lruEntries.eldest();
+                for (Entry entry : lruEntries.values()) {
+                    if (entry.currentEditor == null) {
+                        eldest = entry.key;
+                        break;
+                    }
+                }
+            }
+            if (eldest == null) {
+                return; // everything left is being edited
+            }
+            remove(eldest);
         }
     }
 
@@ -786,6 +1258,7 @@ public final class DiskLruCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private boolean hasErrors;
+        private boolean committed;
 
         private Editor(Entry entry) {
             this.entry = entry;
@@ -796,7 +1269,7 @@ public final class DiskLruCache implements Closeable {
          * or null if no value has been committed.
          */
         public InputStream newInputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
+            synchronized (lockFor(entry.key)) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -824,7 +1297,7 @@ public final class DiskLruCache implements Closeable {
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
+            synchronized (lockFor(entry.key)) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -852,9 +1325,11 @@ public final class DiskLruCache implements Closeable {
         public void commit() throws IOException {
             if (hasErrors) {
                 completeEdit(this, false);
+                committed = true;
                 remove(entry.key); // the previous entry is stale
             } else {
                 completeEdit(this, true);
+                committed = true;
             }
         }
 
@@ -866,6 +1341,19 @@ public final class DiskLruCache implements Closeable {
             completeEdit(this, false);
         }
 
+        /**
+         * Aborts this edit if {@link #commit} has not been called successfully. Safe to call
+         * from a finally block.
+         */
+        public void abortUnlessCommitted() {
+            if (!committed) {
+                try {
+                    abort();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
         private class FaultHidingOutputStream extends FilterOutputStream {
             private FaultHidingOutputStream(OutputStream out) {
                 super(out);
@@ -912,13 +1400,16 @@ public final class DiskLruCache implements Closeable {
         private final long[] lengths;
 
         /** True if this entry has ever been published */
-        private boolean readable;
+        private volatile boolean readable;
 
         /** The ongoing edit or null if this entry is not being edited. */
-        private Editor currentEditor;
+        private volatile Editor currentEditor;
 
         /** The sequence number of the most recently committed edit to this entry. */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
+
+        /** Incremented before and after a commit publishes files, odd while it does. */
+        private volatile int version;
 
         private Entry(String key) {
             this.key = key;
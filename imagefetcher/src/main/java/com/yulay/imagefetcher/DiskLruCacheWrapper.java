@@ -4,20 +4,33 @@ import android.graphics.Bitmap;
 import android.util.Log;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-public class DiskLruCacheWrapper implements DiskCache {
+public class DiskLruCacheWrapper implements EditableDiskCache, MetadataDiskCache {
     private static final String TAG = "DiskLruCacheWrapper";
+    /** Version of the layout of entries; caches left by another version are rebuilt. */
+    private static final int APP_VERSION = 2;
+    private static final int SOURCE_INDEX = 0;
+    /** Every entry has its metadata as a second value, empty when there is none. */
+    private static final int METADATA_INDEX = 1;
+    private static final int VALUE_COUNT = 2;
     /** {@value */
     public static final int DEFAULT_BUFFER_SIZE = 32 * 1024; // 32 Kb
     /** {@value */
     public static final Bitmap.CompressFormat DEFAULT_COMPRESS_FORMAT = Bitmap.CompressFormat.PNG;
     /** {@value */
     public static final int DEFAULT_COMPRESS_QUALITY = 100;
+    /** Longest time a lookup waits for {@link #open()} to finish. */
+    private static final long OPEN_TIMEOUT_MS = 2000;
 
-    protected DiskLruCache cache;
+    protected volatile DiskLruCache cache;
+    private final CountDownLatch opened = new CountDownLatch(1);
     protected File cacheDir;
     protected long cacheMaxSize;
 
@@ -34,7 +47,7 @@ public class DiskLruCacheWrapper implements DiskCache {
 
     private void initCache(File cacheDir, long cacheMaxSize) {
         try {
-            cache = DiskLruCache.open(cacheDir, 1, 1, cacheMaxSize);
+            cache = DiskLruCache.open(cacheDir, APP_VERSION, VALUE_COUNT, cacheMaxSize);
             Log.e(TAG, "initCache - " + cacheDir + " " + cacheMaxSize);
         } catch (IOException e) {
             Log.e(TAG, "initCache - " + e);
@@ -43,16 +56,38 @@ public class DiskLruCacheWrapper implements DiskCache {
 
     @Override
     public void open() {
-        initCache(cacheDir, cacheMaxSize);
+        try {
+            initCache(cacheDir, cacheMaxSize);
+        } finally {
+            opened.countDown();
+        }
+    }
+
+    /**
+     * Waits for the cache to be opened, so that requests made right after start up don't skip
+     * it. Opening only maps the index of the cache and replays the end of its journal.
+     */
+    private void awaitOpen() {
+        if (opened.getCount() == 0) {
+            return;
+        }
+        try {
+            if (!opened.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "awaitOpen - timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
     public File get(String data) {
+        awaitOpen();
         if (cache != null) {
             DiskLruCache.Snapshot snapshot = null;
             try {
                 snapshot = cache.get(DiskCacheUtils.hashKeyForDisk(data));
-                return snapshot == null ? null : snapshot.getFile(0);
+                return snapshot == null ? null : snapshot.getFile(SOURCE_INDEX);
             } catch (IOException e) {
                 Log.e(TAG, "initCache - " + e);
                 return null;
@@ -67,6 +102,7 @@ public class DiskLruCacheWrapper implements DiskCache {
 
     @Override
     public void put(String data, Bitmap bitmap){
+        awaitOpen();
         if (cache != null) {
             OutputStream os = null;
             boolean savedSuccessfully = false;
@@ -76,9 +112,11 @@ public class DiskLruCacheWrapper implements DiskCache {
                     return;
                 }
 
-                os = new BufferedOutputStream(editor.newOutputStream(0), bufferSize);
+                os = new BufferedOutputStream(editor.newOutputStream(SOURCE_INDEX), bufferSize);
                 savedSuccessfully = bitmap.compress(compressFormat, compressQuality, os);
                 if (savedSuccessfully) {
+                    os.close();
+                    editor.set(METADATA_INDEX, "");
                     editor.commit();
                 } else {
                     editor.abort();
@@ -91,6 +129,111 @@ public class DiskLruCacheWrapper implements DiskCache {
         }
     }
 
+    @Override
+    public boolean put(String data, InputStream stream) {
+        final Editor editor = edit(data);
+        if (editor == null) {
+            return false;
+        }
+        try {
+            Utils.copy(stream, editor.getOutputStream(), bufferSize);
+            return editor.commit();
+        } catch (IOException e) {
+            Log.e(TAG, "put - " + e);
+            return false;
+        } finally {
+            editor.abort();
+        }
+    }
+
+    /** Returns null while the entry is being edited by someone else. */
+    @Override
+    public Editor edit(String data) {
+        awaitOpen();
+        if (cache == null) {
+            return null;
+        }
+        try {
+            final DiskLruCache.Editor editor = cache.edit(DiskCacheUtils.hashKeyForDisk(data));
+            if (editor == null) {
+                return null;
+            }
+            try {
+                return new LruEditor(editor,
+                        new BufferedOutputStream(editor.newOutputStream(SOURCE_INDEX), bufferSize));
+            } catch (IOException e) {
+                editor.abortUnlessCommitted();
+                throw e;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "edit - " + e);
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] getMetadata(String data) {
+        awaitOpen();
+        if (cache == null) {
+            return null;
+        }
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = cache.get(DiskCacheUtils.hashKeyForDisk(data));
+            if (snapshot == null) {
+                return null;
+            }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Utils.copy(snapshot.getInputStream(METADATA_INDEX), bytes, 1024);
+            return bytes.size() > 0 ? bytes.toByteArray() : null;
+        } catch (IOException e) {
+            Log.e(TAG, "getMetadata - " + e);
+            return null;
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+    }
+
+    /** Returns false while the entry is being edited, as the metadata would describe the old copy. */
+    @Override
+    public boolean putMetadata(String data, byte[] metadata) {
+        awaitOpen();
+        if (cache == null) {
+            return false;
+        }
+        DiskLruCache.Snapshot snapshot = null;
+        DiskLruCache.Editor editor = null;
+        OutputStream os = null;
+        try {
+            snapshot = cache.get(DiskCacheUtils.hashKeyForDisk(data));
+            editor = snapshot != null ? snapshot.edit() : null;
+            if (editor == null) {
+                return false;
+            }
+            os = editor.newOutputStream(METADATA_INDEX);
+            os.write(metadata);
+            os.close();
+            editor.commit();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "putMetadata - " + e);
+            return false;
+        } catch (IllegalStateException e) {
+            // The entry was removed meanwhile
+            return false;
+        } finally {
+            Utils.closeQuietly(os);
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+    }
+
     @Override
     public void clear() {
         if (cache != null) {
@@ -138,4 +281,51 @@ public class DiskLruCacheWrapper implements DiskCache {
     public void setCompressQuality(int compressQuality) {
         this.compressQuality = compressQuality;
     }
+
+    private static class LruEditor implements Editor {
+        private final DiskLruCache.Editor editor;
+        private final OutputStream os;
+        private boolean done;
+
+        LruEditor(DiskLruCache.Editor editor, OutputStream os) {
+            this.editor = editor;
+            this.os = os;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return os;
+        }
+
+        @Override
+        public synchronized boolean commit() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            try {
+                os.close();
+                // What was known about the previous copy no longer holds
+                editor.set(METADATA_INDEX, "");
+                editor.commit();
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "commit - " + e);
+                return false;
+            } finally {
+                Utils.closeQuietly(os);
+                editor.abortUnlessCommitted();
+            }
+        }
+
+        @Override
+        public synchronized void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            Utils.closeQuietly(os);
+            editor.abortUnlessCommitted();
+        }
+    }
 }
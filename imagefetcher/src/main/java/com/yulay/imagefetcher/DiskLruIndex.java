@@ -0,0 +1,258 @@
+package com.yulay.imagefetcher;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A binary snapshot of the clean entries of a {@link DiskLruCache}, so that the cache can be
+ * opened without parsing its whole journal. The snapshot records how much of the journal it
+ * covers; only the journal after that point has to be replayed on open.
+ *
+ * <p>The file is memory-mapped and read in place. It holds a header, an open addressing hash
+ * table for looking single keys up, the clean entries in LRU order and the keys of the entries
+ * that were being edited, which are treated like DIRTY journal lines:
+ * <pre>
+ *     int magic, int version, int appVersion, int valueCount
+ *     long journalLength, long size, int entryCount, int tableSize, int dirtyOffset
+ *     int[tableSize] offset of the entry whose key hashes there, plus one, or 0
+ *     entryCount times: short keyLength, byte[keyLength] key, long[valueCount] lengths
+ *     int dirtyCount, then dirtyCount times: short keyLength, byte[keyLength] key
+ * </pre>
+ */
+final class DiskLruIndex {
+    private static final int MAGIC = 0x444c5249; // "DLRI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 4 + 8 + 8 + 4 + 4 + 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int valueCount;
+    private final long journalLength;
+    private final long size;
+    private final int entryCount;
+    private final int tableSize;
+    private final int entriesStart;
+    private final int dirtyStart;
+
+    private DiskLruIndex(ByteBuffer buffer, int valueCount) throws IOException {
+        this.buffer = buffer;
+        this.valueCount = valueCount;
+        this.journalLength = buffer.getLong(16);
+        this.size = buffer.getLong(24);
+        this.entryCount = buffer.getInt(32);
+        this.tableSize = buffer.getInt(36);
+        this.dirtyStart = buffer.getInt(40);
+        if (entryCount < 0 || tableSize <= entryCount || Integer.bitCount(tableSize) != 1) {
+            throw new IOException("unexpected index table: " + entryCount + ", " + tableSize);
+        }
+        this.entriesStart = HEADER_SIZE + 4 * tableSize;
+        if (entriesStart > dirtyStart || dirtyStart + 4 > buffer.limit()) {
+            throw new IOException("truncated index");
+        }
+    }
+
+    /**
+     * Maps the snapshot in {@code file}. Returns null if there is none, or if it belongs to another
+     * cache layout or to a journal other than one of {@code journalFileLength} bytes or more.
+     */
+    static DiskLruIndex open(File file, int appVersion, int valueCount, long journalFileLength) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE
+                    || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION
+                    || buffer.getInt(8) != appVersion
+                    || buffer.getInt(12) != valueCount) {
+                return null;
+            }
+            DiskLruIndex index = new DiskLruIndex(buffer, valueCount);
+            return index.journalLength <= journalFileLength ? index : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            // the mapping stays valid after the channel is closed
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the clean entries {@code keys}, in LRU order, and of the entries
+     * {@code dirtyKeys} to {@code file}, replacing it atomically through {@code tmpFile}.
+     */
+    static void write(File file, File tmpFile, int appVersion, int valueCount,
+                      long journalLength, String[] keys, long[][] lengths, String[] dirtyKeys)
+            throws IOException {
+        final int entryCount = keys.length;
+        final int tableSize = Integer.highestOneBit(Math.max(1, entryCount) * 2) * 2;
+        final int[] table = new int[tableSize];
+        long size = 0;
+        final byte[][] keyBytes = new byte[entryCount][];
+        int offset = HEADER_SIZE + 4 * tableSize;
+        for (int i = 0; i < entryCount; i++) {
+            keyBytes[i] = keys[i].getBytes(UTF_8);
+            int slot = keys[i].hashCode() & (tableSize - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            table[slot] = offset + 1;
+            offset += 2 + keyBytes[i].length + 8 * valueCount;
+            for (int t = 0; t < valueCount; t++) {
+                size += lengths[i][t];
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile), 8 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(appVersion);
+            out.writeInt(valueCount);
+            out.writeLong(journalLength);
+            out.writeLong(size);
+            out.writeInt(entryCount);
+            out.writeInt(tableSize);
+            out.writeInt(offset);
+            for (int slot : table) {
+                out.writeInt(slot);
+            }
+            for (int i = 0; i < entryCount; i++) {
+                writeKey(out, keyBytes[i]);
+                for (int t = 0; t < valueCount; t++) {
+                    out.writeLong(lengths[i][t]);
+                }
+            }
+            out.writeInt(dirtyKeys.length);
+            for (String key : dirtyKeys) {
+                writeKey(out, key.getBytes(UTF_8));
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("failed to rename " + tmpFile);
+        }
+    }
+
+    /** Number of journal bytes this snapshot covers. */
+    long journalLength() {
+        return journalLength;
+    }
+
+    /** Total length of all values in this snapshot. */
+    long size() {
+        return size;
+    }
+
+    int entryCount() {
+        return entryCount;
+    }
+
+    /** Returns the lengths of the values of {@code key}, or null if it has no entry. */
+    long[] find(String key) throws IOException {
+        final byte[] wanted = key.getBytes(UTF_8);
+        int slot = key.hashCode() & (tableSize - 1);
+        try {
+            for (int probes = 0; probes < tableSize; probes++) {
+                final int offset = buffer.getInt(HEADER_SIZE + 4 * slot) - 1;
+                if (offset < 0) {
+                    return null;
+                }
+                if (keyEquals(offset, wanted)) {
+                    return readLengths(offset + 2 + wanted.length);
+                }
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("corrupt index");
+        }
+    }
+
+    /** Calls {@code visitor} for every clean entry, least recently used first. */
+    void forEach(Visitor visitor) throws IOException {
+        ByteBuffer entries = buffer.duplicate();
+        try {
+            entries.position(entriesStart);
+            for (int i = 0; i < entryCount; i++) {
+                final String key = readKey(entries);
+                long[] lengths = new long[valueCount];
+                for (int t = 0; t < valueCount; t++) {
+                    lengths[t] = entries.getLong();
+                }
+                visitor.visit(key, lengths);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated index");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("corrupt index");
+        }
+    }
+
+    /** Returns the keys of the entries that were being edited when the snapshot was taken. */
+    String[] dirtyKeys() throws IOException {
+        ByteBuffer dirty = buffer.duplicate();
+        try {
+            dirty.position(dirtyStart);
+            String[] keys = new String[dirty.getInt()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = readKey(dirty);
+            }
+            return keys;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated index");
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt index");
+        }
+    }
+
+    private static void writeKey(DataOutputStream out, byte[] key) throws IOException {
+        out.writeShort(key.length);
+        out.write(key);
+    }
+
+    private static String readKey(ByteBuffer buffer) {
+        byte[] key = new byte[buffer.getShort() & 0xffff];
+        buffer.get(key);
+        return new String(key, UTF_8);
+    }
+
+    private boolean keyEquals(int offset, byte[] wanted) {
+        if ((buffer.getShort(offset) & 0xffff) != wanted.length) {
+            return false;
+        }
+        for (int i = 0; i < wanted.length; i++) {
+            if (buffer.get(offset + 2 + i) != wanted[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long[] readLengths(int offset) {
+        long[] lengths = new long[valueCount];
+        for (int t = 0; t < valueCount; t++) {
+            lengths[t] = buffer.getLong(offset + 8 * t);
+        }
+        return lengths;
+    }
+
+    interface Visitor {
+        void visit(String key, long[] lengths) throws IOException;
+    }
+}
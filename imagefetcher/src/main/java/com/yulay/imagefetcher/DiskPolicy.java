@@ -8,12 +8,30 @@ public enum DiskPolicy {
      * Skips storing the final result into disk cache. Useful for one-off requests
      * to avoid evicting other bitmaps from the cache.
      */
-    NO_STORE(1 << 1);
+    NO_STORE(1 << 1),
+    /**
+     * Shows an entry that has expired from an {@link ExpiringDiskCache} right away instead of
+     * waiting for the source, and refreshes the entry in the background at {@link Priority#LOW}.
+     */
+    STALE_WHILE_REVALIDATE(1 << 2),
+    /**
+     * Used with {@link #STALE_WHILE_REVALIDATE}: once the entry has been refreshed, the views
+     * still showing the stale image are given the new one if it differs.
+     */
+    UPDATE_AFTER_REVALIDATE(1 << 3);
 
     static boolean shouldReadFromDiskCache(int diskPolicy) {
         return (diskPolicy & DiskPolicy.NO_CACHE.index) == 0;
     }
 
+    static boolean shouldServeStale(int diskPolicy) {
+        return (diskPolicy & DiskPolicy.STALE_WHILE_REVALIDATE.index) != 0;
+    }
+
+    static boolean shouldUpdateAfterRevalidate(int diskPolicy) {
+        return (diskPolicy & DiskPolicy.UPDATE_AFTER_REVALIDATE.index) != 0;
+    }
+
     static boolean shouldWriteToDiskCache(int diskPolicy) {
         return (diskPolicy & DiskPolicy.NO_STORE.index) == 0;
     }
@@ -10,8 +10,13 @@ public class DisplayOptions {
     final int memoryPolicy;
     final int diskPolicy;
     final boolean fadeIn;
+    final Priority priority;
 
     public DisplayOptions(int width, int height, Bitmap.Config bitmapConfig, Bitmap loadingBitmap, int memoryPolicy, int diskPolicy, boolean fadeIn) {
+        this(width, height, bitmapConfig, loadingBitmap, memoryPolicy, diskPolicy, fadeIn, Priority.NORMAL);
+    }
+
+    public DisplayOptions(int width, int height, Bitmap.Config bitmapConfig, Bitmap loadingBitmap, int memoryPolicy, int diskPolicy, boolean fadeIn, Priority priority) {
         this.width = width;
         this.height = height;
         this.bitmapConfig = bitmapConfig;
@@ -19,6 +24,7 @@ public class DisplayOptions {
         this.memoryPolicy = memoryPolicy;
         this.diskPolicy = diskPolicy;
         this.fadeIn = fadeIn;
+        this.priority = priority != null ? priority : Priority.NORMAL;
     }
 
     public int getWidth() {
@@ -53,6 +59,10 @@ public class DisplayOptions {
         return fadeIn;
     }
 
+    public Priority getPriority() {
+        return priority;
+    }
+
     @Override public String toString() {
         final StringBuilder sb = new StringBuilder("DisplayOptions{");
         if (hasSize()) {
@@ -67,6 +77,7 @@ public class DisplayOptions {
         sb.append(" memoryPolicy(").append(memoryPolicy).append(')');
         sb.append(" diskPolicy(").append(diskPolicy).append(')');
         sb.append(" fadeIn(").append(fadeIn).append(')');
+        sb.append(" priority(").append(priority).append(')');
         sb.append('}');
         return sb.toString();
     }
@@ -79,6 +90,7 @@ public class DisplayOptions {
         private int memoryPolicy;
         private int diskPolicy;
         private boolean fadeIn;
+        private Priority priority = Priority.NORMAL;
 
         public Builder size(int width, int height) {
             this.width = width;
@@ -111,6 +123,11 @@ public class DisplayOptions {
             return this;
         }
 
+        public Builder priority(Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
         public Builder copyFrom(DisplayOptions options) {
             width = options.width;
             height = options.height;
@@ -119,11 +136,12 @@ public class DisplayOptions {
             memoryPolicy = options.memoryPolicy;
             diskPolicy = options.diskPolicy;
             fadeIn = options.fadeIn;
+            priority = options.priority;
             return this;
         }
 
         public DisplayOptions build() {
-            return new DisplayOptions(width, height, bitmapConfig, loadingBitmap, memoryPolicy, diskPolicy, fadeIn);
+            return new DisplayOptions(width, height, bitmapConfig, loadingBitmap, memoryPolicy, diskPolicy, fadeIn, priority);
         }
     }
 }
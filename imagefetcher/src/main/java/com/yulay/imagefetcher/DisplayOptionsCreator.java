@@ -3,6 +3,9 @@ package com.yulay.imagefetcher;
 import android.graphics.Bitmap;
 import android.widget.ImageView;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 public class DisplayOptionsCreator {
     private final OneImageFetcher fetcher;
     private final Object data;
@@ -46,12 +49,62 @@ public class DisplayOptionsCreator {
         optionsBuilder.diskPolicy(diskPolicy);
         return this;
     }
+
+    /**
+     * Shows an expired disk cache entry right away and refreshes it in the background. See
+     * {@link DiskPolicy#STALE_WHILE_REVALIDATE}.
+     *
+     * @param updateViews true to show the refreshed image in place if it changed
+     */
+    public DisplayOptionsCreator staleWhileRevalidate(boolean updateViews) {
+        return diskPolicy(DiskPolicy.STALE_WHILE_REVALIDATE.index
+                | (updateViews ? DiskPolicy.UPDATE_AFTER_REVALIDATE.index : 0));
+    }
     public DisplayOptionsCreator fadeIn(boolean fadeIn) {
         optionsBuilder.fadeIn(fadeIn);
         return this;
     }
 
+    public DisplayOptionsCreator priority(Priority priority) {
+        optionsBuilder.priority(priority);
+        return this;
+    }
+
     public void into(ImageView imageView) {
         fetcher.loadImage(data, imageView, optionsBuilder.build(), null);
     }
+
+    /** Loads the image for a {@link Target}, called back on the main thread. */
+    public void into(Target target) {
+        fetcher.loadImage(data, target, optionsBuilder.build());
+    }
+
+    /**
+     * Starts loading the image and returns a future for the bitmap, null if it could not be
+     * loaded. Cancelling the future stops the work unless a view or a target shares it.
+     */
+    public Future<Bitmap> submit() {
+        return fetcher.submit(data, optionsBuilder.build());
+    }
+
+    /**
+     * Loads the image and waits for it. Must not be called on the main thread.
+     *
+     * @return the bitmap, or null if it could not be loaded
+     * @throws InterruptedException if the thread was interrupted while waiting, the load is then
+     *                              cancelled
+     */
+    public Bitmap get() throws InterruptedException {
+        Utils.checkNotMainThread("get");
+        final Future<Bitmap> future = submit();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            // BitmapFuture reports failures as a null bitmap and never throws this
+            return null;
+        }
+    }
 }
@@ -0,0 +1,30 @@
+package com.yulay.imagefetcher;
+
+import java.io.OutputStream;
+
+/**
+ * A {@link DiskCache} that can be written to as the bytes arrive, instead of pulling them from a
+ * stream with {@link #put(String, java.io.InputStream)}. This lets a source be stored while it
+ * is being decoded, so it is read from the network once and written to disk once.
+ */
+public interface EditableDiskCache extends DiskCache {
+    /**
+     * Starts writing the entry for {@code data}. Nothing is visible to {@link #get(String)} until
+     * the editor is committed.
+     *
+     * @return an editor, or null if the entry can't be written now, for instance because another
+     *         editor has it
+     */
+    Editor edit(String data);
+
+    interface Editor {
+        /** Returns the stream the entry is written to. It is closed by the editor. */
+        OutputStream getOutputStream();
+
+        /** Publishes what was written. Returns false if the entry could not be stored. */
+        boolean commit();
+
+        /** Drops what was written. Does nothing once the editor is committed or aborted. */
+        void abort();
+    }
+}
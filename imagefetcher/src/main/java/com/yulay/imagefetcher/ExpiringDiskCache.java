@@ -0,0 +1,22 @@
+package com.yulay.imagefetcher;
+
+import java.io.File;
+
+/**
+ * A {@link DiskCache} whose entries expire. {@link #get(String)} no longer returns an expired
+ * entry, but the entry is kept for a while so it can still be shown with
+ * {@link DiskPolicy#STALE_WHILE_REVALIDATE} until a fresh copy has been fetched.
+ */
+public interface ExpiringDiskCache extends DiskCache {
+    /**
+     * Returns the file of an entry that has expired but is still kept, or null if the entry is
+     * missing, fresh or gone for good.
+     */
+    File getStale(String data);
+
+    /**
+     * Makes an entry fresh again without rewriting it, once its source has been found unchanged.
+     * Does nothing if there is no such entry.
+     */
+    void refresh(String data);
+}
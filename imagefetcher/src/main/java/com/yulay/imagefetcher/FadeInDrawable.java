@@ -0,0 +1,116 @@
+package com.yulay.imagefetcher;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+
+/**
+ * Fades a bitmap in over the loading bitmap. It replaces the TransitionDrawable, the two
+ * BitmapDrawables and the ColorDrawable a fade-in used to take: once a view moves on to another
+ * image it is given back to {@link ImageWorker} and reused, so binding an image allocates no
+ * drawable. The loading bitmap is drawn underneath while fading rather than set as the view's
+ * background.
+ *
+ * <p>Must only be used from the main thread.
+ */
+final class FadeInDrawable extends Drawable {
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private final int targetDensity;
+    private Bitmap bitmap;
+    private Bitmap loadingBitmap;
+    private int duration;
+    /** The uptime the fade started at, or -1 until it is first drawn. */
+    private long startTime;
+    private boolean fading;
+    private int alpha = 255;
+
+    FadeInDrawable(Resources resources) {
+        targetDensity = resources.getDisplayMetrics().densityDpi;
+    }
+
+    /** Starts fading {@code bitmap} in over {@code loadingBitmap}, which may be null. */
+    void start(Bitmap bitmap, Bitmap loadingBitmap, int duration) {
+        this.bitmap = bitmap;
+        this.loadingBitmap = loadingBitmap;
+        this.duration = duration;
+        startTime = -1;
+        fading = true;
+        invalidateSelf();
+    }
+
+    /** Drops the bitmaps before the drawable is kept for reuse, so that they can be pooled. */
+    void reset() {
+        bitmap = null;
+        loadingBitmap = null;
+        fading = false;
+        alpha = 255;
+        paint.setAlpha(255);
+        paint.setColorFilter(null);
+    }
+
+    Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (bitmap == null) {
+            return;
+        }
+        if (!fading) {
+            canvas.drawBitmap(bitmap, null, getBounds(), paint);
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (startTime < 0) {
+            startTime = now;
+        }
+        final float progress = duration > 0 ? Math.min(1f, (now - startTime) / (float) duration) : 1f;
+        if (progress >= 1f) {
+            fading = false;
+            loadingBitmap = null;
+        } else if (loadingBitmap != null) {
+            canvas.drawBitmap(loadingBitmap, null, getBounds(), paint);
+        }
+        paint.setAlpha((int) (alpha * progress));
+        canvas.drawBitmap(bitmap, null, getBounds(), paint);
+        paint.setAlpha(alpha);
+        if (fading) {
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return bitmap != null ? bitmap.getScaledWidth(targetDensity) : -1;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return bitmap != null ? bitmap.getScaledHeight(targetDensity) : -1;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        this.alpha = alpha;
+        paint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        paint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return fading || alpha < 255 || bitmap == null || bitmap.hasAlpha()
+                ? PixelFormat.TRANSLUCENT : PixelFormat.OPAQUE;
+    }
+}
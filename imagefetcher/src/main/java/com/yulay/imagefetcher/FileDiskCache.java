@@ -4,12 +4,19 @@ import android.graphics.Bitmap;
 import android.util.Log;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
-public abstract class FileDiskCache implements DiskCache {
+/**
+ * A {@link DiskCache} keeping each entry in a file of its own. The metadata of an entry is kept in
+ * a small file next to it, which is deleted along with the entry and is not counted as an entry.
+ */
+public abstract class FileDiskCache implements EditableDiskCache, MetadataDiskCache {
     private static final String TAG = "FileDiskCache";
 
     /** {@value} */
@@ -20,6 +27,7 @@ public abstract class FileDiskCache implements DiskCache {
     public static final int DEFAULT_COMPRESS_QUALITY = 100;
 
     private static final String TEMP_IMAGE_POSTFIX = ".tmp";
+    private static final String METADATA_POSTFIX = ".meta";
 
     protected final File cacheDir;
 
@@ -49,6 +57,7 @@ public abstract class FileDiskCache implements DiskCache {
         File tmpFile = new File(imageFile.getAbsolutePath() + TEMP_IMAGE_POSTFIX);
         OutputStream os = null;
         boolean savedSuccessfully = false;
+        onWriteStarted(data);
         try {
             os = new BufferedOutputStream(new FileOutputStream(tmpFile), bufferSize);
             savedSuccessfully = bitmap.compress(compressFormat, compressQuality, os);
@@ -59,12 +68,130 @@ public abstract class FileDiskCache implements DiskCache {
             if (savedSuccessfully && !tmpFile.renameTo(imageFile)) {
                 savedSuccessfully = false;
             }
-            if (!savedSuccessfully) {
+            if (savedSuccessfully) {
+                getMetadataFile(imageFile).delete();
+            } else {
                 tmpFile.delete();
             }
+            onWriteFinished(data, savedSuccessfully);
         }
     }
 
+    @Override
+    public boolean put(String data, InputStream stream) {
+        final Editor editor = edit(data);
+        if (editor == null) {
+            return false;
+        }
+        try {
+            Utils.copy(stream, editor.getOutputStream(), bufferSize);
+            return editor.commit();
+        } catch (IOException e) {
+            Log.e(TAG, "put - " + e);
+            return false;
+        } finally {
+            editor.abort();
+        }
+    }
+
+    /**
+     * Returns an editor writing to a temporary file of its own, which is renamed into place on
+     * commit. Concurrent editors of the same entry don't disturb each other; the last one to
+     * commit wins.
+     */
+    @Override
+    public Editor edit(String data) {
+        final File imageFile = getFile(data);
+        onWriteStarted(data);
+        try {
+            final File tmpFile = File.createTempFile(imageFile.getName(), TEMP_IMAGE_POSTFIX, cacheDir);
+            return new FileEditor(data, imageFile, tmpFile,
+                    new BufferedOutputStream(new FileOutputStream(tmpFile), bufferSize));
+        } catch (IOException e) {
+            Log.e(TAG, "edit - " + e);
+            onWriteFinished(data, false);
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] getMetadata(String data) {
+        final File imageFile = getFile(data);
+        final File metadataFile = getMetadataFile(imageFile);
+        if (!imageFile.exists() || !metadataFile.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(metadataFile);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) metadataFile.length());
+            Utils.copy(in, bytes, 1024);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            Log.e(TAG, "getMetadata - " + e);
+            return null;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public boolean putMetadata(String data, byte[] metadata) {
+        final File imageFile = getFile(data);
+        if (!imageFile.exists()) {
+            return false;
+        }
+        final File metadataFile = getMetadataFile(imageFile);
+        OutputStream os = null;
+        File tmpFile = null;
+        boolean saved = false;
+        try {
+            tmpFile = File.createTempFile(metadataFile.getName(), TEMP_IMAGE_POSTFIX, cacheDir);
+            os = new FileOutputStream(tmpFile);
+            os.write(metadata);
+            os.close();
+            os = null;
+            saved = tmpFile.renameTo(metadataFile);
+        } catch (IOException e) {
+            Log.e(TAG, "putMetadata - " + e);
+        } finally {
+            Utils.closeQuietly(os);
+            if (!saved && tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+        if (saved && !imageFile.exists()) {
+            // The entry was deleted meanwhile
+            metadataFile.delete();
+            return false;
+        }
+        return saved;
+    }
+
+    /** Deletes the file of an entry, and its metadata. Returns true if the entry was deleted. */
+    protected boolean deleteEntry(File file) {
+        getMetadataFile(file).delete();
+        return file.delete();
+    }
+
+    private static File getMetadataFile(File imageFile) {
+        return new File(imageFile.getPath() + METADATA_POSTFIX);
+    }
+
+    /** Called before an entry is written, by a put or an editor. */
+    protected void onWriteStarted(String data) {
+        // Nothing to do
+    }
+
+    /**
+     * Called once an entry is written, whether it was stored or not.
+     *
+     * @param saved true if the new file is in place
+     */
+    protected void onWriteFinished(String data, boolean saved) {
+        // Nothing to do
+    }
+
     @Override
     public void clear() {
         File[] files = cacheDir.listFiles();
@@ -94,6 +221,23 @@ public abstract class FileDiskCache implements DiskCache {
         return new File(dir, fileName);
     }
 
+    /**
+     * Returns true if {@code name} is the name of an entry, as made by
+     * {@link DiskCacheUtils#hashKeyForDisk}. Other files in the directory are not the cache's.
+     */
+    protected static boolean isEntryName(String name) {
+        if (name.length() == 0 || name.endsWith(TEMP_IMAGE_POSTFIX)) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (Character.digit(c, 16) < 0 && !(i == 0 && c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void setBufferSize(int bufferSize) {
         this.bufferSize = bufferSize;
     }
@@ -105,4 +249,60 @@ public abstract class FileDiskCache implements DiskCache {
     public void setCompressQuality(int compressQuality) {
         this.compressQuality = compressQuality;
     }
+
+    private class FileEditor implements Editor {
+        private final String data;
+        private final File imageFile;
+        private final File tmpFile;
+        private final OutputStream os;
+        private boolean done;
+
+        FileEditor(String data, File imageFile, File tmpFile, OutputStream os) {
+            this.data = data;
+            this.imageFile = imageFile;
+            this.tmpFile = tmpFile;
+            this.os = os;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return os;
+        }
+
+        @Override
+        public synchronized boolean commit() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            boolean savedSuccessfully = false;
+            try {
+                os.close();
+                savedSuccessfully = tmpFile.renameTo(imageFile);
+                if (savedSuccessfully) {
+                    // What was known about the previous copy no longer holds
+                    getMetadataFile(imageFile).delete();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "commit - " + e);
+            } finally {
+                if (!savedSuccessfully) {
+                    tmpFile.delete();
+                }
+                onWriteFinished(data, savedSuccessfully);
+            }
+            return savedSuccessfully;
+        }
+
+        @Override
+        public synchronized void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            Utils.closeQuietly(os);
+            tmpFile.delete();
+            onWriteFinished(data, false);
+        }
+    }
 }
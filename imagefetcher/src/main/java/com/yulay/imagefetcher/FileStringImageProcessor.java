@@ -8,7 +8,14 @@ public class FileStringImageProcessor extends StringImageProcessor {
 
     @Override
     public Result process(String data, DisplayOptions options) {
-        String filePath = Scheme.FILE.crop(data);
-        return new Result(ImageDecodeHelper.decodeSampledBitmapFromFile(filePath, options), null);
+        return process(data, options, null, null);
+    }
+
+    /** Decodes the file, stopping the decode as soon as {@code cancellation} is cancelled. */
+    @Override
+    public Result process(Object data, DisplayOptions options, CacheValidators validators,
+                          CancellationToken cancellation) {
+        String filePath = Scheme.FILE.crop((String) data);
+        return new Result(ImageDecodeHelper.decodeSampledBitmapFromFile(filePath, options, cancellation), null);
     }
 }
@@ -0,0 +1,143 @@
+package com.yulay.imagefetcher;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs the results of background work on the main thread in batches, once per frame, instead of
+ * posting each of them on its own. Results finishing together are bound in the same frame, up to
+ * a time budget; those left over wait for the next frame, so that a burst of results never makes
+ * a frame miss its deadline.
+ *
+ * <p>Frames are followed with the {@link Choreographer} from Jelly Bean. Before that, a batch is
+ * posted to the main thread's message queue.
+ *
+ * <p>{@link #post(Runnable)} may be called on any thread.
+ */
+class FrameDispatcher {
+    /** A quarter of a 60 fps frame, leaving the rest to measure, lay out and draw. */
+    static final long DEFAULT_BUDGET_NANOS = 4000000L;
+
+    private final long budgetNanos;
+    /** Created on first use, guarded by this. */
+    private Handler handler;
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+    /** True while a frame has been asked for and not run yet, guarded by {@link #queue}. */
+    private boolean scheduled;
+    private FrameCallback frameCallback;
+
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            scheduleFrame();
+        }
+    };
+
+    private final Runnable runFrame = new Runnable() {
+        @Override
+        public void run() {
+            runFrame();
+        }
+    };
+
+    FrameDispatcher(long budgetNanos) {
+        if (budgetNanos <= 0) throw new IllegalArgumentException("budgetNanos must be a positive number");
+        this.budgetNanos = budgetNanos;
+    }
+
+    /** Runs {@code runnable} on the main thread, within the next frame with time left. */
+    void post(Runnable runnable) {
+        synchronized (queue) {
+            queue.add(runnable);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        if (isMainThread()) {
+            scheduleFrame();
+        } else {
+            getHandler().post(scheduleFrame);
+        }
+    }
+
+    /** Returns true on the main thread, where a frame is asked for without a round trip. */
+    boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    private synchronized Handler getHandler() {
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        return handler;
+    }
+
+    /**
+     * Asks for {@link #runFrame()} to be called on the next frame. Main thread only, the
+     * Choreographer being bound to the thread it is obtained on.
+     */
+    void scheduleFrame() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (frameCallback == null) {
+                frameCallback = new FrameCallback(this);
+            }
+            frameCallback.post();
+        } else {
+            getHandler().post(runFrame);
+        }
+    }
+
+    /**
+     * Runs the queued results in order until the queue is empty or the frame's budget is spent,
+     * at least one of them. Main thread only.
+     */
+    void runFrame() {
+        final long deadline = System.nanoTime() + budgetNanos;
+        while (true) {
+            final Runnable runnable;
+            synchronized (queue) {
+                runnable = queue.poll();
+                if (runnable == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            runnable.run();
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        synchronized (queue) {
+            if (queue.isEmpty()) {
+                scheduled = false;
+                return;
+            }
+        }
+        scheduleFrame();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static final class FrameCallback implements Choreographer.FrameCallback {
+        private final FrameDispatcher dispatcher;
+        private final Choreographer choreographer = Choreographer.getInstance();
+
+        FrameCallback(FrameDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        void post() {
+            choreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            dispatcher.runFrame();
+        }
+    }
+}
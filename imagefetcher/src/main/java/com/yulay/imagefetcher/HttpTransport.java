@@ -0,0 +1,296 @@
+package com.yulay.imagefetcher;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default {@link Transport}, built on {@link HttpURLConnection}.
+ *
+ * <p>Connections are kept alive and reused by the platform's connection pool as long as each
+ * response body is read to its end before it is closed; closing a response early disconnects it.
+ * Every request is bounded by a connect timeout, a read timeout between two reads and a total
+ * deadline covering the whole exchange. A connection still open at its deadline is disconnected by
+ * a watchdog, so a hung server can't pin a loader thread. Bodies larger than
+ * {@link Builder#maxContentLength(long)} are rejected from their Content-Length when the server
+ * sends one, and by counting the bytes read otherwise.
+ */
+public class HttpTransport implements Transport {
+    /** {@value} */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000; // 15 seconds
+    /** {@value} */
+    public static final int DEFAULT_READ_TIMEOUT = 20 * 1000; // 20 seconds
+    /** {@value} */
+    public static final long DEFAULT_TOTAL_TIMEOUT = 60 * 1000; // 1 minute
+    /** {@value} */
+    public static final long DEFAULT_MAX_CONTENT_LENGTH = 20 * 1024 * 1024; // 20 Mb
+
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    private static final ScheduledExecutorService sWatchdog =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpTransport-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final long totalTimeoutMillis;
+    private final long maxContentLength;
+
+    public HttpTransport() {
+        this(new Builder());
+    }
+
+    private HttpTransport(Builder builder) {
+        connectTimeoutMillis = builder.connectTimeoutMillis;
+        readTimeoutMillis = builder.readTimeoutMillis;
+        totalTimeoutMillis = builder.totalTimeoutMillis;
+        maxContentLength = builder.maxContentLength;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        final long deadline = System.currentTimeMillis() + totalTimeoutMillis;
+        final HttpURLConnection connection =
+                (HttpURLConnection) new URL(request.getUrl()).openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setInstanceFollowRedirects(true);
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        final Future<?> watchdog = sWatchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        }, totalTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            final int code = connection.getResponseCode();
+            if (!isAcceptedResponseCode(code)) {
+                throw new ResponseException(code, "Unexpected response " + code + " "
+                        + connection.getResponseMessage() + " for " + request.getUrl());
+            }
+
+            final long contentLength = parseContentLength(connection.getHeaderField(HEADER_CONTENT_LENGTH));
+            if (maxContentLength > 0 && contentLength > maxContentLength) {
+                throw new ResponseTooLargeException("Content-Length " + contentLength
+                        + " exceeds " + maxContentLength + " for " + request.getUrl());
+            }
+
+            final InputStream body = new ResponseBodyStream(connection.getInputStream(),
+                    connection, watchdog, deadline, maxContentLength);
+            return new Response(code, getHeaders(connection), contentLength, body);
+        } catch (IOException e) {
+            watchdog.cancel(false);
+            connection.disconnect();
+            if (System.currentTimeMillis() >= deadline) {
+                throw timeout(request.getUrl(), e);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            watchdog.cancel(false);
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if a response with this status code is handed to the caller. Defaults to any
+     * 2xx code and 304 Not Modified, which only ever answers a conditional request.
+     */
+    protected boolean isAcceptedResponseCode(int code) {
+        return (code >= 200 && code < 300) || code == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeoutMillis;
+    }
+
+    public int getReadTimeout() {
+        return readTimeoutMillis;
+    }
+
+    public long getTotalTimeout() {
+        return totalTimeoutMillis;
+    }
+
+    public long getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    private static Map<String, String> getHeaders(HttpURLConnection connection) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            final List<String> values = header.getValue();
+            if (header.getKey() != null && values != null && !values.isEmpty()) {
+                headers.put(header.getKey(), values.get(values.size() - 1));
+            }
+        }
+        return headers;
+    }
+
+    private static long parseContentLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static SocketTimeoutException timeout(String url, IOException cause) {
+        SocketTimeoutException timeout = new SocketTimeoutException("Total timeout exceeded for " + url);
+        timeout.initCause(cause);
+        return timeout;
+    }
+
+    /**
+     * Enforces the deadline and size limit while the body is read, and decides on close whether
+     * the connection can go back to the pool.
+     */
+    private static class ResponseBodyStream extends FilterInputStream {
+        private final HttpURLConnection connection;
+        private final Future<?> watchdog;
+        private final long deadline;
+        private final long maxContentLength;
+        private long bytesRead;
+        /** Read by a close from the thread of a cancel. */
+        private volatile boolean exhausted;
+        private volatile boolean closed;
+
+        ResponseBodyStream(InputStream in, HttpURLConnection connection, Future<?> watchdog,
+                           long deadline, long maxContentLength) {
+            super(in);
+            this.connection = connection;
+            this.watchdog = watchdog;
+            this.deadline = deadline;
+            this.maxContentLength = maxContentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int count = read(single, 0, 1);
+            return count == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new SocketTimeoutException("Total timeout exceeded for " + connection.getURL());
+            }
+            final int count;
+            try {
+                count = in.read(b, off, len);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw timeout(String.valueOf(connection.getURL()), e);
+                }
+                throw e;
+            }
+            if (count == -1) {
+                if (closed) {
+                    // Closed by a cancel while reading, the body was cut short
+                    throw new IOException("Stream closed");
+                }
+                exhausted = true;
+                return -1;
+            }
+            bytesRead += count;
+            if (maxContentLength > 0 && bytesRead > maxContentLength) {
+                throw new ResponseTooLargeException("Body exceeds " + maxContentLength
+                        + " bytes for " + connection.getURL());
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final byte[] scratch = new byte[(int) Math.min(Math.max(n, 0), 4096)];
+            long skipped = 0;
+            while (skipped < n) {
+                final int count = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+                if (count == -1) {
+                    break;
+                }
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            watchdog.cancel(false);
+            if (exhausted) {
+                // Fully read, the connection can be reused for the next request to this host
+                super.close();
+            } else {
+                connection.disconnect();
+            }
+        }
+    }
+
+    public static final class Builder {
+        private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT;
+        private int readTimeoutMillis = DEFAULT_READ_TIMEOUT;
+        private long totalTimeoutMillis = DEFAULT_TOTAL_TIMEOUT;
+        private long maxContentLength = DEFAULT_MAX_CONTENT_LENGTH;
+
+        /** Sets how long to wait for a connection to be established. */
+        public Builder connectTimeout(int timeoutMillis) {
+            if (timeoutMillis <= 0) throw new IllegalArgumentException("connectTimeout must be a positive number");
+            this.connectTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /** Sets how long a single read may block waiting for data. */
+        public Builder readTimeout(int timeoutMillis) {
+            if (timeoutMillis <= 0) throw new IllegalArgumentException("readTimeout must be a positive number");
+            this.readTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /** Sets the deadline for the whole exchange, from connecting to reading the last byte. */
+        public Builder totalTimeout(long timeoutMillis) {
+            if (timeoutMillis <= 0) throw new IllegalArgumentException("totalTimeout must be a positive number");
+            this.totalTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /** Sets the largest accepted body in bytes, or 0 to accept bodies of any size. */
+        public Builder maxContentLength(long maxContentLength) {
+            if (maxContentLength < 0) throw new IllegalArgumentException("maxContentLength must not be negative");
+            this.maxContentLength = maxContentLength;
+            return this;
+        }
+
+        public HttpTransport build() {
+            return new HttpTransport(this);
+        }
+    }
+}
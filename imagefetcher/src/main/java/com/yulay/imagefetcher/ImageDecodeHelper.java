@@ -19,8 +19,11 @@ package com.yulay.imagefetcher;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.util.Log;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -31,8 +34,36 @@ import java.io.InputStream;
 public class ImageDecodeHelper {
     private static final String TAG = "ImageDecodeHelper";
 
+    /** Size of the in-memory part of the mark/reset buffer used for streams. */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024; // 64 Kb
+    /** Number of stream buffers kept around for reuse. */
+    private static final int STREAM_BUFFER_POOL_SIZE = 4;
+    /** Largest image header that is replayed, spooled to disk beyond the in-memory buffer. */
+    private static final int MARK_READ_LIMIT = 8 * 1024 * 1024; // 8 Mb
+
+    private static final ByteArrayPool sStreamBufferPool =
+            new ByteArrayPool(STREAM_BUFFER_SIZE, STREAM_BUFFER_POOL_SIZE);
+    private static volatile File sSpoolDirectory;
+    private static volatile BitmapPool sBitmapPool;
+
     private ImageDecodeHelper() {}
 
+    /**
+     * Sets the directory used to spool image headers that don't fit in the stream buffer. If not
+     * set, the default temporary directory is used.
+     */
+    public static void setSpoolDirectory(File directory) {
+        sSpoolDirectory = directory;
+    }
+
+    /**
+     * Sets the pool that file decodes take their bitmaps from. Streams are always decoded into
+     * new bitmaps, as they can't be read again if a pooled bitmap turns out not to fit.
+     */
+    public static void setBitmapPool(BitmapPool bitmapPool) {
+        sBitmapPool = bitmapPool;
+    }
+
     /**
      * Decode and sample down a bitmap from resources to the requested width and height.
      *
@@ -44,10 +75,41 @@ public class ImageDecodeHelper {
      */
     public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
                                                          DisplayOptions imageOptions) {
+        return decodeSampledBitmapFromResource(res, resId, imageOptions, null);
+    }
+
+    /**
+     * Like {@link #decodeSampledBitmapFromResource(Resources, int, DisplayOptions)}, returning
+     * null as soon as {@code cancellation} is cancelled.
+     */
+    public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
+                                                         DisplayOptions imageOptions,
+                                                         CancellationToken cancellation) {
+        BitmapFactory.Options options = createBitmapOptions(imageOptions);
+        if (cancellation == null) {
+            return decodeSampledBitmapFromResource(res, resId, imageOptions, options, null);
+        }
+        if (options == null) {
+            options = new BitmapFactory.Options();
+        }
+        final CancellationToken.OnCancelListener listener = cancelDecodeOnCancel(cancellation, options);
+        try {
+            return decodeSampledBitmapFromResource(res, resId, imageOptions, options, cancellation);
+        } finally {
+            cancellation.removeOnCancelListener(listener);
+        }
+    }
+
+    private static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
+                                                          DisplayOptions imageOptions,
+                                                          BitmapFactory.Options options,
+                                                          CancellationToken cancellation) {
+        if (cancellation != null && cancellation.isCancelled()) {
+            return null;
+        }
 
         // BEGIN_INCLUDE (read_bitmap_dimensions)
         // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = createBitmapOptions(imageOptions);
         final boolean calculateSize = requiresInSampleSize(options);
 
         if (calculateSize) {
@@ -57,6 +119,9 @@ public class ImageDecodeHelper {
             calculateInSampleSize(imageOptions.getWidth(), imageOptions.getHeight(), options, imageOptions);
             // END_INCLUDE (read_bitmap_dimensions)
         }
+        if (cancellation != null && cancellation.isCancelled()) {
+            return null;
+        }
 
         // Decode bitmap with inSampleSize set
         return BitmapFactory.decodeResource(res, resId, options);
@@ -70,24 +135,28 @@ public class ImageDecodeHelper {
      * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
      *         that are equal to or greater than the requested width and height
      */
-    public static Bitmap decodeSampledBitmapFromFile(String filename,
-                                                     DisplayOptions imageOptions) {
-
-        // BEGIN_INCLUDE (read_bitmap_dimensions)
-        // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = createBitmapOptions(imageOptions);
-        final boolean calculateSize = requiresInSampleSize(options);
-
-        if (calculateSize) {
-            BitmapFactory.decodeFile(filename, options);
+    public static Bitmap decodeSampledBitmapFromFile(String filename, DisplayOptions imageOptions) {
+        return decodeSampledBitmapFromFile(filename, imageOptions, null);
+    }
 
-            // Calculate inSampleSize
-            calculateInSampleSize(imageOptions.getWidth(), imageOptions.getHeight(), options, imageOptions);
-            // END_INCLUDE (read_bitmap_dimensions)
-        }
+    /**
+     * Like {@link #decodeSampledBitmapFromFile(String, DisplayOptions)}, returning null as soon
+     * as {@code cancellation} is cancelled.
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String filename,
+                                                     DisplayOptions imageOptions,
+                                                     CancellationToken cancellation) {
+        return decodeSampledBitmap(fileDecoder(filename), imageOptions, cancellation);
+    }
 
-        // Decode bitmap with inSampleSize set
-        return BitmapFactory.decodeFile(filename, options);
+    /** Returns the decoder of the file at {@code filename}. */
+    static Decoder fileDecoder(final String filename) {
+        return new Decoder() {
+            @Override
+            Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFile(filename, options);
+            }
+        };
     }
 
     /**
@@ -99,43 +168,240 @@ public class ImageDecodeHelper {
      *         that are equal to or greater than the requested width and height
      */
     public static Bitmap decodeSampledBitmapFromDescriptor(
-            FileDescriptor fileDescriptor, DisplayOptions imageOptions) {
+            final FileDescriptor fileDescriptor, DisplayOptions imageOptions) {
+        return decodeSampledBitmap(new Decoder() {
+            @Override
+            Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+            }
+        }, imageOptions, null);
+    }
+
+    /**
+     * Decode and sample down a bitmap from bytes held in memory to the requested width and height.
+     *
+     * @param data The encoded image
+     * @param imageOptions The requested display options of the resulting bitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, DisplayOptions imageOptions) {
+        return decodeSampledBitmapFromByteArray(data, imageOptions, null);
+    }
+
+    /**
+     * Like {@link #decodeSampledBitmapFromByteArray(byte[], DisplayOptions)}, returning null as
+     * soon as {@code cancellation} is cancelled.
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(final byte[] data,
+                                                          DisplayOptions imageOptions,
+                                                          CancellationToken cancellation) {
+        return decodeSampledBitmap(new Decoder() {
+            @Override
+            Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+        }, imageOptions, cancellation);
+    }
+
+    /** A source that can be decoded more than once. */
+    static abstract class Decoder {
+        abstract Bitmap decode(BitmapFactory.Options options);
+    }
+
+    /**
+     * Decodes a source that can be read twice, reusing a bitmap from the pool when one fits.
+     */
+    static Bitmap decodeSampledBitmap(Decoder decoder, DisplayOptions imageOptions,
+                                      CancellationToken cancellation) {
+        final BitmapPool bitmapPool = Utils.hasHoneycomb() ? sBitmapPool : null;
 
         // BEGIN_INCLUDE (read_bitmap_dimensions)
         // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = createBitmapOptions(imageOptions);
+        BitmapFactory.Options options = createBitmapOptions(imageOptions);
+        if ((bitmapPool != null || cancellation != null) && options == null) {
+            options = new BitmapFactory.Options();
+        }
+        if (cancellation == null) {
+            return decodeSampledBitmap(decoder, imageOptions, options, bitmapPool, null);
+        }
+        final CancellationToken.OnCancelListener listener = cancelDecodeOnCancel(cancellation, options);
+        try {
+            return decodeSampledBitmap(decoder, imageOptions, options, bitmapPool, cancellation);
+        } finally {
+            cancellation.removeOnCancelListener(listener);
+        }
+    }
+
+    private static Bitmap decodeSampledBitmap(Decoder decoder, DisplayOptions imageOptions,
+                                              BitmapFactory.Options options, BitmapPool bitmapPool,
+                                              CancellationToken cancellation) {
+        if (cancellation != null && cancellation.isCancelled()) {
+            return null;
+        }
         final boolean calculateSize = requiresInSampleSize(options);
 
         if (calculateSize) {
-            BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+            decoder.decode(options);
 
             // Calculate inSampleSize
             calculateInSampleSize(imageOptions.getWidth(), imageOptions.getHeight(), options, imageOptions);
             // END_INCLUDE (read_bitmap_dimensions)
+        } else if (bitmapPool != null) {
+            // The dimensions are needed to find a bitmap to reuse
+            options.inJustDecodeBounds = true;
+            decoder.decode(options);
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = 1;
+        }
+        if (cancellation != null && cancellation.isCancelled()) {
+            return null;
         }
 
-        // Decode bitmap with inSampleSize set
-        return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        if (bitmapPool == null) {
+            // Decode bitmap with inSampleSize set
+            return decoder.decode(options);
+        }
+
+        // Decoded bitmaps are mutable so that they can go back to the pool once evicted
+        options.inMutable = true;
+        options.inBitmap = options.outWidth > 0 ? bitmapPool.getForDecode(options) : null;
+        Bitmap bitmap = null;
+        boolean rejected = false;
+        try {
+            bitmap = decoder.decode(options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit the image after all
+            Log.w(TAG, "decodeSampledBitmap - can't reuse bitmap " + e);
+            rejected = true;
+        }
+        if (bitmap == null && options.inBitmap != null) {
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            // A decode returning null failed on its own or was cancelled, only a rejected
+            // pooled bitmap is worth a second decode
+            if (rejected && (cancellation == null || !cancellation.isCancelled())) {
+                bitmap = decoder.decode(options);
+            }
+        }
+        return bitmap;
     }
 
+    /**
+     * Decode and sample down a bitmap from a stream to the requested width and height. The stream
+     * is read only once, so it does not need to support {@link InputStream#reset()}: the bytes
+     * consumed while reading the dimensions are buffered and replayed for the actual decode.
+     *
+     * @param stream The stream to read from, left open
+     * @param imageOptions The requested display options of the resulting bitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
     public static Bitmap decodeSampledBitmapFromStream(
             InputStream stream, DisplayOptions imageOptions) {
+        return decodeSampledBitmapFromStream(stream, imageOptions, null);
+    }
 
-        // BEGIN_INCLUDE (read_bitmap_dimensions)
-        // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = createBitmapOptions(imageOptions);
-        final boolean calculateSize = requiresInSampleSize(options);
+    /**
+     * Like {@link #decodeSampledBitmapFromStream(InputStream, DisplayOptions)}, returning null as
+     * soon as {@code cancellation} is cancelled. Cancelling stops the decode in progress, the
+     * stream itself is closed by whoever opened it.
+     */
+    public static Bitmap decodeSampledBitmapFromStream(
+            InputStream stream, DisplayOptions imageOptions, CancellationToken cancellation) {
 
-        if (calculateSize) {
-            BitmapFactory.decodeStream(stream, null ,options);
+        BitmapFactory.Options options = createBitmapOptions(imageOptions);
+        if (cancellation == null) {
+            return decodeSampledBitmapFromStream(stream, imageOptions, options, null);
+        }
+        if (options == null) {
+            options = new BitmapFactory.Options();
+        }
+        final CancellationToken.OnCancelListener listener = cancelDecodeOnCancel(cancellation, options);
+        try {
+            return decodeSampledBitmapFromStream(stream, imageOptions, options, cancellation);
+        } finally {
+            cancellation.removeOnCancelListener(listener);
+        }
+    }
+
+    private static Bitmap decodeSampledBitmapFromStream(InputStream stream,
+                                                        DisplayOptions imageOptions,
+                                                        BitmapFactory.Options options,
+                                                        CancellationToken cancellation) {
+        if (cancellation != null && cancellation.isCancelled()) {
+            return null;
+        }
+        if (!requiresInSampleSize(options)) {
+            return BitmapFactory.decodeStream(stream, null, options);
+        }
+
+        final RecyclableBufferedInputStream bufferedStream =
+                new RecyclableBufferedInputStream(stream, sStreamBufferPool, sSpoolDirectory);
+        try {
+            // BEGIN_INCLUDE (read_bitmap_dimensions)
+            // First decode with inJustDecodeBounds=true to check dimensions, then rewind to
+            // the buffered start of the stream
+            bufferedStream.mark(MARK_READ_LIMIT);
+            BitmapFactory.decodeStream(bufferedStream, null, options);
+            bufferedStream.reset();
+            bufferedStream.fixMarkLimit();
 
             // Calculate inSampleSize
             calculateInSampleSize(imageOptions.getWidth(), imageOptions.getHeight(), options, imageOptions);
             // END_INCLUDE (read_bitmap_dimensions)
+            if (cancellation != null && cancellation.isCancelled()) {
+                return null;
+            }
+
+            // Decode bitmap with inSampleSize set
+            return BitmapFactory.decodeStream(bufferedStream, null, options);
+        } catch (IOException e) {
+            Log.e(TAG, "decodeSampledBitmapFromStream - " + e);
+            return null;
+        } finally {
+            bufferedStream.release();
         }
+    }
 
-        // Decode bitmap with inSampleSize set
-        return BitmapFactory.decodeStream(stream, null, options);
+    /**
+     * Asks the decoder using {@code options} to stop once {@code cancellation} is cancelled. The
+     * decode then returns null.
+     */
+    private static CancellationToken.OnCancelListener cancelDecodeOnCancel(
+            CancellationToken cancellation, final BitmapFactory.Options options) {
+        final CancellationToken.OnCancelListener listener = new CancellationToken.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                options.requestCancelDecode();
+            }
+        };
+        cancellation.addOnCancelListener(listener);
+        return listener;
+    }
+
+    /**
+     * Scales a bitmap down to the requested width and height, keeping its aspect ratio.
+     *
+     * @param source The bitmap to scale, left untouched
+     * @param imageOptions The requested display options of the resulting bitmap
+     * @return A new bitmap with dimensions that are equal to or greater than the requested width
+     *         and height, or null if it could not be created
+     */
+    public static Bitmap scaleBitmap(Bitmap source, DisplayOptions imageOptions) {
+        final int reqWidth = imageOptions.getWidth();
+        final int reqHeight = imageOptions.getHeight();
+        final float widthScale = reqWidth > 0 ? (float) reqWidth / source.getWidth() : 0f;
+        final float heightScale = reqHeight > 0 ? (float) reqHeight / source.getHeight() : 0f;
+        final float scale = Math.min(1f, Math.max(widthScale, heightScale));
+        final int width = Math.max(1, Math.round(source.getWidth() * scale));
+        final int height = Math.max(1, Math.round(source.getHeight() * scale));
+        try {
+            return Bitmap.createScaledBitmap(source, width, height, true);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "scaleBitmap - " + e);
+            return null;
+        }
     }
 
     static BitmapFactory.Options createBitmapOptions(DisplayOptions data) {
@@ -9,13 +9,67 @@ public abstract class ImageProcessor {
     public abstract boolean canProcess(Object data);
     public abstract Result process(Object data, DisplayOptions options) throws IOException;
 
+    /**
+     * Processes a source whose earlier copy is cached with {@code validators}. Processors that can
+     * tell whether the source changed answer with {@link Result#notModified(CacheValidators)}
+     * instead of the whole source when it did not. Defaults to {@link #process(Object, DisplayOptions)}.
+     *
+     * @param validators the validators stored with the cached copy, or null if there is none
+     */
+    public Result process(Object data, DisplayOptions options, CacheValidators validators)
+            throws IOException {
+        return process(data, options);
+    }
+
+    /**
+     * Processes a source like {@link #process(Object, DisplayOptions, CacheValidators)}, giving up
+     * as soon as {@code cancellation} is cancelled. Processors that block, on the network for
+     * instance, close what they are reading from when it is. Defaults to ignoring the token.
+     *
+     * @param cancellation the token of the work, or null if it can't be cancelled
+     */
+    public Result process(Object data, DisplayOptions options, CacheValidators validators,
+                          CancellationToken cancellation) throws IOException {
+        return process(data, options, validators);
+    }
+
+    /**
+     * Returns true if this processor fetches images over the network. Such images are loaded on
+     * the network executor and concurrent requests for the same source share a single download.
+     */
+    public boolean isRemote() {
+        return false;
+    }
+
     public static final class Result {
         private final Bitmap bitmap;
         private final InputStream stream;
+        private final CacheValidators validators;
+        private final boolean notModified;
 
         public Result(Bitmap bitmap, InputStream stream) {
+            this(bitmap, stream, null, false);
+        }
+
+
+        private Result(Bitmap bitmap, InputStream stream, CacheValidators validators, boolean notModified) {
             this.bitmap = bitmap;
             this.stream = stream;
+            this.validators = validators;
+            this.notModified = notModified;
+        }
+
+        /**
+         * Returns a result holding a source stream and the validators to store with it in the
+         * disk cache, if any.
+         */
+        public static Result ofSource(InputStream stream, CacheValidators validators) {
+            return new Result(null, stream, validators, false);
+        }
+
+        /** Returns a result telling that the cached copy is still current, with no source. */
+        public static Result notModified(CacheValidators validators) {
+            return new Result(null, null, validators, true);
         }
 
         public Bitmap getBitmap() {
@@ -25,5 +79,14 @@ public abstract class ImageProcessor {
         public InputStream getStream() {
             return stream;
         }
+
+        public CacheValidators getValidators() {
+            return validators;
+        }
+
+        /** Returns true if the cached copy of the source is still current. */
+        public boolean isNotModified() {
+            return notModified;
+        }
     }
 }
@@ -20,17 +20,36 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.TransitionDrawable;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.ImageView;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap to an
@@ -40,30 +59,91 @@ import java.util.concurrent.ExecutorService;
 public abstract class ImageWorker {
     private static final String TAG = "ImageWorker";
     private static final int FADE_IN_TIME = 200;
+    /** Fade-in drawables kept for reuse, about as many as views on screen. */
+    private static final int MAX_FADE_IN_POOL_SIZE = 32;
+    private static final int DEFAULT_MAX_PREFETCH_TASKS = 2;
+    private static final long DEFAULT_MAX_PREFETCH_BYTES = 8 * 1024 * 1024; // 8 Mb
 
     private boolean mExitTasksEarly = false;
     protected boolean mPauseWork = false;
+    /** Pauses the network stage only, guarded by {@link #mPauseWorkLock}. */
+    private boolean mPauseNetworkWork = false;
     private final Object mPauseWorkLock = new Object();
 
     protected Resources mResources;
-    private final ExecutorService mLoadExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /** Binds the finished work to views in batches, once per frame. */
+    private final FrameDispatcher mFrameDispatcher = new FrameDispatcher(FrameDispatcher.DEFAULT_BUDGET_NANOS);
+    /** Fade-in drawables no view shows any more, main thread only. */
+    private final ArrayDeque<FadeInDrawable> mFadeInPool = new ArrayDeque<FadeInDrawable>();
+    private final ExecutorService mDiskExecutor;
+    private final ExecutorService mNetworkExecutor;
+    private final ExecutorService mDecodeExecutor;
     private final ExecutorService mCacheExecutor;
     private final MemoryCache mMemoryCache;
+    private final BitmapPool mBitmapPool;
+    private final ActiveResources mActiveResources = new ActiveResources();
+    /** The sizes each source is held at in the memory cache. */
+    private final MemoryVariants mMemoryVariants = new MemoryVariants();
+    /** How much larger than requested a cached bitmap of another size may be to be used as is. */
+    private final float mMemorySizeTolerance;
+    /** Bitmaps still on their way to a view or the disk cache, with a use count. */
+    private final Map<Bitmap, Integer> mPinnedBitmaps = new IdentityHashMap<Bitmap, Integer>();
+    /** Bitmaps handed to a {@link Target}, never put back in the pool. Guarded by itself. */
+    private final Map<Bitmap, Boolean> mHandedOutBitmaps = new WeakHashMap<Bitmap, Boolean>();
+    /** The request loading for each {@link Target}, guarded by itself. */
+    private final Map<Target, ImageRequest> mTargetRequests = new IdentityHashMap<Target, ImageRequest>();
     private DiskCache mDiskCache;
+    private final DiskCacheMode mDiskCacheMode;
     private final DisplayOptions mDefaultDisplayOptions;
     protected volatile boolean mLoggingEnabled;
+    /** Incremented for every request, so that the latest one can be started first. */
+    private final AtomicLong mStageSequence = new AtomicLong();
+    /** Tasks currently loading, by cache key. Also guards the requests attached to them. */
+    private final Map<String, BitmapWorkerTask> mInFlightTasks = new HashMap<String, BitmapWorkerTask>();
+    /** Cache keys of the stale entries being refreshed in the background. */
+    private final Set<String> mRevalidating = new HashSet<String>();
+    /** Prefetch batches with images left to start, oldest first. Also guards the fields below. */
+    private final List<Prefetch> mPrefetches = new ArrayList<Prefetch>();
+    /** Number of prefetch tasks loading, across all batches. */
+    private int mPrefetchTasks;
+    private int mMaxPrefetchTasks = DEFAULT_MAX_PREFETCH_TASKS;
+    private long mMaxPrefetchBytes = DEFAULT_MAX_PREFETCH_BYTES;
 
     private static final int MESSAGE_CLEAR_DISK_CACHE = 0;
     private static final int MESSAGE_INIT_DISK_CACHE = 1;
     private static final int MESSAGE_FLUSH = 2;
     private static final int MESSAGE_CLOSE = 3;
 
-    protected ImageWorker(Context context, ExecutorService loadExecutor, ExecutorService cacheExecutor, MemoryCache memoryCache, DiskCache diskCache, DisplayOptions defaultDisplayOptions, boolean loggingEnabled) {
+    protected ImageWorker(Context context, ExecutorService diskExecutor, ExecutorService networkExecutor, ExecutorService decodeExecutor, ExecutorService cacheExecutor, MemoryCache memoryCache, float memorySizeTolerance, BitmapPool bitmapPool, DiskCache diskCache, DiskCacheMode diskCacheMode, DisplayOptions defaultDisplayOptions, boolean loggingEnabled) {
         mResources = context.getResources();
-        mLoadExecutor = loadExecutor;
+        mDiskExecutor = diskExecutor;
+        mNetworkExecutor = networkExecutor;
+        mDecodeExecutor = decodeExecutor;
         mCacheExecutor = cacheExecutor;
         mMemoryCache = memoryCache;
+        mMemorySizeTolerance = memorySizeTolerance;
+        mBitmapPool = bitmapPool;
+        if (memoryCache instanceof MemoryLruCacheWrapper) {
+            ((MemoryLruCacheWrapper) memoryCache).setEvictionListener(new MemoryLruCacheWrapper.EvictionListener() {
+                @Override
+                public void onEvicted(String key, final Bitmap bitmap) {
+                    mMemoryVariants.remove(key);
+                    if (mBitmapPool == null) {
+                        return;
+                    }
+                    // Bitmaps leaving the memory cache are recycled once no view shows them any more
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            recycleBitmap(bitmap);
+                        }
+                    });
+                }
+            });
+        }
         mDiskCache = diskCache;
+        mDiskCacheMode = diskCacheMode;
         mDefaultDisplayOptions = defaultDisplayOptions;
         mLoggingEnabled = loggingEnabled;
         new CacheAsyncTask().executeOnExecutor(getCacheExecutor(), MESSAGE_INIT_DISK_CACHE);
@@ -72,8 +152,8 @@ public abstract class ImageWorker {
     /**
      * Load an image specified by the data parameter into an ImageView (override
      * {@link ImageWorker#processBitmap(Object, DisplayOptions)} to define the processing logic). If the
-     * image is found in the memory cache, it is set immediately, otherwise an {@link AsyncTask}
-     * will be created to asynchronously load the bitmap.
+     * image is found in the memory cache, it is set immediately, otherwise the bitmap is loaded
+     * asynchronously by the background pipeline.
      *
      * @param data The URL of the image to download.
      * @param imageView The ImageView to bind the downloaded image to.
@@ -87,15 +167,52 @@ public abstract class ImageWorker {
             options = mDefaultDisplayOptions;
         }
 
+        final String cachedKey = getCachedKey(data, options);
         Bitmap bitmap = null;
+        // The key of the bitmap shown, another size's when a larger variant is used as is
+        String shownKey = cachedKey;
+        // The view is about to show something else
+        mActiveResources.release(imageView);
+        final Drawable previous = imageView.getDrawable();
 
         if (mMemoryCache != null && MemoryPolicy.shouldReadFromMemoryCache(options.getMemoryPolicy())) {
-            bitmap = mMemoryCache.get(getCachedKey(data, options));
+            // A bitmap still on screen is used even if the memory cache has evicted it
+            bitmap = mActiveResources.get(cachedKey);
+            if (bitmap != null) {
+                if (mMemoryCache.get(cachedKey) == null) {
+                    mActiveResources.recordSavedDecode();
+                    if (MemoryPolicy.shouldWriteToMemoryCache(options.getMemoryPolicy())) {
+                        putInMemoryCache(data, cachedKey, bitmap);
+                    }
+                }
+            } else {
+                bitmap = mMemoryCache.get(cachedKey);
+            }
+        }
+
+        Bitmap largerBitmap = null;
+        if (bitmap == null && mMemoryCache != null && options.hasSize()
+                && MemoryPolicy.shouldReadFromMemoryCache(options.getMemoryPolicy())) {
+            // The image may be in memory at another size
+            final String largerKey = findLargerVariant(data, options);
+            largerBitmap = largerKey != null ? mMemoryCache.get(largerKey) : null;
+            if (largerBitmap != null && isWithinSizeTolerance(largerBitmap, options)) {
+                if (mLoggingEnabled) {
+                    Log.d(TAG, "loadImage - " + data + " from memory at "
+                            + largerBitmap.getWidth() + "x" + largerBitmap.getHeight());
+                }
+                // Recorded under its own key, so that it is never cached under this one
+                bitmap = largerBitmap;
+                shownKey = largerKey;
+                largerBitmap = null;
+            }
         }
 
         if (bitmap != null) {
-            // Bitmap found in memory cache
+            // Bitmap found in memory
+            cancelWork(imageView);
             imageView.setImageBitmap(bitmap);
+            mActiveResources.activate(imageView, shownKey, bitmap);
             if (listener != null) {
                 listener.onImageLoaded(true);
             }
@@ -105,24 +222,21 @@ public abstract class ImageWorker {
 
         } else if (cancelPotentialWork(data, imageView)) {
             //BEGIN_INCLUDE(execute_background_task)
-            final BitmapWorkerTask task = new BitmapWorkerTask(data, imageView, options, listener);
+            final ImageRequest request = new ImageRequest(data, cachedKey, imageView, options, listener);
             final AsyncDrawable asyncDrawable =
-                    new AsyncDrawable(mResources, options.getLoadingBitmap(), task);
+                    new AsyncDrawable(mResources, options.getLoadingBitmap(), request);
             imageView.setImageDrawable(asyncDrawable);
-
-            // NOTE: This uses a custom version of AsyncTask that has been pulled from the
-            // framework and slightly modified. Refer to the docs at the top of the class
-            // for more info on what was changed.
-            task.executeOnExecutor(mLoadExecutor);
+            submitRequest(request, largerBitmap);
             //END_INCLUDE(execute_background_task)
         }
+        recycleFadeIn(imageView, previous);
     }
 
     /**
      * Load an image specified by the data parameter into an ImageView (override
      * {@link ImageWorker#processBitmap(Object, DisplayOptions)} to define the processing logic). If the
-     * image is found in the memory cache, it is set immediately, otherwise an {@link AsyncTask}
-     * will be created to asynchronously load the bitmap.
+     * image is found in the memory cache, it is set immediately, otherwise the bitmap is loaded
+     * asynchronously by the background pipeline.
      *
      * @param data The URL of the image to download.
      * @param imageView The ImageView to bind the downloaded image to.
@@ -131,9 +245,171 @@ public abstract class ImageWorker {
         loadImage(data, imageView, null, null);
     }
 
+    /**
+     * Loads an image for a {@link Target} instead of an ImageView, through the same memory and
+     * disk caches, sharing the work with the views and targets loading the same image at the
+     * same size. A target loading another image is cancelled first. Unlike loads into views,
+     * the load goes on while tasks are set to exit early. May be called on any thread; the target
+     * is called back on the main thread.
+     *
+     * @param data The URL of the image to download.
+     * @param target The target to hand the bitmap to.
+     */
+    public void loadImage(Object data, final Target target, DisplayOptions options) {
+        if (data == null || target == null) {
+            throw new IllegalArgumentException("Data and target must not be null.");
+        }
+        if (options == null) {
+            options = mDefaultDisplayOptions;
+        }
+        cancelWork(target);
+
+        final String cachedKey = getCachedKey(data, options);
+        final Bitmap bitmap = mMemoryCache != null && MemoryPolicy.shouldReadFromMemoryCache(options.getMemoryPolicy())
+                ? mMemoryCache.get(cachedKey) : null;
+        if (bitmap != null) {
+            if (mLoggingEnabled) {
+                Log.d(TAG, "loadImage - " + data + " from memory for " + target);
+            }
+            handOut(bitmap);
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                target.onBitmapLoaded(bitmap);
+            } else {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        target.onBitmapLoaded(bitmap);
+                    }
+                });
+            }
+            return;
+        }
+
+        final ImageRequest request = new ImageRequest(data, cachedKey, target, options);
+        synchronized (mTargetRequests) {
+            mTargetRequests.put(target, request);
+        }
+        submitRequest(request);
+    }
+
+    /**
+     * Starts loading an image like {@link #loadImage(Object, Target, DisplayOptions)} and returns
+     * a future for the bitmap. {@link Future#get()} blocks until the image is loaded and must not
+     * be called on the main thread, which delivers it. It returns null if the image could not be
+     * loaded. Cancelling the future stops the work unless a view or another target shares it.
+     */
+    public Future<Bitmap> submit(Object data, DisplayOptions options) {
+        final BitmapFuture future = new BitmapFuture(data);
+        loadImage(data, future, options);
+        return future;
+    }
+
+    /**
+     * Loads images ahead of time into the disk or memory cache, without an ImageView, so that the
+     * views bound to them later don't wait for the network. Prefetches run at
+     * {@link Priority#LOW}, a few at a time across all batches, and a batch stops once it has
+     * added its byte budget to the cache; see {@link #setPrefetchBudget(int, long)}. Images
+     * already in memory or being loaded are skipped, and a view asking for an image being
+     * prefetched joins that work instead of starting its own.
+     *
+     * @param data The images to load, the most wanted first.
+     * @param options The options the views will load the images with, so that they hit the same
+     *                cache entries, or null for the default ones.
+     * @param target The cache to warm.
+     * @return The batch, to be cancelled once its images are no longer wanted.
+     */
+    public Prefetch prefetch(Collection<?> data, DisplayOptions options, PrefetchTarget target) {
+        if (data == null || target == null) {
+            throw new IllegalArgumentException("Data and target must not be null.");
+        }
+        if (options == null) {
+            options = mDefaultDisplayOptions;
+        }
+        final DisplayOptions.Builder builder = new DisplayOptions.Builder()
+                .copyFrom(options)
+                .priority(Priority.LOW);
+        final boolean canCache;
+        if (target == PrefetchTarget.DISK_ONLY) {
+            // Kept out of memory, where it would evict what is on screen
+            builder.memoryPolicy(options.getMemoryPolicy() | MemoryPolicy.NO_STORE.index);
+            canCache = mDiskCache != null && DiskPolicy.shouldWriteToDiskCache(options.getDiskPolicy());
+        } else {
+            canCache = mMemoryCache != null && MemoryPolicy.shouldWriteToMemoryCache(options.getMemoryPolicy());
+        }
+        final Prefetch prefetch;
+        synchronized (mPrefetches) {
+            prefetch = new Prefetch(canCache ? data : Collections.emptyList(), builder.build(), target,
+                    mMaxPrefetchBytes);
+            mPrefetches.add(prefetch);
+        }
+        if (mLoggingEnabled) {
+            Log.d(TAG, "prefetch - " + prefetch.mPending.size() + " images to " + target);
+        }
+        runPrefetches();
+        return prefetch;
+    }
+
+    /**
+     * Sets how many prefetched images may load at once across all batches, and how many bytes a
+     * batch may add to the cache it warms: decoded bitmaps for {@link PrefetchTarget#MEMORY},
+     * stored sources for {@link PrefetchTarget#DISK_ONLY}. Defaults to
+     * {@value #DEFAULT_MAX_PREFETCH_TASKS} images and 8 Mb. The byte budget applies to the batches
+     * started afterwards.
+     */
+    public void setPrefetchBudget(int maxTasks, long maxBytes) {
+        if (maxTasks <= 0) throw new IllegalArgumentException("maxTasks must be a positive number");
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be a positive number");
+        synchronized (mPrefetches) {
+            mMaxPrefetchTasks = maxTasks;
+            mMaxPrefetchBytes = maxBytes;
+        }
+        runPrefetches();
+    }
+
+    /** Starts prefetch tasks while the budget allows, from the most recent batch first. */
+    private void runPrefetches() {
+        List<BitmapWorkerTask> started = null;
+        synchronized (mPrefetches) {
+            for (int i = mPrefetches.size() - 1; i >= 0 && mPrefetchTasks < mMaxPrefetchTasks; i--) {
+                final Prefetch prefetch = mPrefetches.get(i);
+                BitmapWorkerTask task;
+                while (mPrefetchTasks < mMaxPrefetchTasks && (task = prefetch.next()) != null) {
+                    mPrefetchTasks++;
+                    if (started == null) {
+                        started = new ArrayList<BitmapWorkerTask>();
+                    }
+                    started.add(task);
+                }
+                if (prefetch.mPending.isEmpty()) {
+                    // Nothing left to start, the batch only waits for its running tasks
+                    mPrefetches.remove(i);
+                }
+            }
+        }
+        if (started != null) {
+            for (int i = 0, count = started.size(); i < count; i++) {
+                started.get(i).start(null);
+            }
+        }
+    }
+
+    /** Frees the budget taken by a prefetch task once its result is in. Main thread only. */
+    private void onPrefetchDone(Prefetch prefetch, BitmapWorkerTask task) {
+        synchronized (mPrefetches) {
+            if (!prefetch.mRunning.remove(task)) {
+                // The batch was cancelled and freed it already
+                return;
+            }
+            mPrefetchTasks--;
+            prefetch.mCachedBytes += task.mCachedBytes;
+        }
+        runPrefetches();
+    }
+
     public void setExitTasksEarly(boolean exitTasksEarly) {
         mExitTasksEarly = exitTasksEarly;
         setPauseWork(false);
+        setPauseNetworkWork(false);
     }
 
     /**
@@ -147,150 +423,952 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(Object data, DisplayOptions options);
 
-    protected abstract String getCachedKey(Object data, DisplayOptions options);
+    /**
+     * Like {@link #processBitmap(Object, DisplayOptions)}, giving up as soon as
+     * {@code cancellation} is cancelled: when the view no longer wants the image, the connection
+     * being read is closed and the decode in progress is stopped. Defaults to ignoring the token.
+     *
+     * @return The processed bitmap, or null if cancelled
+     */
+    protected Bitmap processBitmap(Object data, DisplayOptions options, CancellationToken cancellation) {
+        return processBitmap(data, options);
+    }
+
+    protected abstract String getCachedKey(Object data, DisplayOptions options);
+
+    /**
+     * Returns the key identifying the source of an image regardless of the size it is displayed
+     * at. Used to store the original bytes when the disk cache is in {@link DiskCacheMode#SOURCE}.
+     */
+    protected abstract String getSourceKey(Object data);
+
+    /**
+     * Returns true if the image must be fetched over the network. Such work runs on the network
+     * executor so it never holds up disk hits and decodes.
+     */
+    protected abstract boolean isRemote(Object data);
+
+    /**
+     * Fetches a source and stores its bytes in the disk cache without decoding them, for a remote
+     * source or any source prefetched to disk. Only called when
+     * {@link #canStoreSource(DisplayOptions)} is true.
+     *
+     * @return true if the source was stored in the disk cache under {@link #getSourceKey(Object)}
+     */
+    protected abstract boolean fetchSource(Object data, DisplayOptions options,
+                                           CancellationToken cancellation);
+
+    /**
+     * Fetches a remote source, stores its bytes in the disk cache and decodes it, reading it from
+     * the network once. Only called when {@link #canStoreSource(DisplayOptions)} is true.
+     *
+     * @return the decoded bitmap, or null if it was not decoded here. The source may still have
+     *         been stored, by a download of it already in progress for instance, and is then
+     *         decoded from the disk cache.
+     */
+    protected abstract Bitmap fetchAndDecodeSource(Object data, DisplayOptions options,
+                                                   CancellationToken cancellation);
+
+    /** Returns true if a fetched source will be stored on disk, where any request can decode it. */
+    protected boolean canStoreSource(DisplayOptions options) {
+        return mDiskCache != null && mDiskCacheMode == DiskCacheMode.SOURCE
+                && DiskPolicy.shouldWriteToDiskCache(options.getDiskPolicy())
+                && DiskPolicy.shouldReadFromDiskCache(options.getDiskPolicy());
+    }
+
+    /**
+     * Cancels any pending work attached to the provided ImageView. Work shared with other views
+     * keeps running for them; it is only stopped once no view is waiting for it any more.
+     * @param imageView
+     */
+    public static void cancelWork(ImageView imageView) {
+        final ImageRequest request = getImageRequest(imageView);
+        if (request != null) {
+            request.cancel();
+            if (request.isLoggingEnabled()) {
+                final Object bitmapData = request.mData;
+                Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
+            }
+        }
+    }
+
+    /**
+     * Cancels the load in progress for a {@link Target}, if any. Work shared with views or other
+     * targets keeps running for them.
+     */
+    public void cancelWork(Target target) {
+        final ImageRequest request;
+        synchronized (mTargetRequests) {
+            request = mTargetRequests.remove(target);
+        }
+        if (request != null) {
+            request.cancel();
+            if (mLoggingEnabled) {
+                Log.d(TAG, "cancelWork - cancelled work for " + request.mData);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the current work has been canceled or if there was no work in
+     * progress on this image view.
+     * Returns false if the work in progress deals with the same data. The work is not
+     * stopped in that case.
+     */
+    public static boolean cancelPotentialWork(Object data, ImageView imageView) {
+        //BEGIN_INCLUDE(cancel_potential_work)
+        final ImageRequest request = getImageRequest(imageView);
+
+        if (request != null) {
+            final Object bitmapData = request.mData;
+            if (bitmapData == null || !bitmapData.equals(data)) {
+                request.cancel();
+                if (request.isLoggingEnabled()) {
+                    Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
+                }
+            } else {
+                // The same work is already in progress.
+                return false;
+            }
+        }
+        return true;
+        //END_INCLUDE(cancel_potential_work)
+    }
+
+    /**
+     * @param imageView Any imageView
+     * @return Retrieve the currently active request (if any) associated with this imageView.
+     * null if there is no such request.
+     */
+    private static ImageRequest getImageRequest(ImageView imageView) {
+        if (imageView != null) {
+            final Drawable drawable = imageView.getDrawable();
+            if (drawable instanceof AsyncDrawable) {
+                final AsyncDrawable asyncDrawable = (AsyncDrawable) drawable;
+                return asyncDrawable.getImageRequest();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attaches a request to the task already loading the same cache key, or starts a new task
+     * for it. Views showing the same image at the same size then share one download and decode.
+     */
+    private void submitRequest(ImageRequest request) {
+        submitRequest(request, null);
+    }
+
+    /**
+     * @param largerBitmap a cached bitmap of the same image to scale down instead of decoding,
+     *                     or null
+     */
+    private void submitRequest(ImageRequest request, Bitmap largerBitmap) {
+        final BitmapWorkerTask task;
+        final boolean joined;
+        synchronized (mInFlightTasks) {
+            final BitmapWorkerTask inFlight = mInFlightTasks.get(request.mCachedKey);
+            joined = inFlight != null && inFlight.canShareWith(request);
+            if (joined) {
+                task = inFlight;
+                if (mLoggingEnabled) {
+                    Log.d(TAG, "submitRequest - " + request.mData + " joined work in progress");
+                }
+            } else {
+                task = new BitmapWorkerTask(request.mData, request.mCachedKey, request.mDisplayOptions);
+                if (inFlight == null) {
+                    mInFlightTasks.put(request.mCachedKey, task);
+                }
+            }
+            task.attach(request);
+        }
+
+        if (joined) {
+            // The newest view asking for the image is the one on screen, move the work forward
+            task.promote(request.mDisplayOptions.getPriority());
+        } else {
+            task.start(largerBitmap);
+        }
+    }
+
+    /**
+     * Detaches a request from its task. The task itself is only cancelled once no other request
+     * is attached to it.
+     */
+    private void detachRequest(ImageRequest request) {
+        BitmapWorkerTask abandoned = null;
+        synchronized (mInFlightTasks) {
+            final BitmapWorkerTask task = request.mTask;
+            if (task == null) {
+                return;
+            }
+            task.mRequests.remove(request);
+            request.mTask = null;
+            if (task.mRequests.isEmpty() && !task.mDelivering && !task.isWantedByPrefetch()) {
+                removeInFlightTask(task);
+                abandoned = task;
+            }
+        }
+        if (abandoned != null) {
+            abandoned.cancel();
+        }
+    }
+
+    /** Must be called with the {@link #mInFlightTasks} lock held. */
+    private void removeInFlightTask(BitmapWorkerTask task) {
+        if (mInFlightTasks.get(task.mCachedKey) == task) {
+            mInFlightTasks.remove(task.mCachedKey);
+        }
+    }
+
+    /**
+     * A request to display an image in one ImageView, or to hand it to one {@link Target}.
+     * Several requests for the same cache key share a single {@link BitmapWorkerTask}.
+     */
+    private class ImageRequest {
+        private final Object mData;
+        private final String mCachedKey;
+        private final WeakReference<ImageView> imageViewReference;
+        /** The target to hand the bitmap to instead of a view, held until it is delivered. */
+        private final Target mTarget;
+        private final DisplayOptions mDisplayOptions;
+        private final OnImageLoadedListener mOnImageLoadedListener;
+        /** The task producing the bitmap, guarded by {@link #mInFlightTasks}. */
+        private BitmapWorkerTask mTask;
+        private volatile boolean mCancelled;
+
+        ImageRequest(Object data, String cachedKey, ImageView imageView, DisplayOptions options, OnImageLoadedListener listener) {
+            mData = data;
+            mCachedKey = cachedKey;
+            imageViewReference = new WeakReference<ImageView>(imageView);
+            mTarget = null;
+            mDisplayOptions = options;
+            mOnImageLoadedListener = listener;
+        }
+
+        ImageRequest(Object data, String cachedKey, Target target, DisplayOptions options) {
+            mData = data;
+            mCachedKey = cachedKey;
+            imageViewReference = null;
+            mTarget = target;
+            mDisplayOptions = options;
+            mOnImageLoadedListener = null;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            detachRequest(this);
+        }
+
+        /** Returns true if the request still waits for its bitmap. */
+        boolean isWaiting() {
+            if (mTarget != null) {
+                return !mCancelled;
+            }
+            return !mExitTasksEarly && getAttachedImageView() != null;
+        }
+
+        /** Hands the result to the target, unless the request was cancelled. Main thread only. */
+        void deliverToTarget(Bitmap bitmap) {
+            synchronized (mTargetRequests) {
+                if (mCancelled || mTargetRequests.get(mTarget) != this) {
+                    return;
+                }
+                mTargetRequests.remove(mTarget);
+            }
+            if (bitmap != null) {
+                handOut(bitmap);
+                mTarget.onBitmapLoaded(bitmap);
+            } else {
+                mTarget.onBitmapFailed();
+            }
+        }
+
+        boolean isLoggingEnabled() {
+            return mLoggingEnabled;
+        }
+
+        /**
+         * Returns the ImageView associated with this request as long as the ImageView's request
+         * still points to this request as well. Returns null otherwise.
+         */
+        ImageView getAttachedImageView() {
+            if (imageViewReference == null) {
+                return null;
+            }
+            final ImageView imageView = imageViewReference.get();
+            final ImageRequest request = getImageRequest(imageView);
+
+            if (this == request) {
+                return imageView;
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * A batch of images loaded ahead of time by {@link #prefetch}. Cancelling it drops the images
+     * not started yet and stops the ones loading that no view has asked for since.
+     */
+    public final class Prefetch {
+        private final DisplayOptions mDisplayOptions;
+        private final PrefetchTarget mTarget;
+        private final long mMaxBytes;
+        /** Images left to start, guarded by {@link #mPrefetches} like the fields below. */
+        private final ArrayDeque<Object> mPending;
+        private final List<BitmapWorkerTask> mRunning = new ArrayList<BitmapWorkerTask>();
+        private long mCachedBytes;
+        private volatile boolean mCancelled;
+
+        private Prefetch(Collection<?> data, DisplayOptions options, PrefetchTarget target, long maxBytes) {
+            mDisplayOptions = options;
+            mTarget = target;
+            mMaxBytes = maxBytes;
+            mPending = new ArrayDeque<Object>(Math.max(1, data.size()));
+            for (Object item : data) {
+                if (item != null) {
+                    mPending.add(item);
+                }
+            }
+        }
+
+        /**
+         * Returns the task for the next image that needs loading, or null once there is none or
+         * the byte budget is spent. Must be called with the {@link #mPrefetches} lock held.
+         */
+        private BitmapWorkerTask next() {
+            if (mCachedBytes >= mMaxBytes) {
+                mPending.clear();
+            }
+            Object data;
+            while ((data = mPending.poll()) != null) {
+                final String cachedKey = getCachedKey(data, mDisplayOptions);
+                if (mTarget == PrefetchTarget.MEMORY && isInMemoryCache(cachedKey)) {
+                    continue;
+                }
+                synchronized (mInFlightTasks) {
+                    if (mInFlightTasks.containsKey(cachedKey)) {
+                        // Already being loaded, for a view or another batch
+                        continue;
+                    }
+                    final BitmapWorkerTask task = new BitmapWorkerTask(data, cachedKey, mDisplayOptions, this);
+                    // Views asking for the image join the work, or wait for the source to be stored
+                    mInFlightTasks.put(cachedKey, task);
+                    mRunning.add(task);
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Stops the batch. Images a view has asked for in the meantime keep loading for it.
+         */
+        public void cancel() {
+            final List<BitmapWorkerTask> running;
+            synchronized (mPrefetches) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                mPending.clear();
+                mPrefetches.remove(this);
+                running = new ArrayList<BitmapWorkerTask>(mRunning);
+                mRunning.clear();
+                mPrefetchTasks -= running.size();
+            }
+            for (int i = 0, count = running.size(); i < count; i++) {
+                final BitmapWorkerTask task = running.get(i);
+                final boolean abandoned;
+                synchronized (mInFlightTasks) {
+                    abandoned = task.mRequests.isEmpty() && !task.mDelivering;
+                    if (abandoned) {
+                        removeInFlightTask(task);
+                    }
+                }
+                if (abandoned) {
+                    task.cancel();
+                }
+            }
+            if (mLoggingEnabled) {
+                Log.d(TAG, "prefetch - cancelled, " + running.size() + " images stopped");
+            }
+            runPrefetches();
+        }
+
+        /** Returns true once every image of the batch has been loaded or skipped, or it was cancelled. */
+        public boolean isDone() {
+            synchronized (mPrefetches) {
+                return mPending.isEmpty() && mRunning.isEmpty();
+            }
+        }
+
+        /** Returns the number of bytes the batch has added to its cache so far. */
+        public long getCachedBytes() {
+            synchronized (mPrefetches) {
+                return mCachedBytes;
+            }
+        }
+    }
+
+    /**
+     * The work needed to produce one bitmap, on behalf of every {@link ImageRequest} attached to
+     * it. The work runs as a pipeline of stages, each on its own executor:
+     * <ol>
+     *     <li>disk: looks the image up in the disk cache</li>
+     *     <li>network: fetches remote sources, storing their bytes in the disk cache in
+     *         {@link DiskCacheMode#SOURCE}</li>
+     *     <li>decode: decodes disk hits and fetched sources, and processes local sources</li>
+     * </ol>
+     * A disk hit therefore never waits behind slow downloads, and decoding runs at most as many
+     * images in parallel as the decode executor has threads. The result is delivered on the main
+     * thread.
+     */
+    private class BitmapWorkerTask {
+        private final Object mData;
+        private final String mCachedKey;
+        private final DisplayOptions mDisplayOptions;
+        /** Requests waiting for the result, guarded by {@link #mInFlightTasks}. */
+        private final List<ImageRequest> mRequests = new ArrayList<ImageRequest>(2);
+        /** Set once the result is being handed out and no more requests may attach. */
+        private boolean mDelivering;
+        /** Set if the work was skipped because no view was waiting for it. */
+        private volatile boolean mAbandoned;
+        private volatile boolean mCancelled;
+        /** Cancelled with the task, to abort the download or decode of the current stage. */
+        private final CancellationToken mCancellation = new CancellationToken();
+
+        /** The file to decode, set by the disk or network stage. */
+        private File mSourceFile;
+        /** The bytes to decode instead, when the disk cache is a {@link BlobDiskCache}. */
+        private byte[] mSourceBytes;
+        private boolean mFromDiskCache;
+        /** Set if the disk cache entry being decoded has expired and must be refreshed. */
+        private boolean mStale;
+        /** Set for the background refresh of a stale entry, which no view waits for. */
+        private final boolean mRevalidation;
+        /** Set by a refresh if the image it fetched differs from the one in memory. */
+        private boolean mChanged;
+        /** The prefetch batch the work was started for, or null. */
+        private final Prefetch mPrefetch;
+        /** Set for a {@link PrefetchTarget#DISK_ONLY} prefetch, which views wait for rather than share. */
+        private final boolean mDiskOnly;
+        /** Bytes the work added to the cache its prefetch warms. */
+        private long mCachedBytes;
+
+        /** Guards the fields below. */
+        private final Object mStageLock = new Object();
+        /** Order of the stages of this task in their executor queues. */
+        private Priority mPriority;
+        private long mSequence;
+        private ExecutorService mStageExecutor;
+        private Stage mPendingStage;
+        private Thread mStageThread;
+        /** A larger cached bitmap of the image, scaled down instead of decoding. */
+        private Bitmap mScaleSource;
+
+        public BitmapWorkerTask(Object data, String cachedKey, DisplayOptions options) {
+            this(data, cachedKey, options, false);
+        }
+
+        BitmapWorkerTask(Object data, String cachedKey, DisplayOptions options, boolean revalidation) {
+            this(data, cachedKey, options, revalidation, null);
+        }
+
+        BitmapWorkerTask(Object data, String cachedKey, DisplayOptions options, Prefetch prefetch) {
+            this(data, cachedKey, options, false, prefetch);
+        }
+
+        private BitmapWorkerTask(Object data, String cachedKey, DisplayOptions options,
+                                 boolean revalidation, Prefetch prefetch) {
+            mData = data;
+            mCachedKey = cachedKey;
+            mDisplayOptions = options;
+            mRevalidation = revalidation;
+            mPrefetch = prefetch;
+            mDiskOnly = prefetch != null && prefetch.mTarget == PrefetchTarget.DISK_ONLY;
+            mPriority = options.getPriority();
+            mSequence = mStageSequence.incrementAndGet();
+        }
+
+        /**
+         * Returns true if the request can wait for this work. A request waiting for a
+         * {@link PrefetchTarget#DISK_ONLY} prefetch is submitted again once the source is stored,
+         * so it must read the disk cache. Must be called with the {@link #mInFlightTasks} lock held.
+         */
+        boolean canShareWith(ImageRequest request) {
+            if (mDelivering || mCancelled) {
+                return false;
+            }
+            if (mDiskOnly) {
+                return DiskPolicy.shouldReadFromDiskCache(request.mDisplayOptions.getDiskPolicy());
+            }
+            return mDisplayOptions.getMemoryPolicy() == request.mDisplayOptions.getMemoryPolicy()
+                    && mDisplayOptions.getDiskPolicy() == request.mDisplayOptions.getDiskPolicy();
+        }
+
+        /** Must be called with the {@link #mInFlightTasks} lock held. */
+        void attach(ImageRequest request) {
+            mRequests.add(request);
+            request.mTask = this;
+        }
+
+        /** Returns true if the work was started for a prefetch batch that still wants it. */
+        boolean isWantedByPrefetch() {
+            return mPrefetch != null && !mPrefetch.mCancelled;
+        }
+
+        /**
+         * Returns true if at least one attached request is still waiting: a view still bound to
+         * it, or a target.
+         */
+        boolean hasWaitingRequest() {
+            synchronized (mInFlightTasks) {
+                for (int i = 0, count = mRequests.size(); i < count; i++) {
+                    if (mRequests.get(i).isWaiting()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /** Stops accepting requests and returns the ones attached so far. */
+        private List<ImageRequest> finish() {
+            synchronized (mInFlightTasks) {
+                mDelivering = true;
+                removeInFlightTask(this);
+                final List<ImageRequest> requests = new ArrayList<ImageRequest>(mRequests);
+                for (int i = 0, count = mRequests.size(); i < count; i++) {
+                    mRequests.get(i).mTask = null;
+                }
+                mRequests.clear();
+                return requests;
+            }
+        }
+
+        void start(Bitmap largerBitmap) {
+            if (largerBitmap != null) {
+                // Keep the bitmap out of the pool until it has been scaled
+                pinBitmap(largerBitmap);
+                mScaleSource = largerBitmap;
+                schedule(mDecodeExecutor, new ScaleStage());
+            } else {
+                schedule(mDiskExecutor, new DiskStage());
+            }
+        }
+
+        /** Takes the bitmap to scale down, at most once. */
+        private Bitmap takeScaleSource() {
+            synchronized (mStageLock) {
+                final Bitmap bitmap = mScaleSource;
+                mScaleSource = null;
+                return bitmap;
+            }
+        }
+
+        private void releaseScaleSource() {
+            final Bitmap bitmap = takeScaleSource();
+            if (bitmap != null) {
+                unpinBitmap(bitmap);
+            }
+        }
+
+        /**
+         * Makes the work the most recent request at the given priority or higher. A stage waiting
+         * in its executor queue is taken out and queued again at its new place.
+         */
+        void promote(Priority priority) {
+            Stage requeued = null;
+            final ExecutorService executor;
+            synchronized (mStageLock) {
+                executor = mStageExecutor;
+                if (mPendingStage != null && executor instanceof ThreadPoolExecutor
+                        && ((ThreadPoolExecutor) executor).remove(mPendingStage)) {
+                    requeued = mPendingStage;
+                }
+                if (priority.compareTo(mPriority) > 0) {
+                    mPriority = priority;
+                }
+                mSequence = mStageSequence.incrementAndGet();
+                // A stage is only reordered while out of the queue, never in place
+                if (requeued != null) {
+                    requeued.mPriority = mPriority;
+                    requeued.mSequence = mSequence;
+                }
+            }
+            if (requeued != null) {
+                schedule(executor, requeued);
+            }
+        }
+
+        /**
+         * Stops the work. A stage still queued is removed from its executor and the thread running
+         * the current stage, if any, is interrupted. Its download and decode are aborted through
+         * the cancellation token, since neither checks for interrupts. Nothing is delivered
+         * afterwards.
+         */
+        void cancel() {
+            mCancelled = true;
+            synchronized (mStageLock) {
+                if (mPendingStage != null && mStageExecutor instanceof ThreadPoolExecutor) {
+                    ((ThreadPoolExecutor) mStageExecutor).remove(mPendingStage);
+                }
+                if (mStageThread != null) {
+                    mStageThread.interrupt();
+                }
+            }
+            mCancellation.cancel();
+            releaseScaleSource();
+            synchronized (mPauseWorkLock) {
+                mPauseWorkLock.notifyAll();
+            }
+        }
+
+        /** Returns true if the work is still wanted by at least one view. */
+        private boolean shouldContinue() {
+            return !mCancelled && ((!mExitTasksEarly && (mRevalidation || isWantedByPrefetch()))
+                    || hasWaitingRequest());
+        }
+
+        private void schedule(ExecutorService executor, Stage stage) {
+            synchronized (mStageLock) {
+                mStageExecutor = executor;
+                mPendingStage = stage;
+            }
+            try {
+                executor.execute(stage);
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "schedule - " + mData + " rejected " + e);
+                releaseScaleSource();
+                complete(null);
+            }
+        }
+
+        /**
+         * One step of the pipeline. Each stage either hands the work to the next stage or
+         * completes it. In an executor with a priority queue, stages run by priority and then
+         * most recent request first.
+         */
+        private abstract class Stage implements Runnable, Comparable<Stage> {
+            Priority mPriority;
+            long mSequence;
+
+            Stage() {
+                synchronized (mStageLock) {
+                    mPriority = BitmapWorkerTask.this.mPriority;
+                    mSequence = BitmapWorkerTask.this.mSequence;
+                }
+            }
+
+            @Override
+            public int compareTo(Stage another) {
+                final int byPriority = another.mPriority.compareTo(mPriority);
+                if (byPriority != 0) {
+                    return byPriority;
+                }
+                return mSequence < another.mSequence ? 1 : (mSequence == another.mSequence ? 0 : -1);
+            }
+
+            @Override
+            public final void run() {
+                synchronized (mStageLock) {
+                    if (mPendingStage == this) {
+                        mPendingStage = null;
+                    }
+                    mStageThread = Thread.currentThread();
+                }
+                try {
+                    if (!mCancelled) {
+                        runStage();
+                    }
+                } finally {
+                    synchronized (mStageLock) {
+                        mStageThread = null;
+                        // Don't leak an interrupt meant for this task to the next one on the thread
+                        Thread.interrupted();
+                    }
+                }
+            }
+
+            abstract void runStage();
+        }
+
+        private class ScaleStage extends Stage {
+            @Override
+            void runStage() {
+                final Bitmap source = takeScaleSource();
+                if (source == null) {
+                    return;
+                }
+                Bitmap bitmap = null;
+                try {
+                    if (!shouldContinue()) {
+                        abandon();
+                        return;
+                    }
+                    bitmap = ImageDecodeHelper.scaleBitmap(source, mDisplayOptions);
+                } finally {
+                    unpinBitmap(source);
+                }
+                if (bitmap == null) {
+                    schedule(mDiskExecutor, new DiskStage());
+                    return;
+                }
+                if (mLoggingEnabled) {
+                    Log.d(TAG, "doInBackground - " + mData + " scaled down from memory");
+                }
+                complete(bitmap);
+            }
+        }
+
+        private class DiskStage extends Stage {
+            @Override
+            void runStage() {
+                //BEGIN_INCLUDE(load_bitmap_in_background)
+                // Wait here if work is paused and the task is not cancelled
+                synchronized (mPauseWorkLock) {
+                    while (mPauseWork && !mCancelled) {
+                        try {
+                            mPauseWorkLock.wait();
+                        } catch (InterruptedException e) {}
+                    }
+                }
+
+                if (!shouldContinue()) {
+                    abandon();
+                    return;
+                }
 
-    /**
-     * Cancels any pending work attached to the provided ImageView.
-     * @param imageView
-     */
-    public static void cancelWork(ImageView imageView) {
-        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-        if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
-            if (true) {
-                final Object bitmapData = bitmapWorkerTask.mData;
-                Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
+                // If the image cache is available and at least one ImageView waiting for this
+                // task is still bound back to it, then try and fetch the image from the cache
+                if (mDiskCache != null
+                        && DiskPolicy.shouldReadFromDiskCache(mDisplayOptions.getDiskPolicy())) {
+                    final String diskKey = mDiskCacheMode == DiskCacheMode.SOURCE
+                            ? getSourceKey(mData) : mCachedKey;
+                    if (readDiskCache(diskKey)) {
+                        if (mDiskOnly) {
+                            // Already prefetched
+                            mSourceFile = null;
+                            mSourceBytes = null;
+                            complete(null);
+                            return;
+                        }
+                        if (mLoggingEnabled) {
+                            Log.d(TAG, "doInBackground - " + mData + " from disk cache");
+                        }
+                        mFromDiskCache = true;
+                        schedule(mDecodeExecutor, new DecodeStage());
+                        return;
+                    }
+                    // An expired entry is fetched again, or revalidated, by a prefetch
+                    if (!mDiskOnly && readStaleDiskCache(diskKey)) {
+                        if (mLoggingEnabled) {
+                            Log.d(TAG, "doInBackground - " + mData + " stale from disk cache");
+                        }
+                        mFromDiskCache = true;
+                        mStale = true;
+                        schedule(mDecodeExecutor, new DecodeStage());
+                        return;
+                    }
+                }
+
+                scheduleSource();
             }
         }
-    }
-
-    /**
-     * Returns true if the current work has been canceled or if there was no work in
-     * progress on this image view.
-     * Returns false if the work in progress deals with the same data. The work is not
-     * stopped in that case.
-     */
-    public static boolean cancelPotentialWork(Object data, ImageView imageView) {
-        //BEGIN_INCLUDE(cancel_potential_work)
-        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 
-        if (bitmapWorkerTask != null) {
-            final Object bitmapData = bitmapWorkerTask.mData;
-            if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
-                if (true) {
-                    Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
+        /** Points the decode stage at the entry stored under {@code diskKey}, if there is one. */
+        private boolean readDiskCache(String diskKey) {
+            if (mDiskCache instanceof BlobDiskCache) {
+                final byte[] bytes = ((BlobDiskCache) mDiskCache).getBytes(diskKey);
+                if (bytes != null && bytes.length > 0) {
+                    mSourceBytes = bytes;
+                    return true;
                 }
-            } else {
-                // The same work is already in progress.
                 return false;
             }
+            final File file = mDiskCache.get(diskKey);
+            if (file != null && file.exists() && file.length() > 0) {
+                mSourceFile = file;
+                return true;
+            }
+            return false;
         }
-        return true;
-        //END_INCLUDE(cancel_potential_work)
-    }
 
-    /**
-     * @param imageView Any imageView
-     * @return Retrieve the currently active work task (if any) associated with this imageView.
-     * null if there is no such task.
-     */
-    private static BitmapWorkerTask getBitmapWorkerTask(ImageView imageView) {
-        if (imageView != null) {
-            final Drawable drawable = imageView.getDrawable();
-            if (drawable instanceof AsyncDrawable) {
-                final AsyncDrawable asyncDrawable = (AsyncDrawable) drawable;
-                return asyncDrawable.getBitmapWorkerTask();
+        /** Points the decode stage at an expired entry, if the request accepts one. */
+        private boolean readStaleDiskCache(String diskKey) {
+            if (!(mDiskCache instanceof ExpiringDiskCache)
+                    || !DiskPolicy.shouldServeStale(mDisplayOptions.getDiskPolicy())) {
+                return false;
             }
+            final File file = ((ExpiringDiskCache) mDiskCache).getStale(diskKey);
+            if (file != null && file.exists() && file.length() > 0) {
+                mSourceFile = file;
+                return true;
+            }
+            return false;
         }
-        return null;
-    }
-
-    /**
-     * The actual AsyncTask that will asynchronously process the image.
-     */
-    private class BitmapWorkerTask extends AsyncTask<Void, Void, Bitmap> {
-        private Object mData;
-        private final WeakReference<ImageView> imageViewReference;
-        private final DisplayOptions mDisplayOptions;
-        private final OnImageLoadedListener mOnImageLoadedListener;
-
-        /*public BitmapWorkerTask(Object data, ImageView imageView) {
-            mData = data;
-            imageViewReference = new WeakReference<ImageView>(imageView);
-            ImageOptions = null;
-            mOnImageLoadedListener = null;
-        }*/
 
-        public BitmapWorkerTask(Object data, ImageView imageView, DisplayOptions options, OnImageLoadedListener listener) {
-            mData = data;
-            imageViewReference = new WeakReference<ImageView>(imageView);
-            mDisplayOptions = options;
-            mOnImageLoadedListener = listener;
+        /** Sends the work to the stage that fetches or processes the original source. */
+        private void scheduleSource() {
+            mSourceFile = null;
+            mSourceBytes = null;
+            mStale = false;
+            mFromDiskCache = false;
+            if (isRemote(mData)) {
+                schedule(mNetworkExecutor, new NetworkStage());
+            } else {
+                schedule(mDecodeExecutor, new DecodeStage());
+            }
         }
 
         /**
-         * Background processing.
+         * Stores the source on disk without decoding it, for a {@link PrefetchTarget#DISK_ONLY}
+         * prefetch.
          */
-        @Override
-        protected Bitmap doInBackground(Void... params) {
-            //BEGIN_INCLUDE(load_bitmap_in_background)
-            final String cachedKey = getCachedKey(mData, mDisplayOptions);
-            Bitmap bitmap = null;
+        private void prefetchSource() {
+            if (fetchSource(mData, mDisplayOptions, mCancellation) && readDiskCache(getSourceKey(mData))) {
+                mCachedBytes = mSourceBytes != null ? mSourceBytes.length : mSourceFile.length();
+                mSourceFile = null;
+                mSourceBytes = null;
+                if (mLoggingEnabled) {
+                    Log.d(TAG, "doInBackground - " + mData + " prefetched to disk cache");
+                }
+            }
+            complete(null);
+        }
 
-            // Wait here if work is paused and the task is not cancelled
-            synchronized (mPauseWorkLock) {
-                while (mPauseWork && !isCancelled()) {
-                    try {
-                        mPauseWorkLock.wait();
-                    } catch (InterruptedException e) {}
-                }
-            }
-
-            // If the image cache is available and this task has not been cancelled by another
-            // thread and the ImageView that was originally bound to this task is still bound back
-            // to this task and our "exit early" flag is not set then try and fetch the bitmap from
-            // the cache
-            if (mDiskCache != null && !isCancelled() && getAttachedImageView() != null
-                    && DiskPolicy.shouldReadFromDiskCache(mDisplayOptions.getDiskPolicy())
-                    && !mExitTasksEarly) {
-                File file = mDiskCache.get(cachedKey);
-                if (file != null && file.exists() && file.length() > 0) {
-                    bitmap = processBitmap(StringImageProcessor.Scheme.FILE.wrap(file.getAbsolutePath()), mDisplayOptions);
+        private class NetworkStage extends Stage {
+            @Override
+            void runStage() {
+                // Wait here if network work is paused and the task is not cancelled
+                synchronized (mPauseWorkLock) {
+                    while (mPauseNetworkWork && !mCancelled) {
+                        try {
+                            mPauseWorkLock.wait();
+                        } catch (InterruptedException e) {}
+                    }
+                }
+
+                if (!shouldContinue()) {
+                    abandon();
+                    return;
+                }
+
+                if (mDiskOnly && canStoreSource(mDisplayOptions)) {
+                    prefetchSource();
+                    return;
+                }
+
+                if (canStoreSource(mDisplayOptions)) {
+                    // The source is decoded while it is written to the disk cache
+                    final Bitmap bitmap = fetchAndDecodeSource(mData, mDisplayOptions, mCancellation);
+                    if (bitmap == null && !mCancelled && readDiskCache(getSourceKey(mData))) {
+                        if (mLoggingEnabled) {
+                            Log.d(TAG, "doInBackground - " + mData + " fetched from source");
+                        }
+                        schedule(mDecodeExecutor, new DecodeStage());
+                        return;
+                    }
+                    if (mCancelled) {
+                        return;
+                    }
                     if (mLoggingEnabled) {
-                        Log.d(TAG, "doInBackground - " + mData + " from disk cache");
+                        Log.d(TAG, "doInBackground - " + mData + " decoded from source");
                     }
+                    complete(bitmap);
+                    return;
                 }
-            }
 
-            // If the bitmap was not found in the cache and this task has not been cancelled by
-            // another thread and the ImageView that was originally bound to this task is still
-            // bound back to this task and our "exit early" flag is not set, then call the main
-            // process method (as implemented by a subclass)
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = processBitmap(mData, mDisplayOptions);
+                // Without a disk copy the stream is decoded while it is read
+                final Bitmap bitmap = processBitmap(mData, mDisplayOptions, mCancellation);
                 if (mLoggingEnabled) {
                     Log.d(TAG, "doInBackground - " + mData + " from source");
                 }
+                complete(bitmap);
+            }
+        }
+
+        private class DecodeStage extends Stage {
+            @Override
+            void runStage() {
+                if (!shouldContinue()) {
+                    abandon();
+                    return;
+                }
+
+                if (mDiskOnly && canStoreSource(mDisplayOptions)) {
+                    // A local source, stored as is
+                    prefetchSource();
+                    return;
+                }
+
+                final Bitmap bitmap;
+                if (mSourceFile != null || mSourceBytes != null) {
+                    if (mSourceBytes != null) {
+                        bitmap = ImageDecodeHelper.decodeSampledBitmapFromByteArray(mSourceBytes,
+                                mDisplayOptions, mCancellation);
+                        mSourceBytes = null;
+                    } else {
+                        bitmap = processBitmap(StringImageProcessor.Scheme.FILE.wrap(mSourceFile.getAbsolutePath()),
+                                mDisplayOptions, mCancellation);
+                    }
+                    if (bitmap == null && mFromDiskCache && !mCancelled) {
+                        // The cached copy could not be decoded, go back to the source
+                        scheduleSource();
+                        return;
+                    }
+                } else {
+                    bitmap = processBitmap(mData, mDisplayOptions, mCancellation);
+                    if (mLoggingEnabled) {
+                        Log.d(TAG, "doInBackground - " + mData + " from source");
+                    }
+                }
+                complete(bitmap);
+                //END_INCLUDE(load_bitmap_in_background)
             }
+        }
+
+        /** Gives up the work because no view is waiting for it any more. */
+        private void abandon() {
+            if (!mCancelled) {
+                mAbandoned = true;
+                deliver(null);
+            }
+        }
 
+        private void complete(Bitmap bitmap) {
+            final String cachedKey = mCachedKey;
             // If the bitmap was processed and the image cache is available, then add the processed
             // bitmap to the cache for future use. Note we don't check if the task was cancelled
             // here, if it was, and the thread is still running, we may as well add the processed
-            // bitmap to our cache as it might be used again in the future
+            // bitmap to our cache as it might be used again in the future. In SOURCE mode the
+            // original bytes were already stored while processing, so nothing is re-encoded here.
             if (bitmap != null) {
                 if (mLoggingEnabled) {
                     Log.d(TAG, "doInBackground - " + mData + " decoded");
                 }
+                // Keep the bitmap out of the pool until it has been handed to the views
+                pinBitmap(bitmap);
+                if (mPrefetch != null) {
+                    mCachedBytes = Utils.getBitmapSize(bitmap);
+                }
+                if (mRevalidation) {
+                    final Bitmap previous = mMemoryCache != null ? mMemoryCache.get(cachedKey) : null;
+                    mChanged = previous == null || !previous.sameAs(bitmap);
+                }
                 if (mMemoryCache != null && MemoryPolicy.shouldWriteToMemoryCache(mDisplayOptions.getMemoryPolicy())) {
-                    mMemoryCache.put(cachedKey, bitmap);
+                    putInMemoryCache(mData, cachedKey, bitmap);
                     if (mLoggingEnabled) {
                         Log.d(TAG, "doInBackground - " + mData + " add to memory cache");
                     }
                 }
-                if (mDiskCache != null && DiskPolicy.shouldWriteToDiskCache(mDisplayOptions.getDiskPolicy())) {
+                // A stale entry is not stored again, that would make it look fresh
+                if (mDiskCache != null && mDiskCacheMode == DiskCacheMode.RESULT && !mStale
+                        && DiskPolicy.shouldWriteToDiskCache(mDisplayOptions.getDiskPolicy())) {
                     if (mCacheExecutor != null) {
+                        pinBitmap(bitmap);
                         mCacheExecutor.execute(new CacheImageOnDiskTask(cachedKey, bitmap, mDiskCache));
                     } else {
                         mDiskCache.put(cachedKey, bitmap);
@@ -301,57 +1379,223 @@ public abstract class ImageWorker {
                 }
             }
 
-            return bitmap;
-            //END_INCLUDE(load_bitmap_in_background)
+            if (bitmap != null && mStale) {
+                revalidate(mData, cachedKey, mDisplayOptions);
+            }
+            deliver(bitmap);
+        }
+
+        private void deliver(final Bitmap bitmap) {
+            mFrameDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPostExecute(bitmap);
+                }
+            });
         }
 
         /**
-         * Once the image is processed, associates it to the imageView
+         * Once the image is processed, associates it to every ImageView still waiting for it
          */
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
+        private void onPostExecute(Bitmap bitmap) {
+            try {
+                deliverToRequests(bitmap);
+            } finally {
+                if (bitmap != null) {
+                    unpinBitmap(bitmap);
+                }
+                if (mPrefetch != null) {
+                    onPrefetchDone(mPrefetch, this);
+                }
+            }
+        }
+
+        private void deliverToRequests(Bitmap bitmap) {
+            if (mRevalidation) {
+                onRevalidated(bitmap);
+                return;
+            }
             //BEGIN_INCLUDE(complete_background_work)
-            boolean success = false;
-            // if cancel was called on this task or the "exit early" flag is set then we're done
-            if (isCancelled() || mExitTasksEarly) {
-                bitmap = null;
+            final List<ImageRequest> requests = finish();
+            // if cancel was called on this task then we're done
+            if (mCancelled) {
+                return;
             }
 
-            final ImageView imageView = getAttachedImageView();
-            if (bitmap != null && imageView != null) {
-                if (mLoggingEnabled) {
-                    Log.d(TAG, "onPostExecute - " + mData + " setting bitmap");
+            for (int i = 0, count = requests.size(); i < count; i++) {
+                final ImageRequest request = requests.get(i);
+                if (bitmap == null && mAbandoned && request.isWaiting()) {
+                    // The request attached after the work had been given up, start over
+                    submitRequest(request);
+                    continue;
+                }
+                if (mDiskOnly && request.isWaiting()) {
+                    // The source is on disk now, decode it for the request
+                    submitRequest(request);
+                    continue;
+                }
+                if (request.mTarget != null) {
+                    request.deliverToTarget(bitmap);
+                    continue;
+                }
+
+                // Views are left alone once the "exit early" flag is set
+                final ImageView imageView = mExitTasksEarly ? null : request.getAttachedImageView();
+
+                boolean success = false;
+                if (bitmap != null && imageView != null) {
+                    if (mLoggingEnabled) {
+                        Log.d(TAG, "onPostExecute - " + mData + " setting bitmap");
+                    }
+                    success = true;
+                    setImageDrawable(imageView, bitmap, request.mDisplayOptions);
+                    mActiveResources.activate(imageView, request.mCachedKey, bitmap);
+                }
+                if (request.mOnImageLoadedListener != null) {
+                    request.mOnImageLoadedListener.onImageLoaded(success);
                 }
-                success = true;
-                setImageDrawable(imageView, bitmap, mDisplayOptions);
-            }
-            if (mOnImageLoadedListener != null) {
-                mOnImageLoadedListener.onImageLoaded(success);
             }
             //END_INCLUDE(complete_background_work)
         }
 
+        /** Shows a refreshed image in the views still showing the stale one, if asked to. */
+        private void onRevalidated(Bitmap bitmap) {
+            synchronized (mRevalidating) {
+                mRevalidating.remove(mCachedKey);
+            }
+            if (bitmap == null || !mChanged || mExitTasksEarly
+                    || !DiskPolicy.shouldUpdateAfterRevalidate(mDisplayOptions.getDiskPolicy())) {
+                return;
+            }
+            final List<ImageView> views = mActiveResources.viewsShowing(mCachedKey);
+            if (mLoggingEnabled) {
+                Log.d(TAG, "onRevalidated - " + mData + " changed, updating " + views.size() + " views");
+            }
+            for (int i = 0, count = views.size(); i < count; i++) {
+                final ImageView imageView = views.get(i);
+                final Drawable previous = imageView.getDrawable();
+                imageView.setImageBitmap(bitmap);
+                mActiveResources.activate(imageView, mCachedKey, bitmap);
+                recycleFadeIn(imageView, previous);
+            }
+        }
+    }
+
+    /**
+     * Fetches a fresh copy of a stale disk cache entry in the background, at most once at a time
+     * for every cache key. The refreshed image replaces the stale one in the memory cache.
+     */
+    private void revalidate(Object data, String cachedKey, DisplayOptions options) {
+        synchronized (mRevalidating) {
+            if (!mRevalidating.add(cachedKey)) {
+                return;
+            }
+        }
+        // Skips the stale entry; keeping STALE_WHILE_REVALIDATE lets the fetcher revalidate it
+        // against its source instead of downloading it again
+        final DisplayOptions refresh = new DisplayOptions.Builder()
+                .copyFrom(options)
+                .diskPolicy(options.getDiskPolicy() | DiskPolicy.NO_CACHE.index)
+                .priority(Priority.LOW)
+                .build();
+        if (mLoggingEnabled) {
+            Log.d(TAG, "revalidate - " + data);
+        }
+        new BitmapWorkerTask(data, cachedKey, refresh, true).start(null);
+    }
+
+    /**
+     * The future returned by {@link #submit(Object, DisplayOptions)}, completed by the main
+     * thread when the bitmap is delivered.
+     */
+    private class BitmapFuture implements Future<Bitmap>, Target {
+        private final Object mData;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        /** Guards the fields below, written once. */
+        private final Object mLock = new Object();
+        private Bitmap mBitmap;
+        private boolean mFinished;
+        private boolean mCancelled;
+
+        BitmapFuture(Object data) {
+            mData = data;
+        }
+
         @Override
-        protected void onCancelled(Bitmap bitmap) {
-            super.onCancelled(bitmap);
-            synchronized (mPauseWorkLock) {
-                mPauseWorkLock.notifyAll();
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (mLock) {
+                if (mFinished) {
+                    return false;
+                }
+                mFinished = true;
+                mCancelled = true;
             }
+            cancelWork(this);
+            mDone.countDown();
+            return true;
         }
 
-        /**
-         * Returns the ImageView associated with this task as long as the ImageView's task still
-         * points to this task as well. Returns null otherwise.
-         */
-        private ImageView getAttachedImageView() {
-            final ImageView imageView = imageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+        @Override
+        public boolean isCancelled() {
+            synchronized (mLock) {
+                return mCancelled;
+            }
+        }
 
-            if (this == bitmapWorkerTask) {
-                return imageView;
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public Bitmap get() throws InterruptedException {
+            Utils.checkNotMainThread("get");
+            mDone.await();
+            return getResult();
+        }
+
+        @Override
+        public Bitmap get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            Utils.checkNotMainThread("get");
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException("Loading " + mData + " timed out");
             }
+            return getResult();
+        }
 
-            return null;
+        private Bitmap getResult() {
+            synchronized (mLock) {
+                if (mCancelled) {
+                    throw new CancellationException("Loading " + mData + " was cancelled");
+                }
+                return mBitmap;
+            }
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap bitmap) {
+            finish(bitmap);
+        }
+
+        @Override
+        public void onBitmapFailed() {
+            finish(null);
+        }
+
+        private void finish(Bitmap bitmap) {
+            synchronized (mLock) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                mBitmap = bitmap;
+            }
+            mDone.countDown();
+        }
+
+        @Override
+        public String toString() {
+            return "BitmapFuture{" + mData + "}";
         }
     }
 
@@ -370,21 +1614,21 @@ public abstract class ImageWorker {
 
     /**
      * A custom Drawable that will be attached to the imageView while the work is in progress.
-     * Contains a reference to the actual worker task, so that it can be stopped if a new binding is
-     * required, and makes sure that only the last started worker process can bind its result,
-     * independently of the finish order.
+     * Contains a reference to the view's request, so that it can be detached from its worker task
+     * if a new binding is required, and makes sure that only the last started request can bind
+     * its result, independently of the finish order.
      */
     private static class AsyncDrawable extends BitmapDrawable {
-        private final WeakReference<BitmapWorkerTask> bitmapWorkerTaskReference;
+        private final WeakReference<ImageRequest> imageRequestReference;
 
-        public AsyncDrawable(Resources res, Bitmap bitmap, BitmapWorkerTask bitmapWorkerTask) {
+        public AsyncDrawable(Resources res, Bitmap bitmap, ImageRequest imageRequest) {
             super(res, bitmap);
-            bitmapWorkerTaskReference =
-                new WeakReference<BitmapWorkerTask>(bitmapWorkerTask);
+            imageRequestReference =
+                new WeakReference<ImageRequest>(imageRequest);
         }
 
-        public BitmapWorkerTask getBitmapWorkerTask() {
-            return bitmapWorkerTaskReference.get();
+        public ImageRequest getImageRequest() {
+            return imageRequestReference.get();
         }
     }
 
@@ -397,23 +1641,96 @@ public abstract class ImageWorker {
      */
     private void setImageDrawable(ImageView imageView, Bitmap bitmap, DisplayOptions options) {
         if (options.fadeIn()) {
-            // Transition drawable with a transparent drawable and the final drawable
-            final TransitionDrawable td =
-                    new TransitionDrawable(new Drawable[] {
-                            new ColorDrawable(android.R.color.transparent),
-                            new BitmapDrawable(mResources, bitmap)
-                    });
-            // Set background to loading bitmap
-            imageView.setBackgroundDrawable(
-                    new BitmapDrawable(mResources, options.getLoadingBitmap()));
-
-            imageView.setImageDrawable(td);
-            td.startTransition(FADE_IN_TIME);
+            // Fade the final bitmap in over the loading bitmap, with a drawable a view gave back
+            FadeInDrawable fadeIn = mFadeInPool.poll();
+            if (fadeIn == null) {
+                fadeIn = new FadeInDrawable(mResources);
+            }
+            fadeIn.start(bitmap, options.getLoadingBitmap(), FADE_IN_TIME);
+            imageView.setImageDrawable(fadeIn);
         } else {
             imageView.setImageBitmap(bitmap);
         }
     }
 
+    /**
+     * Takes back the fade-in drawable a view showed before it was given another drawable. A
+     * drawable the app has since put in another view is left alone.
+     */
+    private void recycleFadeIn(ImageView imageView, Drawable previous) {
+        if (!(previous instanceof FadeInDrawable) || imageView.getDrawable() == previous
+                || previous.getCallback() != null || mFadeInPool.size() >= MAX_FADE_IN_POOL_SIZE) {
+            return;
+        }
+        final FadeInDrawable fadeIn = (FadeInDrawable) previous;
+        fadeIn.reset();
+        mFadeInPool.add(fadeIn);
+    }
+
+    /**
+     * Hands a bitmap that left the memory cache over to the bitmap pool, unless a view still
+     * shows it or it is still on its way to a view or the disk cache. Runs on the main thread.
+     */
+    private void recycleBitmap(Bitmap bitmap) {
+        if (mMemoryCache instanceof MemoryLruCacheWrapper && ((MemoryLruCacheWrapper) mMemoryCache).isCached(bitmap)) {
+            // Still served from the memory cache under another key
+            return;
+        }
+        if (!isBitmapPinned(bitmap) && !isHandedOut(bitmap) && !mActiveResources.isDisplayed(bitmap)
+                && mBitmapPool.put(bitmap)) {
+            mActiveResources.deactivate(bitmap);
+            if (mLoggingEnabled) {
+                Log.d(TAG, "recycleBitmap - " + mBitmapPool);
+            }
+        }
+    }
+
+    private void pinBitmap(Bitmap bitmap) {
+        if (mBitmapPool == null) {
+            return;
+        }
+        synchronized (mPinnedBitmaps) {
+            final Integer count = mPinnedBitmaps.get(bitmap);
+            mPinnedBitmaps.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void unpinBitmap(Bitmap bitmap) {
+        if (mBitmapPool == null) {
+            return;
+        }
+        synchronized (mPinnedBitmaps) {
+            final Integer count = mPinnedBitmaps.get(bitmap);
+            if (count == null || count <= 1) {
+                mPinnedBitmaps.remove(bitmap);
+            } else {
+                mPinnedBitmaps.put(bitmap, count - 1);
+            }
+        }
+    }
+
+    private boolean isBitmapPinned(Bitmap bitmap) {
+        synchronized (mPinnedBitmaps) {
+            return mPinnedBitmaps.containsKey(bitmap);
+        }
+    }
+
+    /** Keeps a bitmap given to a {@link Target} out of the pool, for as long as it lives. */
+    private void handOut(Bitmap bitmap) {
+        if (mBitmapPool == null) {
+            return;
+        }
+        synchronized (mHandedOutBitmaps) {
+            mHandedOutBitmaps.put(bitmap, Boolean.TRUE);
+        }
+    }
+
+    private boolean isHandedOut(Bitmap bitmap) {
+        synchronized (mHandedOutBitmaps) {
+            return mHandedOutBitmaps.containsKey(bitmap);
+        }
+    }
+
     /**
      * Pause any ongoing background work. This can be used as a temporary
      * measure to improve performance. For example background work could
@@ -435,6 +1752,26 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * Pauses the downloads only, while disk cache hits and decodes go on. This suits very fast
+     * flings better than {@link #setPauseWork(boolean)}: rows whose images are cached still fill
+     * in, and no bandwidth is spent on rows that scroll by before their download could finish.
+     * Downloads queued meanwhile start once work resumes, skipping the rows no longer shown.
+     * <p>
+     * Like {@link #setPauseWork(boolean)}, be sure the work is resumed before your fragment or
+     * activity is destroyed.
+     *
+     * @see ScrollPrefetcher
+     */
+    public void setPauseNetworkWork(boolean pauseNetworkWork) {
+        synchronized (mPauseWorkLock) {
+            mPauseNetworkWork = pauseNetworkWork;
+            if (!mPauseNetworkWork) {
+                mPauseWorkLock.notifyAll();
+            }
+        }
+    }
+
     protected class CacheAsyncTask extends AsyncTask<Object, Void, Void> {
 
         @Override
@@ -502,7 +1839,83 @@ public abstract class ImageWorker {
     public void clearMemoryCache() {
         if (mMemoryCache != null) {
             mMemoryCache.clear();
+            mMemoryVariants.clear();
+        }
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
+        }
+    }
+
+    /**
+     * Returns true if the memory cache holds the key. With a {@link MemoryLruCacheWrapper} the
+     * entry is not made the most recently used, so a prefetch checking what to skip doesn't keep
+     * images cached that nobody has shown.
+     */
+    private boolean isInMemoryCache(String cachedKey) {
+        if (mMemoryCache instanceof MemoryLruCacheWrapper) {
+            return ((MemoryLruCacheWrapper) mMemoryCache).contains(cachedKey);
+        }
+        return mMemoryCache != null && mMemoryCache.get(cachedKey) != null;
+    }
+
+    /**
+     * Caches a bitmap under its key, unless it is already cached under another one: a bitmap
+     * scaled down to its own size is the larger variant itself, and caching it twice would count
+     * it twice and let the pool take it while the other key still serves it.
+     */
+    private void putInMemoryCache(Object data, String cachedKey, Bitmap bitmap) {
+        if (mMemoryCache instanceof MemoryLruCacheWrapper && ((MemoryLruCacheWrapper) mMemoryCache).isCached(bitmap)) {
+            return;
+        }
+        mMemoryVariants.add(getSourceKey(data), cachedKey);
+        mMemoryCache.put(cachedKey, bitmap);
+    }
+
+    /**
+     * Returns the key of the smallest bitmap of the image held in the memory cache at another
+     * size that is at least as large as requested, or null.
+     */
+    private String findLargerVariant(Object data, DisplayOptions options) {
+        final int width = options.getWidth();
+        final int height = options.getHeight();
+        final Bitmap.Config config = options.getBitmapConfig();
+        final List<String> keys = mMemoryVariants.get(getSourceKey(data));
+        Bitmap best = null;
+        String bestKey = null;
+        for (int i = 0, count = keys.size(); i < count; i++) {
+            final String key = keys.get(i);
+            final Bitmap bitmap = mMemoryCache.get(key);
+            if (bitmap == null) {
+                // Evicted without notice, only possible with a custom memory cache
+                mMemoryVariants.remove(key);
+                continue;
+            }
+            if (bitmap.getWidth() < width || bitmap.getHeight() < height
+                    || (config != null && bitmap.getConfig() != config)) {
+                continue;
+            }
+            if (best == null || bitmap.getWidth() * bitmap.getHeight() < best.getWidth() * best.getHeight()) {
+                best = bitmap;
+                bestKey = key;
+            }
         }
+        return bestKey;
+    }
+
+    private boolean isWithinSizeTolerance(Bitmap bitmap, DisplayOptions options) {
+        final float limit = 1f + mMemorySizeTolerance;
+        return (options.getWidth() == 0 || bitmap.getWidth() <= options.getWidth() * limit)
+                && (options.getHeight() == 0 || bitmap.getHeight() <= options.getHeight() * limit);
+    }
+
+    /** Returns the bitmaps currently on screen, with their hit counts. Main thread only. */
+    public ActiveResources getActiveResources() {
+        return mActiveResources;
+    }
+
+    /** Returns the pool decoded bitmaps are recycled into, or null if there is none. */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
     }
 
     public Executor getCacheExecutor() {
@@ -520,6 +1933,14 @@ public abstract class ImageWorker {
         return mDefaultDisplayOptions;
     }
 
+    protected DiskCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    public DiskCacheMode getDiskCacheMode() {
+        return mDiskCacheMode;
+    }
+
     private class CacheImageOnDiskTask implements Runnable {
         private final String mKey;
         private final WeakReference<Bitmap> mBitmapWeakReference;
@@ -535,7 +1956,11 @@ public abstract class ImageWorker {
         public void run() {
             Bitmap bitmap = mBitmapWeakReference.get();
             if (bitmap != null) {
-                mCache.put(mKey, bitmap);
+                try {
+                    mCache.put(mKey, bitmap);
+                } finally {
+                    unpinBitmap(bitmap);
+                }
                 if (mLoggingEnabled) {
                     Log.d(TAG, "CacheImageOnDiskTask doInBackground - " + mKey + " add to disk cache");
                 }
@@ -0,0 +1,255 @@
+package com.yulay.imagefetcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the journal of a {@link DiskLruCache} with group commit. Records are appended to a
+ * bounded in-memory ring and written by a background thread in batches. A batch is flushed once
+ * it holds enough records or bytes, once its oldest record has waited long enough, or as soon as
+ * someone calls {@link #sync()}.
+ *
+ * <p>Appending never touches the file, so a record is not durable until a later sync or batch
+ * flush. Records reach the file in the order they were appended.
+ */
+final class JournalWriter implements Closeable {
+    private final Object lock = new Object();
+    private final String[] ring;
+    private final int batchRecords;
+    private final int batchBytes;
+    private final long maxDelayNanos;
+    private final Thread flusher;
+
+    // Guarded by lock
+    private int head;
+    private int count;
+    private int pendingBytes;
+    private long oldestAppendTime;
+    /** Number of records ever appended. */
+    private long appended;
+    /** Number of records written and flushed, successfully or not. */
+    private long written;
+    /** Number of records some caller of sync() waits for. */
+    private long syncTarget;
+    private IOException failure;
+    private boolean closed;
+
+    /** Only the flusher writes; replacing the writer happens while the ring is empty. */
+    private final Object writerLock = new Object();
+    private Writer writer;
+
+    /**
+     * @param writer the journal file, positioned at its end
+     * @param capacity records the ring holds before appends wait for the flusher
+     * @param batchRecords records that make a batch worth flushing
+     * @param batchBytes characters that make a batch worth flushing
+     * @param maxDelayMillis longest time a record waits in the ring
+     */
+    JournalWriter(Writer writer, int capacity, int batchRecords, int batchBytes,
+                  long maxDelayMillis) {
+        this.writer = writer;
+        this.ring = new String[capacity];
+        this.batchRecords = batchRecords;
+        this.batchBytes = batchBytes;
+        this.maxDelayNanos = maxDelayMillis * 1000000L;
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "DiskLruCache journal");
+        this.flusher.setDaemon(true);
+    }
+
+    void start() {
+        flusher.start();
+    }
+
+    /**
+     * Queues a record. Waits only when the ring is full.
+     *
+     * @throws IOException if an earlier batch could not be written
+     */
+    void append(String record) throws IOException {
+        synchronized (lock) {
+            checkFailure();
+            if (closed) {
+                throw new IllegalStateException("journal is closed");
+            }
+            boolean interrupted = false;
+            while (count == ring.length) {
+                lock.notifyAll();
+                interrupted |= awaitLocked(0);
+            }
+            ring[(head + count) % ring.length] = record;
+            count++;
+            pendingBytes += record.length();
+            appended++;
+            if (count == 1) {
+                oldestAppendTime = System.nanoTime();
+            }
+            if (count == 1 || count >= batchRecords || pendingBytes >= batchBytes) {
+                lock.notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until every record appended so far has been written and flushed.
+     *
+     * @throws IOException if a record could not be written
+     */
+    void sync() throws IOException {
+        synchronized (lock) {
+            final long target = appended;
+            boolean interrupted = false;
+            if (written < target && flusher.isAlive()) {
+                syncTarget = Math.max(syncTarget, target);
+                lock.notifyAll();
+                while (written < target && flusher.isAlive()) {
+                    interrupted |= awaitLocked(0);
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            checkFailure();
+        }
+    }
+
+    /**
+     * Syncs, then continues with {@code newWriter} and closes the old writer. The caller makes
+     * sure nothing is appended meanwhile.
+     */
+    void replaceWriter(Writer newWriter) throws IOException {
+        try {
+            sync();
+        } catch (IOException ignored) {
+            // the new file replaces whatever the old one failed to get
+        }
+        final Writer oldWriter;
+        synchronized (writerLock) {
+            oldWriter = writer;
+            writer = newWriter;
+        }
+        synchronized (lock) {
+            failure = null;
+        }
+        oldWriter.close();
+    }
+
+    /** Writes the remaining records, stops the flusher and closes the file. */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writerLock) {
+            writer.close();
+        }
+        synchronized (lock) {
+            checkFailure();
+        }
+    }
+
+    private void flushLoop() {
+        final String[] batch = new String[ring.length];
+        while (true) {
+            final int batchCount;
+            final long batchEnd;
+            synchronized (lock) {
+                while (!batchReady()) {
+                    if (closed && count == 0) {
+                        return;
+                    }
+                    final long waitNanos = count == 0
+                            ? 0 : oldestAppendTime + maxDelayNanos - System.nanoTime();
+                    awaitLocked(count == 0 ? 0 : Math.max(1, waitNanos / 1000000L));
+                }
+                batchCount = count;
+                for (int i = 0; i < batchCount; i++) {
+                    final int index = (head + i) % ring.length;
+                    batch[i] = ring[index];
+                    ring[index] = null;
+                }
+                head = (head + batchCount) % ring.length;
+                count = 0;
+                pendingBytes = 0;
+                batchEnd = appended;
+                lock.notifyAll(); // appenders waiting for room
+            }
+
+            IOException error = null;
+            synchronized (writerLock) {
+                try {
+                    for (int i = 0; i < batchCount; i++) {
+                        writer.write(batch[i]);
+                    }
+                    writer.flush();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            for (int i = 0; i < batchCount; i++) {
+                batch[i] = null;
+            }
+
+            synchronized (lock) {
+                if (error != null && failure == null) {
+                    failure = error;
+                }
+                written = batchEnd;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** Must be called with the lock held. */
+    private boolean batchReady() {
+        return count > 0 && (closed
+                || syncTarget > written
+                || count >= batchRecords
+                || pendingBytes >= batchBytes
+                || System.nanoTime() - oldestAppendTime >= maxDelayNanos);
+    }
+
+    /**
+     * Waits on the lock, which must be held, for at most {@code millis} or indefinitely if it is
+     * 0. Returns whether the wait was interrupted, so that callers can restore the flag once they
+     * are done: a cancelled image load must still leave a consistent journal behind.
+     */
+    private boolean awaitLocked(long millis) {
+        try {
+            lock.wait(millis);
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    /** Must be called with the lock held. */
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("journal write failed: " + failure.getMessage());
+        }
+    }
+}
@@ -1,61 +1,219 @@
 package com.yulay.imagefetcher;
 
-import android.graphics.Bitmap;
+import android.util.Log;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link FileDiskCache} whose files expire a fixed time after they were stored. An expired
+ * file can be kept a while longer, to be served stale by {@link #getStale(String)}.
+ *
+ * <p>The time every file was stored is loaded into memory when the cache is opened, so a lookup
+ * is a single map probe that never touches the file system. Expired files are not returned by
+ * {@link #get(String)}, and a background sweeper deletes them in batches once they are past the
+ * stale period, so their space is reclaimed even if they are never asked for again.
+ */
+public class LimitedAgeFileDiskCache extends FileDiskCache implements ExpiringDiskCache {
+    private static final String TAG = "LimitedAgeFileDiskCache";
+
+    /** Most files deleted by one sweep, so a sweep never holds the disk for long. */
+    private static final int SWEEP_BATCH_SIZE = 64;
+    /** Delay before the next batch when a sweep left expired files behind. */
+    private static final long SWEEP_BATCH_DELAY_MS = 1000;
+    private static final long MIN_SWEEP_INTERVAL_MS = 60 * 1000;
 
-public class LimitedAgeFileDiskCache extends FileDiskCache {
     private final long maxFileAge;
+    /** How long an expired file is kept for {@link #getStale(String)}. */
+    private final long maxStaleAge;
+    private final long sweepInterval;
+
+    /** Time each file was stored at, by file name. */
+    private final ConcurrentHashMap<String, Long> storedTimes = new ConcurrentHashMap<String, Long>();
+    private volatile boolean indexLoaded;
+    private ScheduledExecutorService sweeper;
 
-    private final Map<File, Long> loadingDates = Collections.synchronizedMap(new HashMap<File, Long>());
+    private final Runnable sweep = new Runnable() {
+        @Override
+        public void run() {
+            final boolean done = sweepExpired();
+            synchronized (LimitedAgeFileDiskCache.this) {
+                if (sweeper != null) {
+                    sweeper.schedule(this, done ? sweepInterval : SWEEP_BATCH_DELAY_MS,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    };
 
+    /**
+     * @param maxAge how long a file is kept, in seconds
+     */
     public LimitedAgeFileDiskCache(File cacheDir, int maxAge) {
+        this(cacheDir, maxAge, 0);
+    }
+
+    /**
+     * @param maxAge      how long a file is kept, in seconds
+     * @param maxStaleAge how long a file is kept after it has expired, in seconds, so it can be
+     *                    shown while a fresh copy is fetched
+     */
+    public LimitedAgeFileDiskCache(File cacheDir, int maxAge, int maxStaleAge) {
         super(cacheDir);
-        this.maxFileAge = maxAge * 1000; // to milliseconds
+        if (maxStaleAge < 0) {
+            throw new IllegalArgumentException("maxStaleAge must not be negative");
+        }
+        this.maxFileAge = maxAge * 1000L; // to milliseconds
+        this.maxStaleAge = maxStaleAge * 1000L;
+        this.sweepInterval = Math.max(MIN_SWEEP_INTERVAL_MS, maxFileAge / 4);
     }
 
+    /** Loads the time every file was stored at and starts sweeping expired files. */
     @Override
-    public File get(String imageUri) {
-        File file = super.get(imageUri);
-        if (file != null && file.exists()) {
-            boolean cached;
-            Long loadingDate = loadingDates.get(file);
-            if (loadingDate == null) {
-                cached = false;
-                loadingDate = file.lastModified();
-            } else {
-                cached = true;
+    public void open() {
+        final File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (isEntryName(name) && !storedTimes.containsKey(name)) {
+                    final long lastModified = file.lastModified();
+                    if (lastModified > 0) {
+                        // A put since the cache was created has the latest time
+                        storedTimes.putIfAbsent(name, lastModified);
+                    }
+                }
             }
-
-            if (System.currentTimeMillis() - loadingDate > maxFileAge) {
-                file.delete();
-                loadingDates.remove(file);
-            } else if (!cached) {
-                loadingDates.put(file, loadingDate);
+        }
+        indexLoaded = true;
+        synchronized (this) {
+            if (sweeper == null) {
+                sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "LimitedAgeFileDiskCache sweeper");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                sweeper.schedule(sweep, 0, TimeUnit.MILLISECONDS);
             }
         }
-        return file;
     }
 
     @Override
-    public void put(String data, Bitmap bitmap) {
-        super.put(data, bitmap);
-        rememberUsage(data);
+    public File get(String imageUri) {
+        final File file = super.get(imageUri);
+        final long storedTime = storedTime(file);
+        return storedTime != 0 && isExpired(storedTime, System.currentTimeMillis()) ? null : file;
+    }
+
+    @Override
+    public File getStale(String imageUri) {
+        final File file = super.get(imageUri);
+        final long storedTime = storedTime(file);
+        final long now = System.currentTimeMillis();
+        return storedTime != 0 && isExpired(storedTime, now) && !isGone(storedTime, now)
+                ? file : null;
+    }
+
+    @Override
+    public void refresh(String imageUri) {
+        final File file = getFile(imageUri);
+        final long now = System.currentTimeMillis();
+        // Keep the new age across restarts too
+        if (file.setLastModified(now)) {
+            storedTimes.put(file.getName(), now);
+        }
+    }
+
+    /** Returns the time {@code file} was stored at, or 0 if it is not in the cache. */
+    private long storedTime(File file) {
+        final Long storedTime = storedTimes.get(file.getName());
+        if (storedTime != null) {
+            return storedTime;
+        }
+        if (indexLoaded) {
+            // Not in the cache, or stored by someone else
+            return 0;
+        }
+        // Not opened yet, fall back to the file system
+        return file.lastModified();
+    }
+
+    @Override
+    protected void onWriteFinished(String data, boolean saved) {
+        if (saved) {
+            rememberPut(data);
+        }
     }
 
     @Override
     public void clear() {
         super.clear();
-        loadingDates.clear();
+        storedTimes.clear();
     }
 
-    private void rememberUsage(String imageUri) {
-        File file = getFile(imageUri);
-        long currentTime = System.currentTimeMillis();
-        file.setLastModified(currentTime);
-        loadingDates.put(file, currentTime);
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (sweeper != null) {
+                sweeper.shutdownNow();
+                sweeper = null;
+            }
+        }
+        super.close();
+    }
+
+    private void rememberPut(String data) {
+        // The file was just renamed into place, so its own modification time matches on reload
+        storedTimes.put(getFile(data).getName(), System.currentTimeMillis());
+    }
+
+    private boolean isExpired(long storedTime, long now) {
+        return now - storedTime > maxFileAge;
+    }
+
+    /** Returns true once a file is too old to be served even stale. */
+    private boolean isGone(long storedTime, long now) {
+        return now - storedTime > maxFileAge + maxStaleAge;
+    }
+
+    /**
+     * Deletes up to {@link #SWEEP_BATCH_SIZE} files too old to be served even stale. Returns false
+     * if more are left.
+     */
+    private boolean sweepExpired() {
+        final long now = System.currentTimeMillis();
+        int deleted = 0;
+        boolean done = true;
+        final Iterator<Map.Entry<String, Long>> iterator = storedTimes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (!isGone(entry.getValue(), now)) {
+                continue;
+            }
+            if (deleted == SWEEP_BATCH_SIZE) {
+                done = false;
+                break;
+            }
+            if (storedTimes.remove(entry.getKey(), entry.getValue())) {
+                final File file = new File(cacheDir, entry.getKey());
+                // A put may have replaced the file since it was looked at
+                if (isGone(file.lastModified(), now)) {
+                    deleteEntry(file);
+                    deleted++;
+                }
+            }
+        }
+        if (deleted > 0) {
+            Log.d(TAG, "sweepExpired - deleted " + deleted + " files");
+        }
+        return done;
     }
 }
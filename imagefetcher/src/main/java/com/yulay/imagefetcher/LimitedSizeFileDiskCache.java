@@ -0,0 +1,258 @@
+package com.yulay.imagefetcher;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link FileDiskCache} that keeps its files within a byte and a file count budget by deleting
+ * the least recently or the least frequently used ones.
+ *
+ * <p>Uses are tracked in memory. The index of the files already on disk is built from their
+ * sizes and modification dates the first time the cache is opened or trimmed, so the first
+ * requests are not held up by a directory listing. Trimming runs on the given executor, never on
+ * the thread that stored the file.
+ */
+public class LimitedSizeFileDiskCache extends FileDiskCache {
+    private static final String TAG = "LimitedSizeFileDiskCache";
+
+    /** Which files are deleted first when the cache is over budget. */
+    public enum Eviction {
+        /** The files read or written longest ago. */
+        LRU,
+        /** The files read the fewest times since they were written, the oldest of them first. */
+        LFU
+    }
+
+    private final long maxSize;
+    private final int maxFileCount;
+    private final Eviction eviction;
+    private final Executor trimExecutor;
+
+    /** Uses of the files in the cache by file name. */
+    private final ConcurrentHashMap<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
+    /** Number of writes in progress by file name, which trimming must not delete. Guarded by the cache. */
+    private final Map<String, Integer> writing = new HashMap<String, Integer>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicBoolean trimScheduled = new AtomicBoolean();
+    private volatile boolean indexLoaded;
+
+    private final Runnable trim = new Runnable() {
+        @Override
+        public void run() {
+            trimScheduled.set(false);
+            trimToBudget();
+        }
+    };
+
+    /**
+     * Creates a cache trimmed on {@link AsyncTask#SERIAL_EXECUTOR}, evicting the least recently
+     * used files first.
+     */
+    public LimitedSizeFileDiskCache(File cacheDir, long maxSize, int maxFileCount) {
+        this(cacheDir, maxSize, maxFileCount, Eviction.LRU, AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    /**
+     * @param maxSize      maximum total size of the files, in bytes
+     * @param maxFileCount maximum number of files, or 0 for no limit
+     * @param trimExecutor executor the index is loaded and the files are trimmed on, usually the
+     *                     cache executor of the image worker
+     */
+    public LimitedSizeFileDiskCache(File cacheDir, long maxSize, int maxFileCount,
+                                    Eviction eviction, Executor trimExecutor) {
+        super(cacheDir);
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be a positive number");
+        }
+        if (maxFileCount < 0) {
+            throw new IllegalArgumentException("maxFileCount must not be negative");
+        }
+        if (eviction == null || trimExecutor == null) {
+            throw new IllegalArgumentException("Eviction and executor must not be null.");
+        }
+        this.maxSize = maxSize;
+        this.maxFileCount = maxFileCount;
+        this.eviction = eviction;
+        this.trimExecutor = trimExecutor;
+    }
+
+    @Override
+    public void open() {
+        // Called on the cache executor already
+        trimToBudget();
+    }
+
+    @Override
+    public File get(String data) {
+        File file = super.get(data);
+        Usage usage = usages.get(file.getName());
+        if (usage != null) {
+            usage.touch();
+        } else if (file.exists()) {
+            // Not indexed yet, or stored by an earlier run
+            track(file, System.currentTimeMillis()).touch();
+        }
+        return file;
+    }
+
+    @Override
+    protected void onWriteStarted(String data) {
+        startWriting(getFile(data).getName());
+    }
+
+    @Override
+    protected void onWriteFinished(String data, boolean saved) {
+        if (saved) {
+            rememberPut(data);
+        }
+        finishWriting(getFile(data).getName());
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        usages.clear();
+        size.set(0);
+    }
+
+    /** Returns the total size of the files the cache knows of, in bytes. */
+    public long size() {
+        return size.get();
+    }
+
+    /** Returns the number of files the cache knows of. */
+    public int fileCount() {
+        return usages.size();
+    }
+
+    private synchronized void startWriting(String name) {
+        final Integer count = writing.get(name);
+        writing.put(name, count == null ? 1 : count + 1);
+    }
+
+    private void finishWriting(String name) {
+        synchronized (this) {
+            final Integer count = writing.get(name);
+            if (count == 1) {
+                writing.remove(name);
+            } else {
+                writing.put(name, count - 1);
+            }
+        }
+        scheduleTrimIfNeeded();
+    }
+
+    private void rememberPut(String data) {
+        final File file = getFile(data);
+        final long length = file.length();
+        if (length == 0) {
+            return;
+        }
+        final Usage usage = new Usage(length, System.currentTimeMillis());
+        final Usage previous = usages.put(file.getName(), usage);
+        size.addAndGet(length - (previous != null ? previous.length : 0));
+    }
+
+    /** Starts indexing {@code file} unless it already is, and returns its usage. */
+    private Usage track(File file, long lastUse) {
+        final Usage usage = new Usage(file.length(), lastUse);
+        final Usage existing = usages.putIfAbsent(file.getName(), usage);
+        if (existing != null) {
+            return existing;
+        }
+        size.addAndGet(usage.length);
+        return usage;
+    }
+
+    private boolean isOverBudget() {
+        return size.get() > maxSize || (maxFileCount > 0 && usages.size() > maxFileCount);
+    }
+
+    private void scheduleTrimIfNeeded() {
+        if ((!indexLoaded || isOverBudget()) && trimScheduled.compareAndSet(false, true)) {
+            trimExecutor.execute(trim);
+        }
+    }
+
+    /** Indexes the files stored by earlier runs, using their modification dates as last use. */
+    private void loadIndex() {
+        final File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (isEntryName(file.getName()) && file.isFile()) {
+                    track(file, file.lastModified());
+                }
+            }
+        }
+        indexLoaded = true;
+    }
+
+    private void trimToBudget() {
+        if (!indexLoaded) {
+            loadIndex();
+        }
+        if (!isOverBudget()) {
+            return;
+        }
+
+        final List<Map.Entry<String, Usage>> candidates =
+                new ArrayList<Map.Entry<String, Usage>>(usages.entrySet());
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Usage>>() {
+            @Override
+            public int compare(Map.Entry<String, Usage> lhs, Map.Entry<String, Usage> rhs) {
+                final Usage l = lhs.getValue();
+                final Usage r = rhs.getValue();
+                if (eviction == Eviction.LFU && l.hits != r.hits) {
+                    return l.hits < r.hits ? -1 : 1;
+                }
+                return l.lastUse < r.lastUse ? -1 : (l.lastUse == r.lastUse ? 0 : 1);
+            }
+        });
+
+        int deleted = 0;
+        for (int i = 0, count = candidates.size(); i < count && isOverBudget(); i++) {
+            final Map.Entry<String, Usage> candidate = candidates.get(i);
+            synchronized (this) {
+                // Skip files being stored, or stored again since the snapshot was taken
+                if (!writing.containsKey(candidate.getKey())
+                        && usages.remove(candidate.getKey(), candidate.getValue())) {
+                    deleteEntry(new File(cacheDir, candidate.getKey()));
+                    size.addAndGet(-candidate.getValue().length);
+                    deleted++;
+                }
+            }
+        }
+        if (deleted > 0) {
+            Log.d(TAG, "trimToBudget - deleted " + deleted + " files, " + size.get() + " bytes left");
+        }
+    }
+
+    /** Size and uses of a file. Hits are counted loosely, a lost increment does not matter. */
+    private static final class Usage {
+        final long length;
+        volatile long lastUse;
+        volatile int hits;
+
+        Usage(long length, long lastUse) {
+            this.length = length;
+            this.lastUse = lastUse;
+        }
+
+        void touch() {
+            lastUse = System.currentTimeMillis();
+            hits++;
+        }
+    }
+}
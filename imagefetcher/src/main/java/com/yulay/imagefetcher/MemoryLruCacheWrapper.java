@@ -4,9 +4,20 @@ import android.graphics.Bitmap;
 
 import androidx.collection.LruCache;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
 public class MemoryLruCacheWrapper implements MemoryCache {
 
     private final LruCache<String, Bitmap> cache;
+    /** The number of keys each cached bitmap is held under, guarded by itself. */
+    private final Map<Bitmap, Integer> references = new IdentityHashMap<Bitmap, Integer>();
+    /** The keys cached, for lookups that must not count as a use. */
+    private final Set<String> keys = Collections.synchronizedSet(new HashSet<String>());
+    private volatile EvictionListener evictionListener;
 
     public MemoryLruCacheWrapper(int memoryCacheSize) {
         cache = new LruCache<String, Bitmap>(memoryCacheSize) {
@@ -18,9 +29,29 @@ public class MemoryLruCacheWrapper implements MemoryCache {
             protected int sizeOf(String key, Bitmap bitmap) {
                 return Utils.getBitmapSize(bitmap);
             }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                release(oldValue);
+                if (newValue == null) {
+                    keys.remove(key);
+                }
+                final EvictionListener listener = evictionListener;
+                if (listener != null && oldValue != newValue) {
+                    listener.onEvicted(key, oldValue);
+                }
+            }
         };
     }
 
+    /**
+     * Sets a listener told about every bitmap that leaves the cache, whether it was evicted or
+     * replaced. The listener is called on the thread that changed the cache.
+     */
+    public void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
+    }
+
     @Override
     public Bitmap get(String key) {
         return cache.get(key);
@@ -28,11 +59,47 @@ public class MemoryLruCacheWrapper implements MemoryCache {
 
     @Override
     public void put(String key, Bitmap bitmap) {
+        // Counted before the put, whose evictions and replacement release their bitmaps
+        synchronized (references) {
+            final Integer count = references.get(bitmap);
+            references.put(bitmap, count == null ? 1 : count + 1);
+        }
+        keys.add(key);
         cache.put(key, bitmap);
     }
 
+    /**
+     * Returns true if a bitmap is cached under the key. Unlike {@link #get(String)}, this does not
+     * make the entry the most recently used, so probing ahead of time doesn't keep it cached.
+     */
+    public boolean contains(String key) {
+        return keys.contains(key);
+    }
+
+    /** Returns true if the bitmap is cached under any key, without touching the LRU order. */
+    public boolean isCached(Bitmap bitmap) {
+        synchronized (references) {
+            return references.containsKey(bitmap);
+        }
+    }
+
+    private void release(Bitmap bitmap) {
+        synchronized (references) {
+            final Integer count = references.get(bitmap);
+            if (count == null || count <= 1) {
+                references.remove(bitmap);
+            } else {
+                references.put(bitmap, count - 1);
+            }
+        }
+    }
+
     @Override
     public void clear() {
         cache.evictAll();
     }
+
+    public interface EvictionListener {
+        void onEvicted(String key, Bitmap bitmap);
+    }
 }
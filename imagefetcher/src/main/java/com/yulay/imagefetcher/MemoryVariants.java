@@ -0,0 +1,50 @@
+package com.yulay.imagefetcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the memory cache keys held for each source, so that a request can find the same image
+ * cached at another size.
+ */
+final class MemoryVariants {
+    private final Map<String, List<String>> keysBySource = new HashMap<String, List<String>>();
+    private final Map<String, String> sourceByKey = new HashMap<String, String>();
+
+    synchronized void add(String sourceKey, String cachedKey) {
+        if (sourceByKey.containsKey(cachedKey)) {
+            return;
+        }
+        List<String> keys = keysBySource.get(sourceKey);
+        if (keys == null) {
+            keys = new ArrayList<String>(2);
+            keysBySource.put(sourceKey, keys);
+        }
+        keys.add(cachedKey);
+        sourceByKey.put(cachedKey, sourceKey);
+    }
+
+    synchronized void remove(String cachedKey) {
+        final String sourceKey = sourceByKey.remove(cachedKey);
+        if (sourceKey == null) {
+            return;
+        }
+        final List<String> keys = keysBySource.get(sourceKey);
+        if (keys != null && keys.remove(cachedKey) && keys.isEmpty()) {
+            keysBySource.remove(sourceKey);
+        }
+    }
+
+    /** Returns the cache keys of every size of the source, possibly empty. */
+    synchronized List<String> get(String sourceKey) {
+        final List<String> keys = keysBySource.get(sourceKey);
+        return keys != null ? new ArrayList<String>(keys) : new ArrayList<String>(0);
+    }
+
+    synchronized void clear() {
+        keysBySource.clear();
+        sourceByKey.clear();
+    }
+}
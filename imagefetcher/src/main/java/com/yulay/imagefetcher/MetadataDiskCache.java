@@ -0,0 +1,22 @@
+package com.yulay.imagefetcher;
+
+/**
+ * A {@link DiskCache} that keeps a few bytes of metadata with each entry, such as the
+ * {@link CacheValidators} of a source. The metadata belongs to the entry: it is dropped whenever
+ * the entry is written again, evicted, expired or deleted, so it never outlives or describes
+ * another copy than the one it was stored with.
+ */
+public interface MetadataDiskCache extends DiskCache {
+    /**
+     * Returns the metadata stored with the entry for {@code data}, or null if the entry is
+     * missing or has none.
+     */
+    byte[] getMetadata(String data);
+
+    /**
+     * Stores metadata with the entry for {@code data}, replacing any earlier metadata.
+     *
+     * @return false if there is no such entry or the metadata could not be stored
+     */
+    boolean putMetadata(String data, byte[] metadata);
+}
@@ -1,29 +1,376 @@
 package com.yulay.imagefetcher;
 
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class NetworkImageProcessor extends StringImageProcessor {
+    private static final String TAG = "NetworkImageProcessor";
+    static final String HEADER_RANGE = "Range";
+    static final String HEADER_IF_RANGE = "If-Range";
+    static final String HEADER_CONTENT_RANGE = "Content-Range";
+    /** Smallest download worth keeping when it is interrupted. */
+    static final long MIN_RESUMABLE_LENGTH = 256 * 1024;
+    private static final long DEFAULT_MAX_PARTIAL_SIZE = 32 * 1024 * 1024; // 32 Mb
+
+    /** Closes the connections of cancelled work. */
+    private static final Executor sAbortExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "NetworkImageProcessor-abort");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Transport transport;
+    private final PartialDownloads partialDownloads;
+    private final ParallelDownloader parallelDownloader;
+
+    public NetworkImageProcessor(Transport transport) {
+        this(transport, null);
+    }
+
+    /**
+     * @param partialDirectory where large downloads that did not finish are kept so they can be
+     *                         resumed with a Range request, or null to always start over
+     */
+    public NetworkImageProcessor(Transport transport, File partialDirectory) {
+        this(transport, partialDirectory, null);
+    }
+
+    /**
+     * @param partialDirectory   where large downloads that did not finish are kept so they can be
+     *                           resumed with a Range request, or null to always start over
+     * @param parallelDownloader splits very large images across several connections, or null to
+     *                           download every image over one. Only an image requested in full
+     *                           is split, once its first response shows it large enough; a
+     *                           download that can be resumed is resumed instead. Images it
+     *                           downloads are not resumed when interrupted.
+     */
+    public NetworkImageProcessor(Transport transport, File partialDirectory,
+                                 ParallelDownloader parallelDownloader) {
+        if (transport == null) {
+            throw new IllegalArgumentException("Transport must not be null.");
+        }
+        this.transport = transport;
+        this.partialDownloads = partialDirectory != null
+                ? new PartialDownloads(partialDirectory, DEFAULT_MAX_PARTIAL_SIZE) : null;
+        this.parallelDownloader = parallelDownloader;
+    }
+
     @Override
     public boolean canProcess(Scheme scheme) {
         return Scheme.HTTP.equals(scheme) || Scheme.HTTPS.equals(scheme);
     }
 
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
     @Override
     public Result process(String data, DisplayOptions options) throws IOException{
-        return new Result(null, getStreamFromUrl(data, 0));
+        return process(data, options, null);
     }
 
-    public static InputStream getStreamFromUrl(String imageUrl, int readTimeOutMillis) throws IOException {
-        InputStream stream;
-        URL url = new URL(imageUrl);
-        HttpURLConnection con = (HttpURLConnection)url.openConnection();
-        if (readTimeOutMillis > 0) {
-            con.setReadTimeout(readTimeOutMillis);
+    @Override
+    public Result process(Object data, DisplayOptions options, CacheValidators validators)
+            throws IOException {
+        return process(data, options, validators, null);
+    }
+
+    /**
+     * Sends a conditional request when there are validators to send. A 304 Not Modified answer
+     * is returned as {@link Result#notModified(CacheValidators)} without reading any body.
+     *
+     * <p>Without validators, a large download that was interrupted before is resumed from where
+     * it stopped, and a large download that gets interrupted now is kept to be resumed later.
+     *
+     * <p>Cancelling the token closes the response, which aborts a read blocked on it.
+     */
+    @Override
+    public Result process(Object data, DisplayOptions options, CacheValidators validators,
+                          final CancellationToken cancellation) throws IOException {
+        if (cancellation == null) {
+            return fetch((String) data, validators, null);
+        }
+        cancellation.throwIfCancelled();
+        final Result result = fetch((String) data, validators, cancellation);
+        if (result.getStream() == null) {
+            return result;
+        }
+        final CancellationToken.OnCancelListener abort = closeOnCancel(cancellation, result.getStream());
+        final InputStream stream = new FilterInputStream(result.getStream()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Else the token holds on to the stream until its task is over
+                    cancellation.removeOnCancelListener(abort);
+                }
+            }
+        };
+        // Cancelled while connecting, the stream is being closed
+        cancellation.throwIfCancelled();
+        return Result.ofSource(stream, result.getValidators());
+    }
+
+    /**
+     * Closes {@code closeable} on a background thread once {@code cancellation} is cancelled,
+     * since closing a connection may write to the network and cancelling is done on the main
+     * thread. Returns the listener, to be removed once the closeable is done with.
+     */
+    static CancellationToken.OnCancelListener closeOnCancel(CancellationToken cancellation,
+                                                            final Closeable closeable) {
+        final CancellationToken.OnCancelListener listener = new CancellationToken.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                sAbortExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Utils.closeQuietly(closeable);
+                    }
+                });
+            }
+        };
+        cancellation.addOnCancelListener(listener);
+        return listener;
+    }
+
+    private Result fetch(String url, CacheValidators validators, CancellationToken cancellation)
+            throws IOException {
+        if (validators == null && partialDownloads != null && partialDownloads.claim(url)) {
+            return processResumable(url, cancellation);
+        }
+        final Transport.Request.Builder request = new Transport.Request.Builder(url);
+        if (validators != null) {
+            validators.applyTo(request);
+        }
+        final Transport.Response response = transport.execute(request.build());
+        final long now = System.currentTimeMillis();
+        if (response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.close();
+            if (validators == null) {
+                throw new Transport.ResponseException(response.getCode(),
+                        "Not Modified for an unconditional request to " + url);
+            }
+            return Result.notModified(validators.updatedBy(response, now));
+        }
+        return Result.ofSource(bodyOf(url, response, cancellation), CacheValidators.fromResponse(response, now));
+    }
+
+    /**
+     * Returns the body of a response, or the same image downloaded over several connections if
+     * the response holds the whole of an image large enough to be split.
+     */
+    private InputStream bodyOf(String url, Transport.Response response, CancellationToken cancellation)
+            throws IOException {
+        final String ifRange = ifRangeValidator(response);
+        if (parallelDownloader != null && parallelDownloader.shouldSplit(response, ifRange)) {
+            return parallelDownloader.download(transport, url, response, ifRange, cancellation);
+        }
+        return response.getBody();
+    }
+
+    /**
+     * Downloads {@code url}, which the caller claimed in {@link #partialDownloads}. The claim is
+     * released when the returned stream is closed.
+     */
+    private Result processResumable(String url, CancellationToken cancellation) throws IOException {
+        boolean staging = false;
+        try {
+            final PartialDownloads.Partial partial = partialDownloads.find(url);
+            final Transport.Request.Builder request = new Transport.Request.Builder(url);
+            if (partial != null) {
+                // The server sends the rest only if the source still matches, else all of it
+                request.header(HEADER_RANGE, "bytes=" + partial.length + "-");
+                request.header(HEADER_IF_RANGE, partial.ifRange);
+            }
+            final Transport.Response response = transport.execute(request.build());
+            final CacheValidators validators =
+                    CacheValidators.fromResponse(response, System.currentTimeMillis());
+            final int code = response.getCode();
+            if (partial != null && code == HttpURLConnection.HTTP_PARTIAL
+                    && startsAt(response.getHeader(HEADER_CONTENT_RANGE), partial.length)) {
+                final InputStream received = new FileInputStream(partial.data);
+                final InputStream rest;
+                try {
+                    rest = new StagingStream(response.getBody(), partialDownloads.resume(partial), url);
+                } catch (IOException e) {
+                    Utils.closeQuietly(received);
+                    response.close();
+                    throw e;
+                }
+                staging = true;
+                return Result.ofSource(new SequenceInputStream(received, rest), validators);
+            }
+            if (partial != null) {
+                // The source changed, the server sent it whole
+                partialDownloads.discard(url);
+            }
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                response.close();
+                throw new Transport.ResponseException(code, "Unexpected partial content from " + url);
+            }
+            final String ifRange = ifRangeValidator(response);
+            final long length = response.getContentLength();
+            if (parallelDownloader != null && parallelDownloader.shouldSplit(response, ifRange)) {
+                // Nothing to resume, and fetched faster over several connections
+                return Result.ofSource(
+                        parallelDownloader.download(transport, url, response, ifRange, cancellation), validators);
+            }
+            if (code != HttpURLConnection.HTTP_OK || ifRange == null || length < MIN_RESUMABLE_LENGTH) {
+                return Result.ofSource(response.getBody(), validators);
+            }
+            final OutputStream out;
+            try {
+                out = partialDownloads.begin(url, ifRange, length);
+            } catch (IOException e) {
+                Log.w(TAG, "processResumable - can't keep " + url + " - " + e);
+                partialDownloads.discard(url);
+                return Result.ofSource(response.getBody(), validators);
+            }
+            staging = true;
+            return Result.ofSource(new StagingStream(response.getBody(), out, url), validators);
+        } finally {
+            if (!staging) {
+                partialDownloads.release(url);
+            }
+        }
+    }
+
+    /**
+     * Returns the validator If-Range can resume a download of this response with, or null if it
+     * has no strong one.
+     */
+    private static String ifRangeValidator(Transport.Response response) {
+        final String etag = response.getHeader(CacheValidators.HEADER_ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.getHeader(CacheValidators.HEADER_LAST_MODIFIED);
+    }
+
+    /** Returns true if a Content-Range header such as "bytes 100-999/1000" starts at offset. */
+    static boolean startsAt(String contentRange, long offset) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return false;
+        }
+        final int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return false;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim()) == offset;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Copies the bytes of a download to its staging file as they are read. The file is dropped
+     * once the download has been read to the end and kept if it is closed before that.
+     */
+    private final class StagingStream extends FilterInputStream {
+        private final String url;
+        /** Fields read by a close from the thread of a cancel. */
+        private volatile OutputStream staging;
+        private volatile boolean complete;
+        private volatile boolean closed;
+
+        StagingStream(InputStream in, OutputStream staging, String url) {
+            super(in);
+            this.staging = staging;
+            this.url = url;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int count = read(single, 0, 1);
+            return count == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int read = in.read(buffer, offset, count);
+            if (read == -1) {
+                if (closed) {
+                    // Cut short by a cancel, the staged bytes are only part of the image
+                    throw new InterruptedIOException("Cancelled");
+                }
+                complete = true;
+            } else if (staging != null) {
+                try {
+                    staging.write(buffer, offset, read);
+                } catch (IOException e) {
+                    if (closed) {
+                        // Closed by a cancel while reading, what was staged is kept
+                        throw e;
+                    }
+                    // Out of space: go on with the download, it just can't be resumed
+                    Log.w(TAG, "read - can't keep " + url + " - " + e);
+                    Utils.closeQuietly(staging);
+                    staging = null;
+                    partialDownloads.discard(url);
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes must still reach the staging file
+            final byte[] buffer = new byte[(int) Math.min(count, 8 * 1024)];
+            long skipped = 0;
+            while (skipped < count) {
+                final int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                Utils.closeQuietly(staging);
+                if (complete) {
+                    partialDownloads.discard(url);
+                }
+                partialDownloads.release(url);
+            }
         }
-        stream = con.getInputStream();
-        return stream;
     }
 }
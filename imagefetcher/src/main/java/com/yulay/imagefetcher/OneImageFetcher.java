@@ -3,29 +3,53 @@ package com.yulay.imagefetcher;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
+import android.os.Process;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class OneImageFetcher extends ImageWorker {
     private static final String TAG = "OneImageFetcher";
     private static final String URI_AND_SIZE_SEPARATOR = "_";
     private static final String WIDTH_AND_HEIGHT_SEPARATOR = "x";
+    /** How long an idle thread of the default executors waits for work before it ends. */
+    private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+    private static final long DEFAULT_DISK_CACHE_SIZE = 50 * 1024 * 1024; // 50 Mb
+    private static final long MIN_DISK_CACHE_SIZE = 5 * 1024 * 1024; // 5 Mb
+    /** Cache subdirectory keeping large downloads that did not finish, to be resumed. */
+    private static final String PARTIAL_DOWNLOADS_DIR = "partial-downloads";
+    /** Cache subdirectory where images downloaded over several connections are assembled. */
+    private static final String PARALLEL_DOWNLOADS_DIR = "parallel-downloads";
     static volatile OneImageFetcher singleton = null;
     private final List<ImageProcessor> imageProcessors;
+    /** Downloads in progress by source key, so that other sizes of the same image can wait. */
+    private final Map<String, SourceFetch> sourceFetches = new HashMap<String, SourceFetch>();
 
     private OneImageFetcher(Context context, List<ImageProcessor> extraImageProcessors,
-                            ExecutorService loadExecutor, ExecutorService cacheExecutor,
-                            MemoryCache memoryCache, DiskCache diskCache,
+                            Transport transport, int parallelConnections, ExecutorService diskExecutor, ExecutorService networkExecutor,
+                            ExecutorService decodeExecutor, ExecutorService cacheExecutor,
+                            MemoryCache memoryCache, float memorySizeTolerance, BitmapPool bitmapPool, DiskCache diskCache, DiskCacheMode diskCacheMode,
                             DisplayOptions defaultDisplayOptions, boolean loggingEnabled) {
-        super(context, loadExecutor, cacheExecutor, memoryCache, diskCache, defaultDisplayOptions, loggingEnabled);
+        super(context, diskExecutor, networkExecutor, decodeExecutor, cacheExecutor, memoryCache, memorySizeTolerance, bitmapPool, diskCache, diskCacheMode, defaultDisplayOptions, loggingEnabled);
+        ImageDecodeHelper.setSpoolDirectory(context.getCacheDir());
+        ImageDecodeHelper.setBitmapPool(bitmapPool);
 
         int builtInProcessors = 3; // Adjust this as internal processors are added or removed.
         int extraCount = (extraImageProcessors != null ? extraImageProcessors.size() : 0);
@@ -37,7 +61,12 @@ public class OneImageFetcher extends ImageWorker {
             allImageProcessors.addAll(extraImageProcessors);
         }
         allImageProcessors.add(new FileStringImageProcessor());
-        allImageProcessors.add(new NetworkImageProcessor());
+        final ParallelDownloader parallelDownloader = parallelConnections > 1
+                ? new ParallelDownloader.Builder(new File(context.getCacheDir(), PARALLEL_DOWNLOADS_DIR))
+                        .maxConnections(parallelConnections).build()
+                : null;
+        allImageProcessors.add(new NetworkImageProcessor(transport,
+                new File(context.getCacheDir(), PARTIAL_DOWNLOADS_DIR), parallelDownloader));
         imageProcessors = Collections.unmodifiableList(allImageProcessors);
     }
 
@@ -83,17 +112,61 @@ public class OneImageFetcher extends ImageWorker {
         return new MemoryLruCacheWrapper(memoryCacheSize);
     }
 
-    static DiskCache createDefaultDiskCache(Context context, long diskCacheSize) {
-        if (diskCacheSize > 0) {
+    /**
+     * Creates a bitmap pool of a quarter of the default memory cache size, or none before
+     * Honeycomb where bitmaps can't be reused.
+     */
+    static BitmapPool createDefaultBitmapPool(int bitmapPoolSize) {
+        if (!Utils.hasHoneycomb()) {
+            return null;
+        }
+        if (bitmapPoolSize == 0) {
+            bitmapPoolSize = (int) (Runtime.getRuntime().maxMemory() / 32);
+        }
+        return new BitmapPool(bitmapPoolSize);
+    }
+
+    /**
+     * Creates a fixed pool of background priority threads. Queued loads are started by
+     * {@link Priority}, most recent first. Idle threads time out so an unused pool costs nothing.
+     */
+    static ExecutorService createDefaultExecutor(int threadCount, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new BackgroundThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates a journaled cache of {@code diskCacheSize} bytes, or a file cache trimmed on
+     * {@code cacheExecutor} when a file count is set or no size is. Without a size the budget is
+     * {@value #DEFAULT_DISK_CACHE_SIZE} bytes, or a tenth of the free space if that is less.
+     */
+    static DiskCache createDefaultDiskCache(Context context, long diskCacheSize,
+                                            int diskCacheFileCount, Executor cacheExecutor) {
+        if (diskCacheSize > 0 && diskCacheFileCount == 0) {
             File individualCacheDir = StorageUtils.getIndividualCacheDirectory(context);
             return new DiskLruCacheWrapper(individualCacheDir, diskCacheSize);
         }
         File cacheDir = StorageUtils.getCacheDirectory(context);
-        return new UnlimitedFileDiskCache(cacheDir);
+        if (diskCacheSize == 0) {
+            long freeSpace = cacheDir.getUsableSpace();
+            diskCacheSize = freeSpace > 0
+                    ? Math.min(DEFAULT_DISK_CACHE_SIZE, Math.max(MIN_DISK_CACHE_SIZE, freeSpace / 10))
+                    : DEFAULT_DISK_CACHE_SIZE;
+        }
+        return new LimitedSizeFileDiskCache(cacheDir, diskCacheSize, diskCacheFileCount,
+                LimitedSizeFileDiskCache.Eviction.LRU, cacheExecutor);
     }
 
     @Override
     protected Bitmap processBitmap(Object data, DisplayOptions options) {
+        return processBitmap(data, options, null);
+    }
+
+    @Override
+    protected Bitmap processBitmap(Object data, DisplayOptions options, CancellationToken cancellation) {
         if (mLoggingEnabled) {
             Log.d(TAG, "processBitmap  " + data + " " + options);
         }
@@ -102,14 +175,18 @@ public class OneImageFetcher extends ImageWorker {
             ImageProcessor imageProcessor = findImageProcessor(data);
 
             if (imageProcessor != null) {
-                ImageProcessor.Result result;
-                result = imageProcessor.process(data, options);
-                if (result != null) {
+                ImageProcessor.Result result = shouldStoreSource(options)
+                        ? processSource(imageProcessor, data, options, cancellation)
+                        : imageProcessor.process(data, options, null, cancellation);
+                if (result != null && result.isNotModified()) {
+                    bitmap = decodeFromDiskCache(getSourceKey(data), options, cancellation);
+                } else if (result != null) {
                     bitmap = result.getBitmap();
                     if (bitmap == null) {
                         InputStream is = result.getStream();
                         try {
-                            bitmap = ImageDecodeHelper.decodeSampledBitmapFromStream(is, options);
+                            bitmap = decodeSourceStream(data, is, result.getValidators(), options,
+                                    cancellation);
                         } finally {
                             Utils.closeQuietly(is);
                         }
@@ -125,6 +202,348 @@ public class OneImageFetcher extends ImageWorker {
         return bitmap;
     }
 
+    @Override
+    protected boolean isRemote(Object data) {
+        ImageProcessor imageProcessor = findImageProcessor(data);
+        return imageProcessor != null && imageProcessor.isRemote();
+    }
+
+    /**
+     * Fetches a remote source at most once at a time. Requests for the same source at another
+     * size wait for the download in progress and then use what it stored on disk.
+     */
+    @Override
+    protected boolean fetchSource(Object data, DisplayOptions options, CancellationToken cancellation) {
+        final String sourceKey = getSourceKey(data);
+        final SourceFetch fetch = joinSourceFetch(sourceKey, new SourceFetch());
+        if (fetch.owner == Thread.currentThread()) {
+            try {
+                fetch.stored = storeSource(data, options, cancellation);
+                return fetch.stored;
+            } finally {
+                finishSourceFetch(sourceKey, fetch);
+            }
+        }
+
+        if (!awaitSourceFetch(data, fetch)) {
+            return false;
+        }
+        // The shared download failed, try on our own
+        return fetch.stored || storeSource(data, options, cancellation);
+    }
+
+    /**
+     * Fetches a remote source at most once at a time like {@link #fetchSource}, decoding it while
+     * its bytes are written to a disk cache that can take them as they arrive. Requests for the
+     * same source at another size wait for the download in progress and decode what it stored.
+     */
+    @Override
+    protected Bitmap fetchAndDecodeSource(Object data, DisplayOptions options,
+                                          CancellationToken cancellation) {
+        if (!(getDiskCache() instanceof EditableDiskCache)) {
+            // The source can only be stored whole, the decode stage reads it back
+            if (fetchSource(data, options, cancellation)) {
+                return null;
+            }
+            // The disk cache could not take the source, decode it as it arrives instead
+            return processBitmap(data, new DisplayOptions.Builder()
+                    .copyFrom(options)
+                    .diskPolicy(options.getDiskPolicy() | DiskPolicy.NO_STORE.index)
+                    .build(), cancellation);
+        }
+
+        final String sourceKey = getSourceKey(data);
+        final SourceFetch fetch = joinSourceFetch(sourceKey, new SourceFetch());
+        if (fetch.owner == Thread.currentThread()) {
+            try {
+                final Bitmap bitmap = processBitmap(data, options, cancellation);
+                fetch.stored = bitmap != null && getSourceFile(sourceKey) != null;
+                return bitmap;
+            } finally {
+                finishSourceFetch(sourceKey, fetch);
+            }
+        }
+
+        if (!awaitSourceFetch(data, fetch)) {
+            return null;
+        }
+        // The shared download failed, try on our own
+        return fetch.stored ? null : processBitmap(data, options, cancellation);
+    }
+
+    /**
+     * Returns the download of a source in progress, or registers {@code fetch} for the calling
+     * thread to run if there is none.
+     */
+    private SourceFetch joinSourceFetch(String sourceKey, SourceFetch fetch) {
+        synchronized (sourceFetches) {
+            final SourceFetch inFlight = sourceFetches.get(sourceKey);
+            if (inFlight != null) {
+                return inFlight;
+            }
+            fetch.owner = Thread.currentThread();
+            sourceFetches.put(sourceKey, fetch);
+            return fetch;
+        }
+    }
+
+    private void finishSourceFetch(String sourceKey, SourceFetch fetch) {
+        synchronized (sourceFetches) {
+            sourceFetches.remove(sourceKey);
+        }
+        fetch.done.countDown();
+    }
+
+    /** Waits for a download of the same source. Returns false if interrupted. */
+    private boolean awaitSourceFetch(Object data, SourceFetch fetch) {
+        if (mLoggingEnabled) {
+            Log.d(TAG, "fetchSource - " + data + " waiting for download in progress");
+        }
+        try {
+            fetch.done.await();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Downloads a source into the disk cache without decoding it. */
+    private boolean storeSource(Object data, DisplayOptions options, CancellationToken cancellation) {
+        final DiskCache diskCache = getDiskCache();
+        ImageProcessor imageProcessor = findImageProcessor(data);
+        if (diskCache == null || imageProcessor == null) {
+            return false;
+        }
+        final String sourceKey = getSourceKey(data);
+        InputStream is = null;
+        try {
+            ImageProcessor.Result result = processSource(imageProcessor, data, options, cancellation);
+            if (result != null && result.isNotModified()) {
+                if (mLoggingEnabled) {
+                    Log.d(TAG, "storeSource - " + data + " not modified");
+                }
+                return true;
+            }
+            is = result != null ? result.getStream() : null;
+            if (is == null) {
+                return false;
+            }
+            final boolean stored = diskCache.put(sourceKey, is);
+            if (stored) {
+                writeValidators(sourceKey, result.getValidators());
+            }
+            if (mLoggingEnabled) {
+                Log.d(TAG, "storeSource - " + data
+                        + (stored ? " add source to disk cache" : " could not be stored on disk"));
+            }
+            return stored;
+        } catch (Exception e) {
+            Log.e(TAG, "storeSource exception " + e);
+            return false;
+        } finally {
+            Utils.closeQuietly(is);
+        }
+    }
+
+    private File getSourceFile(String sourceKey) {
+        final DiskCache diskCache = getDiskCache();
+        File file = diskCache != null ? diskCache.get(sourceKey) : null;
+        if (file != null && file.exists() && file.length() > 0) {
+            return file;
+        }
+        return null;
+    }
+
+    private Bitmap decodeFromDiskCache(String key, DisplayOptions options, CancellationToken cancellation) {
+        final DiskCache diskCache = getDiskCache();
+        if (diskCache instanceof BlobDiskCache) {
+            byte[] bytes = ((BlobDiskCache) diskCache).getBytes(key);
+            return bytes != null
+                    ? ImageDecodeHelper.decodeSampledBitmapFromByteArray(bytes, options, cancellation)
+                    : null;
+        }
+        File file = getSourceFile(key);
+        if (file != null) {
+            return ImageDecodeHelper.decodeSampledBitmapFromFile(file.getAbsolutePath(), options,
+                    cancellation);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a stream returned by an {@link ImageProcessor}. In {@link DiskCacheMode#SOURCE} the
+     * raw bytes are also stored, so the original image is cached once and can later be decoded at
+     * any size: as they are decoded if the disk cache is an {@link EditableDiskCache}, or else
+     * first written whole and decoded back from there.
+     */
+    private Bitmap decodeSourceStream(Object data, InputStream is, CacheValidators validators,
+                                      DisplayOptions options, CancellationToken cancellation) {
+        final DiskCache diskCache = getDiskCache();
+        if (shouldStoreSource(options) && diskCache instanceof EditableDiskCache) {
+            return decodeWhileStoring((EditableDiskCache) diskCache, data, is, validators, options,
+                    cancellation);
+        }
+        if (shouldStoreSource(options)) {
+            final String sourceKey = getSourceKey(data);
+            final boolean stored = diskCache.put(sourceKey, is);
+            if (stored) {
+                writeValidators(sourceKey, validators);
+            }
+            if (mLoggingEnabled) {
+                Log.d(TAG, "decodeSourceStream - " + data
+                        + (stored ? " add source to disk cache" : " could not be stored on disk"));
+            }
+            return decodeFromDiskCache(sourceKey, options, cancellation);
+        }
+        return ImageDecodeHelper.decodeSampledBitmapFromStream(is, options, cancellation);
+    }
+
+    /**
+     * Decodes a source stream while its bytes are copied into the disk cache, so the source is
+     * read once and written once. The entry is committed only if the decode succeeded and every
+     * byte was copied; a failed decode or a cancelled worker aborts it.
+     */
+    private Bitmap decodeWhileStoring(EditableDiskCache diskCache, Object data, InputStream is,
+                                      CacheValidators validators, DisplayOptions options,
+                                      CancellationToken cancellation) {
+        final String sourceKey = getSourceKey(data);
+        final EditableDiskCache.Editor editor = diskCache.edit(sourceKey);
+        if (editor == null) {
+            // Being written by someone else
+            return ImageDecodeHelper.decodeSampledBitmapFromStream(is, options, cancellation);
+        }
+        boolean stored = false;
+        try {
+            final TeeInputStream tee = new TeeInputStream(is, editor.getOutputStream());
+            final Bitmap bitmap = ImageDecodeHelper.decodeSampledBitmapFromStream(tee, options, cancellation);
+            if (bitmap != null && !Thread.currentThread().isInterrupted()
+                    && (cancellation == null || !cancellation.isCancelled())) {
+                try {
+                    stored = tee.drain() && editor.commit();
+                } catch (IOException e) {
+                    // The bitmap is fine, only the copy is lost
+                    Log.w(TAG, "decodeWhileStoring - " + data + " " + e);
+                }
+                if (stored) {
+                    writeValidators(sourceKey, validators);
+                }
+            }
+            if (mLoggingEnabled) {
+                Log.d(TAG, "decodeWhileStoring - " + data
+                        + (stored ? " add source to disk cache" : " could not be stored on disk"));
+            }
+            return bitmap;
+        } finally {
+            if (!stored) {
+                editor.abort();
+            }
+        }
+    }
+
+    private boolean shouldStoreSource(DisplayOptions options) {
+        return getDiskCache() != null && getDiskCacheMode() == DiskCacheMode.SOURCE
+                && DiskPolicy.shouldWriteToDiskCache(options.getDiskPolicy());
+    }
+
+    /**
+     * Processes a source that is about to be stored in the disk cache. If an earlier copy of a
+     * remote source is still on disk with validators, the request is made conditional, or not
+     * made at all while the server's max-age says the copy is fresh and the request accepts a
+     * cached copy. A copy found unchanged is made fresh again and a not modified result returned.
+     * Only sources kept in a {@link MetadataDiskCache} have validators; a {@link BlobDiskCache}
+     * such as {@link PackedDiskCache} gets no revalidation.
+     */
+    private ImageProcessor.Result processSource(ImageProcessor imageProcessor, Object data,
+                                                DisplayOptions options,
+                                                CancellationToken cancellation) throws IOException {
+        final String sourceKey = getSourceKey(data);
+        final CacheValidators validators = imageProcessor.isRemote() && hasCachedSource(sourceKey)
+                ? readValidators(sourceKey) : null;
+        if (validators == null) {
+            return imageProcessor.process(data, options, null, cancellation);
+        }
+        final int diskPolicy = options.getDiskPolicy();
+        final ImageProcessor.Result result;
+        if (validators.isFresh(System.currentTimeMillis())
+                && (DiskPolicy.shouldReadFromDiskCache(diskPolicy) || DiskPolicy.shouldServeStale(diskPolicy))) {
+            result = ImageProcessor.Result.notModified(validators);
+        } else {
+            result = imageProcessor.process(data, options,
+                    validators.canRevalidate() ? validators : null, cancellation);
+        }
+        if (result != null && result.isNotModified()) {
+            final DiskCache diskCache = getDiskCache();
+            if (diskCache instanceof ExpiringDiskCache) {
+                ((ExpiringDiskCache) diskCache).refresh(sourceKey);
+            }
+            writeValidators(sourceKey, result.getValidators());
+            if (mLoggingEnabled) {
+                Log.d(TAG, "processSource - " + data + " revalidated");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the source is on disk, even if it has expired. Blob caches are not checked,
+     * so their sources are never revalidated.
+     */
+    private boolean hasCachedSource(String sourceKey) {
+        return getCachedSourceFile(sourceKey) != null;
+    }
+
+    private File getCachedSourceFile(String key) {
+        final DiskCache diskCache = getDiskCache();
+        if (diskCache == null || diskCache instanceof BlobDiskCache) {
+            return null;
+        }
+        File file = diskCache.get(key);
+        if ((file == null || !file.exists()) && diskCache instanceof ExpiringDiskCache) {
+            file = ((ExpiringDiskCache) diskCache).getStale(key);
+        }
+        return file != null && file.exists() && file.length() > 0 ? file : null;
+    }
+
+    /**
+     * Returns the validators stored with a source, or null if there are none. Only a
+     * {@link MetadataDiskCache} keeps validators, so sources in other caches, such as blob
+     * caches, are fetched again in full once they expire.
+     */
+    private CacheValidators readValidators(String sourceKey) {
+        final DiskCache diskCache = getDiskCache();
+        if (!(diskCache instanceof MetadataDiskCache)) {
+            return null;
+        }
+        final byte[] metadata = ((MetadataDiskCache) diskCache).getMetadata(sourceKey);
+        if (metadata == null) {
+            return null;
+        }
+        try {
+            return CacheValidators.decode(new String(metadata, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "readValidators - " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the validators of a source as the metadata of its entry. The cache drops the
+     * metadata whenever the entry is written again or removed, so validators left by an earlier
+     * copy never describe the wrong one and need no clearing here.
+     */
+    private void writeValidators(String sourceKey, CacheValidators validators) {
+        final DiskCache diskCache = getDiskCache();
+        if (validators == null || !(diskCache instanceof MetadataDiskCache)) {
+            return;
+        }
+        try {
+            ((MetadataDiskCache) diskCache).putMetadata(sourceKey, validators.encode().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "writeValidators - " + e);
+        }
+    }
+
     private ImageProcessor findImageProcessor(Object data) {
         for (int i = 0, count = imageProcessors.size(); i < count; i++) {
             ImageProcessor imageProcessor = imageProcessors.get(i);
@@ -142,26 +561,75 @@ public class OneImageFetcher extends ImageWorker {
 
     @Override
     protected String getCachedKey(Object data, DisplayOptions options) {
-        String dataString = String.valueOf(data);
+        String dataString = getSourceKey(data);
         return new StringBuilder(dataString).append(URI_AND_SIZE_SEPARATOR).append(options.getWidth()).append(WIDTH_AND_HEIGHT_SEPARATOR).append(options.getHeight()).toString();
     }
 
+    @Override
+    protected String getSourceKey(Object data) {
+        return String.valueOf(data);
+    }
+
+    /** A download in progress that other requests for the same source wait for. */
+    private static class SourceFetch {
+        final CountDownLatch done = new CountDownLatch(1);
+        /** The thread running the download. */
+        Thread owner;
+        volatile boolean stored;
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+        private final String name;
+
+        BackgroundThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, name + " #" + count.getAndIncrement());
+        }
+    }
+
     public static class Builder {
+        private static final int DEFAULT_DISK_THREADS = 2;
+        private static final int DEFAULT_NETWORK_THREADS = 4;
+        private static final float DEFAULT_MEMORY_SIZE_TOLERANCE = 0.5f;
+
         private static final String WARNING_OVERLAP_MEMORY_CACHE = "memoryCache() and memoryCacheSize() calls overlap each other";
         private static final String WARNING_OVERLAP_DISK_CACHE_PARAMS = "diskCache(), diskCacheSize() and diskCacheFileCount calls overlap each other";
 
         private final Context context;
         private List<ImageProcessor> imageProcessors;
+        private Transport transport;
+        private int parallelConnections = 0;
         private int memoryCacheSize = 0;
         private long diskCacheSize = 0;
+        private int diskCacheFileCount = 0;
 
-        private ExecutorService loadExecutor;
+        private ExecutorService diskExecutor;
+        private ExecutorService networkExecutor;
+        private ExecutorService decodeExecutor;
         private ExecutorService cacheExecutor;
         private MemoryCache memoryCache = null;
+        private float memorySizeTolerance = DEFAULT_MEMORY_SIZE_TOLERANCE;
+        private int bitmapPoolSize = 0;
+        private BitmapPool bitmapPool = null;
+        private boolean bitmapPoolEnabled = true;
         private DiskCache diskCache = null;
+        private DiskCacheMode diskCacheMode = DiskCacheMode.SOURCE;
 
         private DisplayOptions defaultDisplayOptions;
         private boolean loggingEnabled;
+        private int maxPrefetchTasks = 0;
+        private long maxPrefetchBytes = 0;
 
         public Builder(Context context) {
             if (context == null) {
@@ -186,8 +654,64 @@ public class OneImageFetcher extends ImageWorker {
             return this;
         }
 
+        /**
+         * Sets the transport used to download network images. Defaults to an
+         * {@link HttpTransport} with its default timeouts and size limit.
+         */
+        public Builder transport(Transport transport) {
+            if (transport == null) {
+                throw new IllegalArgumentException("Transport must not be null.");
+            }
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Downloads images of {@value ParallelDownloader#DEFAULT_MIN_LENGTH} bytes or more over up to
+         * {@code maxConnections} connections at once, from servers that support Range requests.
+         * Off by default.
+         *
+         * @see ParallelDownloader
+         */
+        public Builder parallelDownloads(int maxConnections) {
+            if (maxConnections <= 1) throw new IllegalArgumentException("maxConnections must be greater than 1");
+            this.parallelConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * @deprecated Loading is split across stages now, use {@link #diskExecutor},
+         * {@link #networkExecutor} and {@link #decodeExecutor}. This sets the network executor.
+         */
+        @Deprecated
         public Builder loadExecutor(ExecutorService loadExecutor) {
-            this.loadExecutor = loadExecutor;
+            return networkExecutor(loadExecutor);
+        }
+
+        /**
+         * Sets the executor that looks images up in the disk cache. Defaults to
+         * {@value #DEFAULT_DISK_THREADS} threads.
+         */
+        public Builder diskExecutor(ExecutorService diskExecutor) {
+            this.diskExecutor = diskExecutor;
+            return this;
+        }
+
+        /**
+         * Sets the executor that downloads remote images. Defaults to
+         * {@value #DEFAULT_NETWORK_THREADS} threads.
+         */
+        public Builder networkExecutor(ExecutorService networkExecutor) {
+            this.networkExecutor = networkExecutor;
+            return this;
+        }
+
+        /**
+         * Sets the executor that decodes bitmaps. Defaults to one thread per available processor,
+         * since decoding is bound by CPU and memory.
+         */
+        public Builder decodeExecutor(ExecutorService decodeExecutor) {
+            this.decodeExecutor = decodeExecutor;
             return this;
         }
 
@@ -221,6 +745,41 @@ public class OneImageFetcher extends ImageWorker {
             return this;
         }
 
+        /**
+         * Sets how much larger than requested, as a fraction, a bitmap of the same image held in
+         * the memory cache at another size may be to be shown as is. Larger bitmaps are scaled
+         * down instead of decoding the image again. Defaults to 0.5, so a 300 pixel bitmap
+         * serves a 200 pixel request.
+         */
+        public Builder memorySizeTolerance(float memorySizeTolerance) {
+            if (memorySizeTolerance < 0) throw new IllegalArgumentException("memorySizeTolerance must not be negative");
+
+            this.memorySizeTolerance = memorySizeTolerance;
+            return this;
+        }
+
+        /**
+         * Sets the number of bytes of bitmaps kept for reuse once they leave the memory cache.
+         * Defaults to a quarter of the default memory cache size.
+         */
+        public Builder bitmapPoolSize(int bitmapPoolSize) {
+            if (bitmapPoolSize <= 0) throw new IllegalArgumentException("bitmapPoolSize must be a positive number");
+
+            this.bitmapPoolSize = bitmapPoolSize;
+            return this;
+        }
+
+        public Builder bitmapPool(BitmapPool bitmapPool) {
+            this.bitmapPool = bitmapPool;
+            return this;
+        }
+
+        /** Turns off bitmap reuse, so every decode allocates a new bitmap. */
+        public Builder disableBitmapPool() {
+            this.bitmapPoolEnabled = false;
+            return this;
+        }
+
         public Builder diskCacheSize(int maxCacheSize) {
             if (maxCacheSize <= 0) throw new IllegalArgumentException("maxCacheSize must be a positive number");
 
@@ -232,8 +791,23 @@ public class OneImageFetcher extends ImageWorker {
             return this;
         }
 
+        /**
+         * Sets the maximum number of files kept in the default disk cache, on top of its size.
+         * Without it the cache is only limited in size.
+         */
+        public Builder diskCacheFileCount(int maxFileCount) {
+            if (maxFileCount <= 0) throw new IllegalArgumentException("maxFileCount must be a positive number");
+
+            if (diskCache != null) {
+                Log.w(TAG, WARNING_OVERLAP_DISK_CACHE_PARAMS);
+            }
+
+            this.diskCacheFileCount = maxFileCount;
+            return this;
+        }
+
         public Builder diskCache(DiskCache diskCache) {
-            if (diskCacheSize > 0) {
+            if (diskCacheSize > 0 || diskCacheFileCount > 0) {
                 Log.w(TAG, WARNING_OVERLAP_DISK_CACHE_PARAMS);
             }
 
@@ -241,6 +815,31 @@ public class OneImageFetcher extends ImageWorker {
             return this;
         }
 
+        /**
+         * Sets what is written to the disk cache. Defaults to {@link DiskCacheMode#SOURCE}, which
+         * keeps the downloaded bytes instead of re-encoding every decoded bitmap.
+         */
+        public Builder diskCacheMode(DiskCacheMode diskCacheMode) {
+            if (diskCacheMode == null) {
+                throw new IllegalArgumentException("DiskCacheMode must not be null.");
+            }
+            this.diskCacheMode = diskCacheMode;
+            return this;
+        }
+
+        /**
+         * Sets how many prefetched images may load at once and how many bytes one
+         * {@link ImageWorker#prefetch} batch may cache. See {@link ImageWorker#setPrefetchBudget}.
+         */
+        public Builder prefetchBudget(int maxTasks, long maxBytes) {
+            if (maxTasks <= 0) throw new IllegalArgumentException("maxTasks must be a positive number");
+            if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be a positive number");
+
+            this.maxPrefetchTasks = maxTasks;
+            this.maxPrefetchBytes = maxBytes;
+            return this;
+        }
+
         public Builder defaultDisplayOptions(DisplayOptions defaultDisplayOptions) {
             this.defaultDisplayOptions = defaultDisplayOptions;
             return this;
@@ -254,8 +853,21 @@ public class OneImageFetcher extends ImageWorker {
         public OneImageFetcher build() {
             Context context = this.context;
 
-            if (loadExecutor == null) {
-                loadExecutor = (ExecutorService) AsyncTask.THREAD_POOL_EXECUTOR;
+            if (transport == null) {
+                transport = new HttpTransport();
+            }
+
+            if (diskExecutor == null) {
+                diskExecutor = createDefaultExecutor(DEFAULT_DISK_THREADS, "OneImageFetcher-disk");
+            }
+
+            if (networkExecutor == null) {
+                networkExecutor = createDefaultExecutor(DEFAULT_NETWORK_THREADS, "OneImageFetcher-network");
+            }
+
+            if (decodeExecutor == null) {
+                decodeExecutor = createDefaultExecutor(
+                        Math.max(1, Runtime.getRuntime().availableProcessors()), "OneImageFetcher-decode");
             }
 
             if (cacheExecutor == null) {
@@ -266,18 +878,28 @@ public class OneImageFetcher extends ImageWorker {
                 memoryCache = createDefaultMemoryCache(context, memoryCacheSize);
             }
 
+            if (!bitmapPoolEnabled) {
+                bitmapPool = null;
+            } else if (bitmapPool == null) {
+                bitmapPool = createDefaultBitmapPool(bitmapPoolSize);
+            }
+
             if (diskCache == null) {
-                diskCache = createDefaultDiskCache(context, diskCacheSize);
+                diskCache = createDefaultDiskCache(context, diskCacheSize, diskCacheFileCount, cacheExecutor);
             }
 
             if (defaultDisplayOptions == null) {
                 defaultDisplayOptions = createDefualtImageOptions(context);
             }
 
-            return new OneImageFetcher(context, imageProcessors,
-                    loadExecutor, cacheExecutor,
-                    memoryCache, diskCache,
+            OneImageFetcher fetcher = new OneImageFetcher(context, imageProcessors,
+                    transport, parallelConnections, diskExecutor, networkExecutor, decodeExecutor, cacheExecutor,
+                    memoryCache, memorySizeTolerance, bitmapPool, diskCache, diskCacheMode,
                     defaultDisplayOptions, loggingEnabled);
+            if (maxPrefetchTasks > 0) {
+                fetcher.setPrefetchBudget(maxPrefetchTasks, maxPrefetchBytes);
+            }
+            return fetcher;
         }
     }
 }
@@ -0,0 +1,588 @@
+package com.yulay.imagefetcher;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link DiskCache} that appends entries to a few large segment files instead of keeping one
+ * file per entry, which saves an inode, a directory lookup and an open/close per thumbnail.
+ *
+ * <p>An in-memory hash index maps each key to the segment, offset and length of its latest
+ * record. Segments are memory-mapped, so reading an entry is a copy out of the mapping and never
+ * opens a file. Records are only ever appended; an entry stored again leaves dead space behind
+ * in an older segment. A background compaction reclaims it: it copies the live records of the
+ * oldest segment, or of a segment that is mostly dead, into the current one and deletes the
+ * segment. While the cache is over its size budget, compaction drops the records of the oldest
+ * segment instead, except for those read since they were written, which get a second chance.
+ *
+ * <p>Each record is {@code int magic, int keyLength, int dataLength, int crc32} followed by the
+ * key and the data. The index is rebuilt on {@link #open()} by walking the record headers; the
+ * checksum is verified when an entry is read. An entry must fit in one segment, so larger
+ * entries are not stored.
+ */
+public class PackedDiskCache implements BlobDiskCache {
+    private static final String TAG = "PackedDiskCache";
+
+    /** {@value} */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024; // 4 Mb
+    /** {@value} */
+    public static final Bitmap.CompressFormat DEFAULT_COMPRESS_FORMAT = Bitmap.CompressFormat.PNG;
+    /** {@value} */
+    public static final int DEFAULT_COMPRESS_QUALITY = 100;
+
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final int RECORD_MAGIC = 0x50444331; // "PDC1"
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int MAX_KEY_LENGTH = 256;
+    /** A segment holding less live data than this share of what was written to it is compacted. */
+    private static final float MIN_LIVE_RATIO = 0.5f;
+    /** Longest time a lookup waits for {@link #open()} to finish. */
+    private static final long OPEN_TIMEOUT_MS = 2000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    protected final File cacheDir;
+    protected final long cacheMaxSize;
+    protected final int segmentSize;
+
+    protected Bitmap.CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
+    protected int compressQuality = DEFAULT_COMPRESS_QUALITY;
+
+    /** Latest record of every key. Changed only with the cache locked. */
+    private final ConcurrentHashMap<String, Record> index = new ConcurrentHashMap<String, Record>();
+    /** Segments by id, oldest first. Guarded by the cache. */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    /** The segment records are appended to. Guarded by the cache. */
+    private Segment active;
+    private boolean compactionScheduled;
+    private volatile boolean closed;
+
+    private final CountDownLatch opened = new CountDownLatch(1);
+    private final ExecutorService compactionExecutor = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Runnable compaction = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.e(TAG, "compact - " + e);
+                synchronized (PackedDiskCache.this) {
+                    compactionScheduled = false;
+                }
+            }
+        }
+    };
+
+    public PackedDiskCache(File cacheDir, long cacheMaxSize) {
+        this(cacheDir, cacheMaxSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize size of each segment file, which is also the size of the largest entry
+     *                    that can be stored
+     */
+    public PackedDiskCache(File cacheDir, long cacheMaxSize, int segmentSize) {
+        if (segmentSize <= RECORD_HEADER_SIZE + MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+        }
+        this.cacheDir = cacheDir;
+        this.cacheMaxSize = cacheMaxSize;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public void open() {
+        try {
+            synchronized (this) {
+                loadSegments();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "open - " + e);
+        } finally {
+            opened.countDown();
+        }
+        scheduleCompaction();
+    }
+
+    /** Maps every segment file left in the directory and indexes its records. */
+    private void loadSegments() throws IOException {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("can't create " + cacheDir);
+        }
+        final File[] files = cacheDir.listFiles();
+        final TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    segmentFiles.put(Integer.parseInt(
+                            name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    file.delete();
+                }
+            }
+        }
+        for (Map.Entry<Integer, File> segmentFile : segmentFiles.entrySet()) {
+            try {
+                final Segment segment = Segment.map(segmentFile.getKey(), segmentFile.getValue(),
+                        segmentSize);
+                segments.put(segment.id, segment);
+                scanRecords(segment);
+                segment.seal();
+            } catch (IOException e) {
+                Log.e(TAG, "open - dropping " + segmentFile.getValue() + " " + e);
+                segmentFile.getValue().delete();
+            }
+        }
+    }
+
+    /** Indexes the records of a segment, up to the first one that was not written completely. */
+    private void scanRecords(Segment segment) {
+        final ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segment.capacity
+                && buffer.getInt(position) == RECORD_MAGIC) {
+            final int keyLength = buffer.getInt(position + 4);
+            final int dataLength = buffer.getInt(position + 8);
+            if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH || dataLength < 0
+                    || dataLength > segment.capacity - position - RECORD_HEADER_SIZE - keyLength) {
+                break;
+            }
+            final Record record = new Record(segment, position, keyLength, dataLength);
+            publish(readKey(record), record);
+            position += record.size();
+        }
+        segment.writePosition = position;
+    }
+
+    @Override
+    public File get(String data) {
+        // entries have no file of their own, see getBytes()
+        return null;
+    }
+
+    @Override
+    public byte[] getBytes(String data) {
+        awaitOpen();
+        if (closed) {
+            return null;
+        }
+        final String key = DiskCacheUtils.hashKeyForDisk(data);
+        final Record record = index.get(key);
+        if (record == null) {
+            return null;
+        }
+        final byte[] bytes = record.readData();
+        if (bytes == null) {
+            Log.w(TAG, "getBytes - " + data + " is corrupt");
+            synchronized (this) {
+                unpublish(key, record);
+            }
+            return null;
+        }
+        record.accessed = true;
+        return bytes;
+    }
+
+    @Override
+    public void put(String data, Bitmap bitmap) {
+        final BlobBuffer buffer = new BlobBuffer();
+        if (bitmap.compress(compressFormat, compressQuality, buffer)) {
+            store(data, buffer);
+        }
+    }
+
+    @Override
+    public boolean put(String data, InputStream stream) {
+        final BlobBuffer buffer = new BlobBuffer();
+        final byte[] chunk = new byte[8 * 1024];
+        try {
+            int count;
+            while ((count = stream.read(chunk)) != -1) {
+                buffer.write(chunk, 0, count);
+                if (buffer.size() > segmentSize) {
+                    Log.w(TAG, "put - " + data + " is larger than a segment");
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "put - " + e);
+            return false;
+        }
+        return store(data, buffer);
+    }
+
+    private boolean store(String data, BlobBuffer buffer) {
+        awaitOpen();
+        final byte[] key = DiskCacheUtils.hashKeyForDisk(data).getBytes(UTF_8);
+        try {
+            synchronized (this) {
+                if (closed || append(key, buffer.buffer(), buffer.size()) == null) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "put - " + e);
+            return false;
+        }
+        scheduleCompaction();
+        return true;
+    }
+
+    /**
+     * Appends a record to the active segment and makes it the entry of its key. Must be called
+     * with the cache locked. Returns null if the record can't fit in a segment.
+     */
+    private Record append(byte[] key, byte[] data, int dataLength) throws IOException {
+        final int size = RECORD_HEADER_SIZE + key.length + dataLength;
+        if (key.length > MAX_KEY_LENGTH || size > segmentSize) {
+            return null;
+        }
+        if (active == null || active.writePosition + size > active.capacity) {
+            if (active != null) {
+                active.seal();
+            }
+            final int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            active = Segment.create(id, new File(cacheDir,
+                    String.format(Locale.US, "%08d", id) + SEGMENT_SUFFIX), segmentSize);
+            segments.put(id, active);
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, dataLength);
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.length);
+        header.putInt(RECORD_MAGIC)
+                .putInt(key.length)
+                .putInt(dataLength)
+                .putInt((int) crc.getValue())
+                .put(key);
+        final Record record = new Record(active, active.writePosition, key.length, dataLength);
+        active.write(record.offset, header.array(), data, dataLength);
+        active.writePosition += size;
+        publish(new String(key, UTF_8), record);
+        return record;
+    }
+
+    /** Makes {@code record} the entry of {@code key}. Must be called with the cache locked. */
+    private void publish(String key, Record record) {
+        final Record previous = index.put(key, record);
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.size();
+        }
+        record.segment.liveBytes += record.size();
+    }
+
+    /** Drops {@code record} if it is still the entry of {@code key}. Must be called with the cache locked. */
+    private boolean unpublish(String key, Record record) {
+        if (index.remove(key, record)) {
+            record.segment.liveBytes -= record.size();
+            return true;
+        }
+        return false;
+    }
+
+    private void scheduleCompaction() {
+        synchronized (this) {
+            if (compactionScheduled || closed || pickVictim() == null) {
+                return;
+            }
+            compactionScheduled = true;
+        }
+        try {
+            compactionExecutor.execute(compaction);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                compactionScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the segment to compact next, or null if none needs it. Must be called with the
+     * cache locked.
+     */
+    private Segment pickVictim() {
+        if (segments.size() < 2) {
+            return null;
+        }
+        final Segment oldest = segments.firstEntry().getValue();
+        if (isOverBudget()) {
+            return oldest;
+        }
+        Segment victim = null;
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.liveBytes < MIN_LIVE_RATIO * segment.writePosition
+                    && (victim == null || segment.liveBytes < victim.liveBytes)) {
+                victim = segment;
+            }
+        }
+        return victim;
+    }
+
+    /** Must be called with the cache locked. */
+    private boolean isOverBudget() {
+        return (long) segments.size() * segmentSize > Math.max(cacheMaxSize, 2L * segmentSize);
+    }
+
+    /**
+     * Moves the live records out of segments that are mostly dead, or drops the oldest records
+     * while the cache is over budget, deleting each segment once it has been emptied.
+     */
+    private void compact() throws IOException {
+        while (true) {
+            final Segment victim;
+            final boolean evict;
+            synchronized (this) {
+                victim = closed ? null : pickVictim();
+                if (victim == null) {
+                    compactionScheduled = false;
+                    return;
+                }
+                evict = isOverBudget();
+            }
+
+            int position = 0;
+            while (position < victim.writePosition) {
+                final Record record = new Record(victim, position,
+                        victim.buffer.getInt(position + 4), victim.buffer.getInt(position + 8));
+                position += record.size();
+                final String key = readKey(record);
+                final Record current = index.get(key);
+                if (current == null || current.segment != victim || current.offset != record.offset) {
+                    continue; // dead
+                }
+                if (evict && !current.accessed) {
+                    synchronized (this) {
+                        unpublish(key, current);
+                    }
+                    continue;
+                }
+                final byte[] data = current.readData();
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    if (data == null) {
+                        unpublish(key, current);
+                    } else if (index.get(key) == current) {
+                        // a second chance only lasts until the record is read again
+                        append(key.getBytes(UTF_8), data, data.length);
+                    }
+                }
+            }
+
+            synchronized (this) {
+                if (segments.get(victim.id) == victim) {
+                    segments.remove(victim.id);
+                    // readers still holding a record of the segment keep reading the mapping
+                    victim.file.delete();
+                }
+            }
+        }
+    }
+
+    private static String readKey(Record record) {
+        final byte[] key = new byte[record.keyLength];
+        final ByteBuffer buffer = record.segment.buffer.duplicate();
+        buffer.position(record.offset + RECORD_HEADER_SIZE);
+        buffer.get(key);
+        return new String(key, UTF_8);
+    }
+
+    private void awaitOpen() {
+        if (opened.getCount() == 0) {
+            return;
+        }
+        try {
+            if (!opened.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "awaitOpen - timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        index.clear();
+        for (Segment segment : segments.values()) {
+            segment.seal();
+            segment.file.delete();
+        }
+        segments.clear();
+        active = null;
+    }
+
+    @Override
+    public void flush() {
+        final Segment segment;
+        synchronized (this) {
+            segment = active;
+        }
+        if (segment != null) {
+            try {
+                segment.sync();
+            } catch (IOException e) {
+                Log.e(TAG, "flush - " + e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        synchronized (this) {
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.seal();
+            }
+            active = null;
+        }
+        compactionExecutor.shutdown();
+    }
+
+    public void setCompressFormat(Bitmap.CompressFormat compressFormat) {
+        this.compressFormat = compressFormat;
+    }
+
+    public void setCompressQuality(int compressQuality) {
+        this.compressQuality = compressQuality;
+    }
+
+    /** The location of a record in a segment. */
+    private static final class Record {
+        final Segment segment;
+        final int offset;
+        final int keyLength;
+        final int dataLength;
+        /** True if the entry was read since it was written or last compacted. */
+        volatile boolean accessed;
+
+        Record(Segment segment, int offset, int keyLength, int dataLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.dataLength = dataLength;
+        }
+
+        int size() {
+            return RECORD_HEADER_SIZE + keyLength + dataLength;
+        }
+
+        /** Copies the data out of the mapping, or returns null if it fails its checksum. */
+        byte[] readData() {
+            final byte[] data = new byte[dataLength];
+            final ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + RECORD_HEADER_SIZE + keyLength);
+            buffer.get(data);
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, dataLength);
+            return (int) crc.getValue() == segment.buffer.getInt(offset + 12) ? data : null;
+        }
+    }
+
+    /**
+     * A segment file. Reads go through a read-only mapping of the whole file. Records are written
+     * through the file itself, so a full disk fails the write rather than a later access to the
+     * mapping; the mapping shares the same pages and sees the records once they are written.
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        final int capacity;
+        final MappedByteBuffer buffer;
+        /** Open while records may be appended. */
+        private RandomAccessFile writer;
+        /** End of the last record. Guarded by the cache. */
+        int writePosition;
+        /** Bytes of records that are still the entry of their key. Guarded by the cache. */
+        long liveBytes;
+
+        private Segment(int id, File file, RandomAccessFile writer) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.writer = writer;
+            this.capacity = (int) writer.length();
+            this.buffer = writer.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+        }
+
+        static Segment create(int id, File file, int capacity) throws IOException {
+            final RandomAccessFile writer = new RandomAccessFile(file, "rw");
+            try {
+                writer.setLength(capacity);
+                return new Segment(id, file, writer);
+            } catch (IOException e) {
+                Utils.closeQuietly(writer);
+                file.delete();
+                throw e;
+            }
+        }
+
+        static Segment map(int id, File file, int capacity) throws IOException {
+            final RandomAccessFile writer = new RandomAccessFile(file, "rw");
+            try {
+                if (writer.length() < capacity) {
+                    writer.setLength(capacity);
+                }
+                return new Segment(id, file, writer);
+            } catch (IOException e) {
+                Utils.closeQuietly(writer);
+                throw e;
+            }
+        }
+
+        void write(int offset, byte[] header, byte[] data, int dataLength) throws IOException {
+            writer.seek(offset);
+            writer.write(header);
+            writer.write(data, 0, dataLength);
+        }
+
+        void sync() throws IOException {
+            final RandomAccessFile file = writer;
+            if (file != null) {
+                file.getFD().sync();
+            }
+        }
+
+        /** Stops appending to the segment. */
+        void seal() {
+            Utils.closeQuietly(writer);
+            writer = null;
+        }
+    }
+
+    /** Exposes its buffer so the bytes can be appended without another copy. */
+    private static final class BlobBuffer extends ByteArrayOutputStream {
+        BlobBuffer() {
+            super(32 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
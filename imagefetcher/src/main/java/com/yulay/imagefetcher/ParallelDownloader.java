@@ -0,0 +1,469 @@
+package com.yulay.imagefetcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads very large images over several connections at once, for links where a single
+ * connection can't use the available bandwidth, such as high-latency mobile networks.
+ *
+ * <p>An image is first requested as a whole, with a plain GET. Only a response of at least
+ * {@link Builder#minLength(long)} bytes, within the transport's size limit, from a server that
+ * accepts ranges and gives a strong ETag or a Last-Modified date is split; any other response is
+ * read as is. The validator is sent as If-Range with every range, so that a range of another
+ * version of the image fails the download rather than being stitched in.
+ *
+ * <p>A split image is written into a staging file preallocated to its full length, each
+ * connection writing at its own offsets. The first response goes on reading its body chunk by
+ * chunk from the start, while the other connections fetch chunks with Range requests from the
+ * end, until the two meet. The image is then read back from that file, which is deleted once the
+ * stream is closed.
+ *
+ * <p>The number of connections adapts to the throughput they reach. Another connection is opened
+ * each time a chunk completes while the throughput per connection holds up, which means the
+ * connections are limited one by one rather than by a shared link; once adding connections only
+ * divides the same bandwidth, no more are opened.
+ */
+public final class ParallelDownloader {
+    /** {@value} */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    /** {@value} */
+    public static final long DEFAULT_MIN_LENGTH = 5 * 1024 * 1024; // 5 Mb
+    /** {@value} */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1 Mb
+
+    /** Another connection is opened while each one keeps at least this share of the best rate. */
+    private static final double GROWTH_THRESHOLD = 0.75;
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    private static final String STAGING_SUFFIX = ".download";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File stagingDirectory;
+    private final int maxConnections;
+    private final long minLength;
+    private final int chunkSize;
+    private final ExecutorService executor;
+    private boolean leftoversDeleted;
+
+    private ParallelDownloader(Builder builder) {
+        this.stagingDirectory = builder.stagingDirectory;
+        this.maxConnections = builder.maxConnections;
+        this.minLength = builder.minLength;
+        this.chunkSize = builder.chunkSize;
+        this.executor = builder.executor != null ? builder.executor : createDefaultExecutor();
+    }
+
+    /**
+     * Returns true if the image a plain GET of {@code url} answered with should be split: the
+     * whole image of at least {@link Builder#minLength(long)} bytes, from a server that accepts
+     * ranges, with a validator to keep every range to the same version.
+     *
+     * @param ifRange the strong ETag or Last-Modified date of the response, or null
+     */
+    boolean shouldSplit(Transport.Response response, String ifRange) {
+        final long length = response.getContentLength();
+        return response.getCode() == HttpURLConnection.HTTP_OK && ifRange != null
+                && length >= minLength && length > chunkSize
+                && "bytes".equalsIgnoreCase(response.getHeader(HEADER_ACCEPT_RANGES));
+    }
+
+    /**
+     * Downloads the image {@code response} starts, which {@link #shouldSplit} accepted, over
+     * several connections. Cancelling the token closes every connection of the download.
+     *
+     * @param cancellation the token of the work, or null
+     * @return the image, read back from its staging file
+     */
+    InputStream download(Transport transport, String url, Transport.Response response, String ifRange,
+                         CancellationToken cancellation) throws IOException {
+        final long length = response.getContentLength();
+        final long maxLength = transport instanceof HttpTransport
+                ? ((HttpTransport) transport).getMaxContentLength() : 0;
+        if (maxLength > 0 && length > maxLength) {
+            // The staging file would be preallocated to this length
+            response.close();
+            throw new Transport.ResponseTooLargeException("Content-Length " + length
+                    + " exceeds " + maxLength + " for " + url);
+        }
+        return downloadToFile(transport, url, ifRange, response, length, cancellation);
+    }
+
+    private InputStream downloadToFile(Transport transport, String url, String ifRange,
+                                       Transport.Response first, long length,
+                                       CancellationToken cancellation) throws IOException {
+        final File file;
+        final RandomAccessFile staging;
+        try {
+            file = createStagingFile(url);
+            staging = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            first.close();
+            throw e;
+        }
+        boolean success = false;
+        try {
+            staging.setLength(length);
+            final Download download = new Download(transport, url, ifRange, staging.getChannel(),
+                    length, cancellation);
+            download.run(first);
+            success = true;
+        } finally {
+            Utils.closeQuietly(staging);
+            if (!success) {
+                file.delete();
+            }
+        }
+        return new FilterInputStream(new FileInputStream(file)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    file.delete();
+                }
+            }
+        };
+    }
+
+    private synchronized File createStagingFile(String url) throws IOException {
+        if (!stagingDirectory.exists() && !stagingDirectory.mkdirs()) {
+            throw new IOException("can't create " + stagingDirectory);
+        }
+        if (!leftoversDeleted) {
+            // Files of downloads a previous process did not finish
+            final File[] files = stagingDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(STAGING_SUFFIX)) {
+                        file.delete();
+                    }
+                }
+            }
+            leftoversDeleted = true;
+        }
+        return File.createTempFile(DiskCacheUtils.hashKeyForDisk(url), STAGING_SUFFIX, stagingDirectory);
+    }
+
+    private static Transport.Response fetchRange(Transport transport, String url, String ifRange,
+                                                 long start, long end) throws IOException {
+        final Transport.Response response = transport.execute(new Transport.Request.Builder(url)
+                .header(NetworkImageProcessor.HEADER_RANGE, "bytes=" + start + "-" + end)
+                .header(NetworkImageProcessor.HEADER_IF_RANGE, ifRange)
+                .build());
+        if (response.getCode() != HttpURLConnection.HTTP_PARTIAL
+                || !NetworkImageProcessor.startsAt(
+                        response.getHeader(NetworkImageProcessor.HEADER_CONTENT_RANGE), start)) {
+            // The image changed since the first response
+            response.close();
+            throw new Transport.ResponseException(response.getCode(),
+                    "Range " + start + "-" + end + " of " + url + " not served");
+        }
+        return response;
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ParallelDownloader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** One image being downloaded into its staging file. */
+    private final class Download {
+        private final Transport transport;
+        private final String url;
+        private final String ifRange;
+        private final FileChannel channel;
+        private final CancellationToken cancellation;
+        // Guarded by this
+        /** Chunks nobody fetches yet, as {start, end} pairs in order. */
+        private final ArrayDeque<long[]> chunks = new ArrayDeque<long[]>();
+        private int connections;
+        private long bytesWritten;
+        private long lastBytesWritten;
+        private long lastRateTime;
+        private double bestRatePerConnection;
+        private IOException failure;
+
+        Download(Transport transport, String url, String ifRange, FileChannel channel, long length,
+                 CancellationToken cancellation) {
+            this.transport = transport;
+            this.url = url;
+            this.ifRange = ifRange;
+            this.channel = channel;
+            this.cancellation = cancellation;
+            for (long start = 0; start < length; start += chunkSize) {
+                chunks.add(new long[]{start, Math.min(start + chunkSize, length) - 1});
+            }
+        }
+
+        /**
+         * Reads the body of the {@code first} response on the calling thread while a second
+         * connection starts on the last chunks, and returns once every chunk is written.
+         */
+        void run(Transport.Response first) throws IOException {
+            synchronized (this) {
+                connections = 1;
+                lastRateTime = System.nanoTime();
+            }
+            final CancellationToken.OnCancelListener stop = new CancellationToken.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    fail(new InterruptedIOException("Cancelled"));
+                }
+            };
+            if (cancellation != null) {
+                cancellation.addOnCancelListener(stop);
+            }
+            startConnection();
+            try {
+                readInOrder(first);
+                fetchChunks();
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                connectionDone();
+            }
+            synchronized (this) {
+                boolean interrupted = false;
+                while (connections > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        if (failure == null) {
+                            failure = new IOException("Interrupted while downloading " + url);
+                        }
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (cancellation != null) {
+                    cancellation.removeOnCancelListener(stop);
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+
+        private void startConnection() {
+            synchronized (this) {
+                if (connections >= maxConnections || chunks.isEmpty() || failure != null) {
+                    return;
+                }
+                connections++;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fetchChunks();
+                        } catch (IOException e) {
+                            fail(e);
+                        } finally {
+                            connectionDone();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The connections already open fetch the rest
+                connectionDone();
+            }
+        }
+
+        private void fetchChunks() throws IOException {
+            long[] chunk;
+            while (!hasFailed() && (chunk = takeLastChunk()) != null) {
+                fetch(fetchRange(transport, url, ifRange, chunk[0], chunk[1]), chunk[0], chunk[1]);
+            }
+        }
+
+        /**
+         * Writes the chunks of the whole image {@code response} holds, from the start, until the
+         * next one is taken by another connection. The response is then closed, so at most what
+         * the connection buffered of that chunk is received twice.
+         */
+        private void readInOrder(Transport.Response response) throws IOException {
+            final CancellationToken.OnCancelListener abort = cancellation != null
+                    ? NetworkImageProcessor.closeOnCancel(cancellation, response) : null;
+            try {
+                long[] chunk;
+                long position = 0;
+                while (!hasFailed() && (chunk = takeChunkAt(position)) != null) {
+                    write(response.getBody(), chunk[0], chunk[1], false);
+                    position = chunk[1] + 1;
+                    chunkDone();
+                }
+            } finally {
+                response.close();
+                if (abort != null) {
+                    cancellation.removeOnCancelListener(abort);
+                }
+            }
+        }
+
+        /** Writes the range a response holds, closing the response if the download is cancelled. */
+        private void fetch(Transport.Response response, long start, long end) throws IOException {
+            final CancellationToken.OnCancelListener abort = cancellation != null
+                    ? NetworkImageProcessor.closeOnCancel(cancellation, response) : null;
+            try {
+                write(response.getBody(), start, end, true);
+            } finally {
+                response.close();
+                if (abort != null) {
+                    cancellation.removeOnCancelListener(abort);
+                }
+            }
+            chunkDone();
+        }
+
+        /** Takes the first chunk left if it starts at {@code position}, or returns null. */
+        private synchronized long[] takeChunkAt(long position) {
+            final long[] chunk = chunks.peekFirst();
+            return chunk != null && chunk[0] == position ? chunks.pollFirst() : null;
+        }
+
+        private synchronized long[] takeLastChunk() {
+            return chunks.pollLast();
+        }
+
+        /**
+         * Writes the bytes from {@code start} to {@code end} inclusive at their offsets.
+         *
+         * @param wholeBody true if the body must end with the range, as the answer to a Range request
+         */
+        private void write(InputStream body, long start, long end, boolean wholeBody) throws IOException {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            int count;
+            while (position <= end && (count = body.read(buffer, 0,
+                    (int) Math.min(buffer.length, end - position + 1))) != -1) {
+                final ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+                synchronized (this) {
+                    bytesWritten += count;
+                }
+                if (hasFailed()) {
+                    return;
+                }
+            }
+            if (position <= end) {
+                throw new IOException("Range " + start + "-" + end + " of " + url + " ended at " + position);
+            }
+            // Reach the end of the body so the connection is reused for the next chunk
+            if (wholeBody && body.read() != -1) {
+                throw new IOException("Range " + start + "-" + end + " of " + url + " is too long");
+            }
+        }
+
+        /** Opens another connection if the ones open each keep up with the best rate seen. */
+        private void chunkDone() {
+            final boolean grow;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                final long elapsed = Math.max(now - lastRateTime, 1);
+                final double ratePerConnection =
+                        (double) (bytesWritten - lastBytesWritten) / elapsed / connections;
+                lastBytesWritten = bytesWritten;
+                lastRateTime = now;
+                bestRatePerConnection = Math.max(bestRatePerConnection, ratePerConnection);
+                grow = ratePerConnection >= bestRatePerConnection * GROWTH_THRESHOLD;
+            }
+            if (grow) {
+                startConnection();
+            }
+        }
+
+        private synchronized boolean hasFailed() {
+            return failure != null;
+        }
+
+        private synchronized void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        private synchronized void connectionDone() {
+            connections--;
+            notifyAll();
+        }
+    }
+
+    public static final class Builder {
+        private final File stagingDirectory;
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private long minLength = DEFAULT_MIN_LENGTH;
+        private int chunkSize = DEFAULT_CHUNK_SIZE;
+        private ExecutorService executor;
+
+        /**
+         * @param stagingDirectory where images are assembled while they download
+         */
+        public Builder(File stagingDirectory) {
+            if (stagingDirectory == null) {
+                throw new IllegalArgumentException("stagingDirectory must not be null.");
+            }
+            this.stagingDirectory = stagingDirectory;
+        }
+
+        /** Sets the most connections used for one image. */
+        public Builder maxConnections(int maxConnections) {
+            if (maxConnections <= 0) throw new IllegalArgumentException("maxConnections must be a positive number");
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /** Sets the smallest image downloaded over several connections; smaller ones take one GET. */
+        public Builder minLength(long minLength) {
+            if (minLength <= 0) throw new IllegalArgumentException("minLength must be a positive number");
+            this.minLength = minLength;
+            return this;
+        }
+
+        /** Sets the size of the ranges an image is split into. */
+        public Builder chunkSize(int chunkSize) {
+            if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be a positive number");
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Sets the executor running the extra connections. Defaults to a cached pool of daemon
+         * threads.
+         */
+        public Builder executor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public ParallelDownloader build() {
+            return new ParallelDownloader(this);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.yulay.imagefetcher;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A staging area for large downloads that did not finish. The bytes received so far are kept
+ * with the validator of the response, so the next request for the same URL can resume with a
+ * Range request made conditional with If-Range instead of starting over.
+ *
+ * <p>Each download is a {@code .part} file holding the bytes received so far, and a
+ * {@code .meta} file holding the If-Range validator and the full length. The oldest downloads are
+ * dropped once the area grows past its size limit.
+ */
+final class PartialDownloads {
+    private static final String TAG = "PartialDownloads";
+    private static final String DATA_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".meta";
+    private static final String VERSION = "1";
+
+    private final File directory;
+    private final long maxSize;
+    /** URLs being downloaded, so that two downloads of a URL never write the same file. */
+    private final Set<String> claimed = new HashSet<String>();
+
+    /** A download that can be resumed. */
+    static final class Partial {
+        final File data;
+        /** The ETag or Last-Modified date the download must still match to be resumed. */
+        final String ifRange;
+        /** Number of bytes already received. */
+        final long length;
+        final long totalLength;
+
+        Partial(File data, String ifRange, long length, long totalLength) {
+            this.data = data;
+            this.ifRange = ifRange;
+            this.length = length;
+            this.totalLength = totalLength;
+        }
+    }
+
+    PartialDownloads(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Reserves the staging of {@code url} for the calling download. Returns false if another
+     * download of it is in progress, in which case nothing must be staged.
+     */
+    synchronized boolean claim(String url) {
+        return claimed.add(url);
+    }
+
+    synchronized void release(String url) {
+        claimed.remove(url);
+    }
+
+    /** Returns the download of {@code url} that can be resumed, or null. Must be claimed. */
+    Partial find(String url) {
+        final File meta = metaFile(url);
+        final File data = dataFile(url);
+        if (!meta.exists()) {
+            data.delete();
+            return null;
+        }
+        try {
+            final String[] lines = readFully(meta).split("\n", -1);
+            if (lines.length >= 3 && VERSION.equals(lines[0]) && lines[1].length() > 0) {
+                final long totalLength = Long.parseLong(lines[2]);
+                final long length = data.length();
+                if (length > 0 && length < totalLength) {
+                    return new Partial(data, lines[1], length, totalLength);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "find - " + e);
+        } catch (NumberFormatException e) {
+            // unreadable, start over
+        }
+        discard(url);
+        return null;
+    }
+
+    /** Starts staging a new download of {@code url}. Must be claimed. */
+    OutputStream begin(String url, String ifRange, long totalLength) throws IOException {
+        prune();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("can't create " + directory);
+        }
+        final OutputStream meta = new FileOutputStream(metaFile(url));
+        try {
+            meta.write((VERSION + '\n' + ifRange + '\n' + totalLength + '\n').getBytes("UTF-8"));
+        } finally {
+            meta.close();
+        }
+        return new FileOutputStream(dataFile(url), false);
+    }
+
+    /** Appends to a download found by {@link #find(String)}. */
+    OutputStream resume(Partial partial) throws IOException {
+        return new FileOutputStream(partial.data, true);
+    }
+
+    /** Drops the download of {@code url}, finished or not. */
+    void discard(String url) {
+        dataFile(url).delete();
+        metaFile(url).delete();
+    }
+
+    /** Drops the oldest downloads until the area is below its size limit. */
+    private void prune() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && size > maxSize; i++) {
+            final String name = files[i].getName();
+            if (!name.endsWith(DATA_SUFFIX)) {
+                continue;
+            }
+            final String hash = name.substring(0, name.length() - DATA_SUFFIX.length());
+            synchronized (this) {
+                // A download in progress keeps its file
+                boolean inUse = false;
+                for (String url : claimed) {
+                    if (DiskCacheUtils.hashKeyForDisk(url).equals(hash)) {
+                        inUse = true;
+                        break;
+                    }
+                }
+                if (inUse) {
+                    continue;
+                }
+            }
+            size -= files[i].length();
+            files[i].delete();
+            new File(directory, hash + META_SUFFIX).delete();
+        }
+    }
+
+    private File dataFile(String url) {
+        return new File(directory, DiskCacheUtils.hashKeyForDisk(url) + DATA_SUFFIX);
+    }
+
+    private File metaFile(String url) {
+        return new File(directory, DiskCacheUtils.hashKeyForDisk(url) + META_SUFFIX);
+    }
+
+    private static String readFully(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Utils.copy(in, bytes, 256);
+            return bytes.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.yulay.imagefetcher;
+
+/** Designates the cache a prefetch warms. */
+public enum PrefetchTarget {
+    /**
+     * Stores the image in the disk cache only. In {@link DiskCacheMode#SOURCE} the source is
+     * downloaded without being decoded, so the cost is bandwidth and disk space, not memory.
+     */
+    DISK_ONLY,
+    /**
+     * Decodes the image into the memory cache at the requested size, going through the disk
+     * cache like any load. A view bound to it later shows it right away.
+     */
+    MEMORY
+}
@@ -0,0 +1,12 @@
+package com.yulay.imagefetcher;
+
+/**
+ * Order in which queued loads are started. Among loads of the same priority the most recently
+ * requested one runs first, so the images on screen after a fling do not wait behind rows that
+ * have already scrolled away.
+ */
+public enum Priority {
+    LOW,
+    NORMAL,
+    HIGH
+}
@@ -0,0 +1,217 @@
+package com.yulay.imagefetcher;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Adds {@link #mark(int)} and {@link #reset()} support to streams that can't rewind, such as the
+ * body of an HTTP response. Bytes read after a mark are recorded into a buffer taken from a
+ * {@link ByteArrayPool}. Once that buffer is full the rest of the marked region is spooled into a
+ * temporary file, so a reset still works when an image header is larger than the buffer.
+ *
+ * <p>Call {@link #release()} once done to hand the buffer back to the pool and delete the spool
+ * file. Unlike {@link #close()}, this leaves the wrapped stream open.
+ */
+final class RecyclableBufferedInputStream extends FilterInputStream {
+    private static final String SPOOL_PREFIX = "decode";
+    private static final String SPOOL_SUFFIX = ".spool";
+
+    private final ByteArrayPool pool;
+    private final File spoolDirectory;
+    private final byte[] single = new byte[1];
+    private byte[] buffer;
+
+    /** Number of recorded bytes held in the buffer. */
+    private int bufferCount;
+    /** Number of recorded bytes held in the spool file, following the ones in the buffer. */
+    private long spoolCount;
+    private File spoolFile;
+    private RandomAccessFile spool;
+    private boolean spoolEnabled = true;
+
+    /** Position of the mark in the recorded bytes, or -1 if there is no valid mark. */
+    private long markPos = -1;
+    private int markLimit;
+    /** Read position in the recorded bytes. Equal to the recorded length unless replaying. */
+    private long readPos;
+
+    RecyclableBufferedInputStream(InputStream in, ByteArrayPool pool, File spoolDirectory) {
+        super(in);
+        this.pool = pool;
+        this.spoolDirectory = spoolDirectory;
+        this.buffer = pool.get();
+    }
+
+    private long recorded() {
+        return bufferCount + spoolCount;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        if (markPos >= 0 && markPos == readPos) {
+            // Marking the same position again, e.g. by BitmapFactory itself, must not shrink
+            // the region the caller asked to keep.
+            markLimit = Math.max(markLimit, readlimit);
+            return;
+        }
+        if (readPos == recorded()) {
+            clearRecording();
+        }
+        markPos = readPos;
+        markLimit = readlimit;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (markPos < 0) {
+            throw new IOException("Mark has been invalidated");
+        }
+        readPos = markPos;
+    }
+
+    /**
+     * Limits any further recording to the in-memory buffer. Call this once the caller's own
+     * reset is done, so marks placed by the decoder don't spool the whole image to disk.
+     */
+    synchronized void fixMarkLimit() {
+        markLimit = buffer.length;
+        spoolEnabled = false;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        final int count = read(single, 0, 1);
+        return count == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream has been released");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        final long recorded = recorded();
+        if (readPos < recorded) {
+            final int count = readRecorded(readPos, b, off, (int) Math.min(len, recorded - readPos));
+            readPos += count;
+            if (markPos < 0 && readPos == recorded) {
+                clearRecording();
+            }
+            return count;
+        }
+
+        final int count = in.read(b, off, len);
+        if (count > 0 && markPos >= 0) {
+            if (recorded + count - markPos > markLimit || !record(b, off, count)) {
+                markPos = -1;
+                clearRecording();
+            } else {
+                readPos += count;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes must still be recorded, so read them instead of skipping the source.
+        final byte[] scratch = new byte[(int) Math.min(Math.max(n, 0), 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            final int count = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+            if (count == -1) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        final long replayable = recorded() - readPos;
+        return (int) Math.min(Integer.MAX_VALUE, replayable + in.available());
+    }
+
+    /** Returns the buffer to its pool and deletes the spool file, leaving the source open. */
+    synchronized void release() {
+        if (buffer != null) {
+            pool.put(buffer);
+            buffer = null;
+        }
+        if (spool != null) {
+            Utils.closeQuietly(spool);
+            spool = null;
+        }
+        if (spoolFile != null) {
+            spoolFile.delete();
+            spoolFile = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        super.close();
+    }
+
+    private int readRecorded(long position, byte[] b, int off, int len) throws IOException {
+        if (position < bufferCount) {
+            final int count = (int) Math.min(len, bufferCount - position);
+            System.arraycopy(buffer, (int) position, b, off, count);
+            return count;
+        }
+        spool.seek(position - bufferCount);
+        final int count = spool.read(b, off, len);
+        if (count == -1) {
+            throw new IOException("Spool file is shorter than expected");
+        }
+        return count;
+    }
+
+    /** Appends freshly read bytes to the recording. Returns false if they could not be kept. */
+    private boolean record(byte[] b, int off, int len) {
+        int remaining = len;
+        if (spoolCount == 0) {
+            final int inBuffer = Math.min(remaining, buffer.length - bufferCount);
+            System.arraycopy(b, off, buffer, bufferCount, inBuffer);
+            bufferCount += inBuffer;
+            off += inBuffer;
+            remaining -= inBuffer;
+        }
+        if (remaining == 0) {
+            return true;
+        }
+        if (!spoolEnabled) {
+            return false;
+        }
+        try {
+            if (spool == null) {
+                spoolFile = File.createTempFile(SPOOL_PREFIX, SPOOL_SUFFIX, spoolDirectory);
+                spool = new RandomAccessFile(spoolFile, "rw");
+            }
+            spool.seek(spoolCount);
+            spool.write(b, off, remaining);
+            spoolCount += remaining;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void clearRecording() {
+        bufferCount = 0;
+        spoolCount = 0;
+        readPos = 0;
+    }
+}
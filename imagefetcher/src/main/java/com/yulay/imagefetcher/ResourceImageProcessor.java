@@ -17,7 +17,15 @@ public class ResourceImageProcessor extends ImageProcessor {
 
     @Override
     public Result process(Object data, DisplayOptions options) {
+        return process(data, options, null, null);
+    }
+
+    /** Decodes the resource, stopping the decode as soon as {@code cancellation} is cancelled. */
+    @Override
+    public Result process(Object data, DisplayOptions options, CacheValidators validators,
+                          CancellationToken cancellation) {
         int resourceId = (Integer) data;
-        return new Result(ImageDecodeHelper.decodeSampledBitmapFromResource(resources, resourceId, options), null);
+        return new Result(ImageDecodeHelper.decodeSampledBitmapFromResource(resources, resourceId, options,
+                cancellation), null);
     }
 }
@@ -0,0 +1,344 @@
+package com.yulay.imagefetcher;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prefetches the images of the rows about to scroll into view. It follows the direction and
+ * speed of the scroll, works out which adapter positions show next and loads their images ahead
+ * of time with the options the rows use, so that rows appearing after a fling are already
+ * decoded.
+ *
+ * <p>During very fast flings the rows go by before any download could finish. Downloads are then
+ * paused with {@link ImageWorker#setPauseNetworkWork(boolean)} while disk and memory cache hits
+ * keep flowing, and prefetching starts again ahead of where the fling slows down.
+ *
+ * <p>Set it as the {@link AbsListView.OnScrollListener} of a ListView or GridView. A RecyclerView,
+ * or any other scrolling container, forwards its scroll events to
+ * {@link #onScrolled(int, int, int)} and {@link #onScrollStopped()}. Call {@link #release()} when
+ * the list goes away. Main thread only.
+ */
+public class ScrollPrefetcher implements AbsListView.OnScrollListener {
+    /** Maps an adapter position to the data its image is loaded with. */
+    public interface DataResolver {
+        /** Returns the data of the image shown at {@code position}, or null if it shows none. */
+        Object getData(int position);
+    }
+
+    /** Starts the prefetches, an {@link ImageWorker} outside of tests. */
+    interface Loader {
+        Batch prefetch(List<Object> data, DisplayOptions options, PrefetchTarget target);
+
+        void setPauseNetworkWork(boolean paused);
+    }
+
+    /** A batch started by a {@link Loader}, as {@link ImageWorker.Prefetch}. */
+    interface Batch {
+        void cancel();
+
+        boolean isDone();
+    }
+
+    public static final int DEFAULT_MAX_ITEMS = 24;
+    public static final float DEFAULT_PAUSE_SCREENS_PER_SECOND = 4f;
+    /** How far ahead of the scroll, in time, images are prefetched. */
+    private static final long LOOKAHEAD_MILLIS = 1000;
+    /** A gap between two position changes longer than this starts a new velocity estimate. */
+    private static final long VELOCITY_RESET_MILLIS = 250;
+    /** Batches kept loading in the scroll direction; positions past them wait for one to finish. */
+    private static final int MAX_BATCHES = 3;
+
+    private final Loader loader;
+    private final DataResolver resolver;
+    private final DisplayOptions displayOptions;
+    private final PrefetchTarget target;
+    private final int maxItems;
+    private final float pauseScreensPerSecond;
+
+    /** The running batches, the nearest first. */
+    private final ArrayDeque<Running> batches = new ArrayDeque<Running>(MAX_BATCHES);
+    private int firstVisible = -1;
+    private int visibleCount;
+    private int itemCount;
+    private long lastMoveTime;
+    /** Positions per second, positive towards the end of the adapter. */
+    private float velocity;
+    /** Direction of the last batches: 1 or -1, or 0 before any. */
+    private int direction;
+    /** The position after the last one prefetched, in {@link #direction}. */
+    private int prefetchedTo;
+    private boolean networkPaused;
+
+    private ScrollPrefetcher(Builder builder) {
+        loader = builder.loader;
+        resolver = builder.resolver;
+        displayOptions = builder.displayOptions;
+        target = builder.target;
+        maxItems = builder.maxItems;
+        pauseScreensPerSecond = builder.pauseScreensPerSecond;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+            onScrollStopped();
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        onScrolled(firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+
+    /**
+     * Called whenever the list scrolls, with the first position at least partly visible, the
+     * number of positions visible and the number of positions in the adapter.
+     */
+    public void onScrolled(int firstVisiblePosition, int visibleCount, int itemCount) {
+        onScrolled(firstVisiblePosition, visibleCount, itemCount, SystemClock.uptimeMillis());
+    }
+
+    /** Like {@link #onScrolled(int, int, int)}, at {@code now} in milliseconds. */
+    void onScrolled(int firstVisiblePosition, int visibleCount, int itemCount, long now) {
+        this.visibleCount = visibleCount;
+        this.itemCount = itemCount;
+        if (visibleCount <= 0 || itemCount <= 0) {
+            return;
+        }
+        if (firstVisible < 0) {
+            firstVisible = firstVisiblePosition;
+            lastMoveTime = now;
+            return;
+        }
+        if (firstVisiblePosition == firstVisible) {
+            return;
+        }
+        final long elapsed = Math.max(1, now - lastMoveTime);
+        final float sample = (firstVisiblePosition - firstVisible) * 1000f / elapsed;
+        velocity = elapsed > VELOCITY_RESET_MILLIS || Math.signum(sample) != Math.signum(velocity)
+                ? sample : (velocity + sample) / 2;
+        firstVisible = firstVisiblePosition;
+        lastMoveTime = now;
+
+        if (Math.abs(velocity) > visibleCount * pauseScreensPerSecond) {
+            // The rows ahead will have gone by before their images arrive
+            setNetworkPaused(true);
+            cancelBatches();
+            return;
+        }
+        setNetworkPaused(false);
+        prefetch(velocity > 0 ? 1 : -1, lookahead(velocity, visibleCount, maxItems));
+    }
+
+    /** Called once the list stops scrolling. Prefetches a screen ahead in the last direction. */
+    public void onScrollStopped() {
+        velocity = 0;
+        setNetworkPaused(false);
+        if (direction != 0 && firstVisible >= 0 && visibleCount > 0) {
+            prefetch(direction, Math.min(visibleCount, maxItems));
+        }
+    }
+
+    /** Cancels the prefetches and resumes downloads, for instance when the list is hidden. */
+    public void release() {
+        cancelBatches();
+        setNetworkPaused(false);
+        direction = 0;
+        firstVisible = -1;
+        velocity = 0;
+    }
+
+    /**
+     * Prefetches {@code count} positions past the visible ones in {@code towards}, skipping the
+     * positions already asked for by the running batches. While a batch is loading, the few
+     * positions a slow scroll uncovers are left for a later, larger batch, and no batch is
+     * started past {@link #MAX_BATCHES} running ones, so the nearest images always go first.
+     */
+    private void prefetch(int towards, int count) {
+        final int from = towards > 0 ? firstVisible + visibleCount : firstVisible - 1;
+        if (towards != direction) {
+            // What was prefetched in the other direction is no longer wanted
+            cancelBatches();
+            direction = towards;
+            prefetchedTo = from;
+        }
+        while (!batches.isEmpty() && batches.peek().batch.isDone()) {
+            batches.poll();
+        }
+        final int[] range = nextRange(from, count, towards, prefetchedTo, itemCount);
+        if (range == null || batches.size() >= MAX_BATCHES
+                || (!batches.isEmpty() && Math.abs(range[1] - range[0]) < minBatchSize(count))) {
+            return;
+        }
+        final List<Object> data = new ArrayList<Object>(Math.abs(range[1] - range[0]));
+        for (int position = range[0]; position != range[1]; position += towards) {
+            final Object item = resolver.getData(position);
+            if (item != null) {
+                data.add(item);
+            }
+        }
+        prefetchedTo = range[1];
+        if (data.isEmpty()) {
+            return;
+        }
+        batches.add(new Running(loader.prefetch(data, displayOptions, target), range[0]));
+    }
+
+    /**
+     * Cancels the batches, farthest first. The positions of those not done are prefetched again
+     * by the next batch in the same direction, such as the one started once a fling stops.
+     */
+    private void cancelBatches() {
+        Running running;
+        while ((running = batches.pollLast()) != null) {
+            if (!running.batch.isDone()) {
+                prefetchedTo = running.start;
+            }
+            running.batch.cancel();
+        }
+    }
+
+    private void setNetworkPaused(boolean paused) {
+        if (networkPaused != paused) {
+            networkPaused = paused;
+            loader.setPauseNetworkWork(paused);
+        }
+    }
+
+    /** Returns the fewest positions worth a batch of their own while another one is loading. */
+    static int minBatchSize(int count) {
+        return Math.max(1, count / 2);
+    }
+
+    /**
+     * Returns how many positions to prefetch at {@code velocity} positions per second: those
+     * reached within {@link #LOOKAHEAD_MILLIS}, at least a screen and at most {@code maxItems}.
+     */
+    static int lookahead(float velocity, int visibleCount, int maxItems) {
+        final int reached = Math.round(Math.abs(velocity) * LOOKAHEAD_MILLIS / 1000f);
+        return Math.min(maxItems, Math.max(visibleCount, reached));
+    }
+
+    /**
+     * Returns the positions to prefetch as {start, end}, end excluded, walking in
+     * {@code towards}: the {@code count} positions from {@code from}, less those before
+     * {@code prefetchedTo} that were asked for already, within the adapter. Returns null if there
+     * are none.
+     */
+    static int[] nextRange(int from, int count, int towards, int prefetchedTo, int itemCount) {
+        final int start;
+        final int end;
+        if (towards > 0) {
+            start = Math.max(from, prefetchedTo);
+            end = Math.min(from + count, itemCount);
+            return start < end ? new int[] {start, end} : null;
+        }
+        start = Math.min(from, prefetchedTo);
+        end = Math.max(from - count, -1);
+        return start > end ? new int[] {start, end} : null;
+    }
+
+    /** A batch and the first position it covers. */
+    private static final class Running {
+        final Batch batch;
+        final int start;
+
+        Running(Batch batch, int start) {
+            this.batch = batch;
+            this.start = start;
+        }
+    }
+
+    private static Loader loaderOf(final ImageWorker worker) {
+        return new Loader() {
+            @Override
+            public Batch prefetch(List<Object> data, DisplayOptions options, PrefetchTarget target) {
+                final ImageWorker.Prefetch prefetch = worker.prefetch(data, options, target);
+                return new Batch() {
+                    @Override
+                    public void cancel() {
+                        prefetch.cancel();
+                    }
+
+                    @Override
+                    public boolean isDone() {
+                        return prefetch.isDone();
+                    }
+                };
+            }
+
+            @Override
+            public void setPauseNetworkWork(boolean paused) {
+                worker.setPauseNetworkWork(paused);
+            }
+        };
+    }
+
+    public static final class Builder {
+        private final Loader loader;
+        private final DataResolver resolver;
+        private DisplayOptions displayOptions;
+        private PrefetchTarget target = PrefetchTarget.MEMORY;
+        private int maxItems = DEFAULT_MAX_ITEMS;
+        private float pauseScreensPerSecond = DEFAULT_PAUSE_SCREENS_PER_SECOND;
+
+        public Builder(ImageWorker worker, DataResolver resolver) {
+            this(worker != null ? loaderOf(worker) : null, resolver);
+        }
+
+        Builder(Loader loader, DataResolver resolver) {
+            if (loader == null || resolver == null) {
+                throw new IllegalArgumentException("ImageWorker and resolver must not be null.");
+            }
+            this.loader = loader;
+            this.resolver = resolver;
+        }
+
+        /**
+         * Sets the options the rows load their images with, the size above all, so that the
+         * prefetched images are the ones the rows look up. Defaults to the worker's default
+         * options.
+         */
+        public Builder displayOptions(DisplayOptions displayOptions) {
+            this.displayOptions = displayOptions;
+            return this;
+        }
+
+        /** Sets the cache warmed. Defaults to {@link PrefetchTarget#MEMORY}. */
+        public Builder target(PrefetchTarget target) {
+            if (target == null) {
+                throw new IllegalArgumentException("PrefetchTarget must not be null.");
+            }
+            this.target = target;
+            return this;
+        }
+
+        /**
+         * Sets the most positions prefetched ahead of the visible ones. Defaults to
+         * {@value #DEFAULT_MAX_ITEMS}.
+         */
+        public Builder maxItems(int maxItems) {
+            if (maxItems <= 0) throw new IllegalArgumentException("maxItems must be a positive number");
+            this.maxItems = maxItems;
+            return this;
+        }
+
+        /**
+         * Sets the scroll speed, in screens per second, above which downloads are paused.
+         * Defaults to {@value #DEFAULT_PAUSE_SCREENS_PER_SECOND}.
+         */
+        public Builder pauseNetworkAbove(float screensPerSecond) {
+            if (screensPerSecond <= 0) throw new IllegalArgumentException("screensPerSecond must be a positive number");
+            this.pauseScreensPerSecond = screensPerSecond;
+            return this;
+        }
+
+        public ScrollPrefetcher build() {
+            return new ScrollPrefetcher(this);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.yulay.imagefetcher;
+
+import android.graphics.Bitmap;
+
+/**
+ * Receives an image loaded for something other than an ImageView: a notification, an app widget,
+ * a share sheet. The load goes through the same caches and shares the same downloads and decodes
+ * as the loads into views.
+ *
+ * <p>Callbacks run on the main thread. A bitmap handed to a target is never put back in the
+ * bitmap pool, so it may be kept as long as needed.
+ *
+ * @see ImageWorker#loadImage(Object, Target, DisplayOptions)
+ */
+public interface Target {
+    /** Called once the image has been loaded. */
+    void onBitmapLoaded(Bitmap bitmap);
+
+    /** Called if the image could not be loaded. */
+    void onBitmapFailed();
+}
@@ -0,0 +1,73 @@
+package com.yulay.imagefetcher;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies the bytes read from a stream to another stream, so that a source is written to the disk
+ * cache while it is decoded. A failed write only stops the copy; the stream can still be read to
+ * its end.
+ */
+final class TeeInputStream extends FilterInputStream {
+    private final OutputStream sink;
+    private boolean sinkFailed;
+
+    TeeInputStream(InputStream in, OutputStream sink) {
+        super(in);
+        this.sink = sink;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int count = read(single, 0, 1);
+        return count == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        final int read = in.read(buffer, offset, count);
+        if (read > 0 && !sinkFailed) {
+            try {
+                sink.write(buffer, offset, read);
+            } catch (IOException e) {
+                sinkFailed = true;
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        // Skipped bytes must still be copied
+        final byte[] buffer = new byte[(int) Math.min(count, 8 * 1024)];
+        long skipped = 0;
+        while (skipped < count) {
+            final int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Reads what the reader left behind, such as the end of a file its decoder had no use for, so
+     * that the copy is whole. Returns true if every byte was copied.
+     */
+    boolean drain() throws IOException {
+        final byte[] buffer = new byte[8 * 1024];
+        while (!sinkFailed && read(buffer, 0, buffer.length) != -1) {
+            // copied by read()
+        }
+        return !sinkFailed;
+    }
+}
@@ -0,0 +1,135 @@
+package com.yulay.imagefetcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Fetches the bytes of remote images for {@link NetworkImageProcessor}. Implementations must be
+ * safe to use from several threads at once. See {@link HttpTransport} for the default one.
+ */
+public interface Transport {
+
+    /**
+     * Executes a request and returns its response. The caller must close the response once done
+     * with the body, which hands the connection back for reuse when the body was fully read.
+     *
+     * @throws ResponseException if the server answered with an unexpected status code
+     * @throws ResponseTooLargeException if the body is larger than the transport allows
+     */
+    Response execute(Request request) throws IOException;
+
+    final class Request {
+        private final String url;
+        private final Map<String, String> headers;
+
+        private Request(String url, Map<String, String> headers) {
+            this.url = url;
+            this.headers = Collections.unmodifiableMap(headers);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        @Override public String toString() {
+            return "Request{" + url + ' ' + headers + '}';
+        }
+
+        public static final class Builder {
+            private final String url;
+            private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+            public Builder(String url) {
+                if (url == null) {
+                    throw new IllegalArgumentException("url must not be null.");
+                }
+                this.url = url;
+            }
+
+            public Builder header(String name, String value) {
+                headers.put(name, value);
+                return this;
+            }
+
+            public Request build() {
+                return new Request(url, new LinkedHashMap<String, String>(headers));
+            }
+        }
+    }
+
+    final class Response implements Closeable {
+        private final int code;
+        private final Map<String, String> headers;
+        private final long contentLength;
+        private final InputStream body;
+
+        /**
+         * @param headers the response headers, looked up ignoring case
+         * @param contentLength the length of the body, or -1 if unknown
+         */
+        public Response(int code, Map<String, String> headers, long contentLength, InputStream body) {
+            this.code = code;
+            final Map<String, String> lowerCaseHeaders = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getKey() != null) {
+                    lowerCaseHeaders.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+                }
+            }
+            this.headers = Collections.unmodifiableMap(lowerCaseHeaders);
+            this.contentLength = contentLength;
+            this.body = body;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        /** Returns the value of a response header, or null if it is absent. */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+            Utils.closeQuietly(body);
+        }
+    }
+
+    /** Thrown when a server answers with a status code the transport does not accept. */
+    class ResponseException extends IOException {
+        private final int responseCode;
+
+        public ResponseException(int responseCode, String message) {
+            super(message);
+            this.responseCode = responseCode;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+    }
+
+    /** Thrown when a response body is larger than the transport allows. */
+    class ResponseTooLargeException extends IOException {
+        public ResponseTooLargeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -21,10 +21,13 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Build;
+import android.os.Looper;
 import android.os.Build.VERSION_CODES;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * Class containing some static utility methods.
@@ -32,6 +35,13 @@ import java.io.IOException;
 final class Utils {
     private Utils() {};
 
+    /** Throws if called on the main thread, from a method that blocks. */
+    static void checkNotMainThread(String method) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException(method + "() must not be called on the main thread");
+        }
+    }
+
     static void closeQuietly(Closeable cloneable) {
         if (cloneable == null) return;
         try {
@@ -40,6 +50,22 @@ final class Utils {
         }
     }
 
+    /**
+     * Copies everything left in {@code in} to {@code out}. Neither stream is closed.
+     *
+     * @return the number of bytes copied
+     */
+    static long copy(InputStream in, OutputStream out, int bufferSize) throws IOException {
+        final byte[] buffer = new byte[bufferSize];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
     /**
      * Get the size in bytes of a bitmap in a BitmapDrawable. Note that from Android 4.4 (KitKat)
      * onward this returns the allocated memory size of the bitmap which can be larger than the
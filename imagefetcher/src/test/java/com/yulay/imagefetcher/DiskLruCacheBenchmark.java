@@ -0,0 +1,101 @@
+package com.yulay.imagefetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures {@link DiskLruCache} throughput under a grid-like load: a few threads storing small
+ * entries while others read them back. Run by hand; the numbers depend on the machine.
+ */
+@Ignore("benchmark, run manually")
+public class DiskLruCacheBenchmark {
+    private static final int KEY_COUNT = 256;
+    private static final int WRITER_COUNT = 2;
+    private static final int READER_COUNT = 6;
+    private static final long DURATION_MILLIS = 5000;
+
+    private File directory;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("DiskLruCacheBenchmark", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void mixedEditsAndReads() throws Exception {
+        final byte[] value = new byte[2 * 1024];
+        final AtomicLong edits = new AtomicLong();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+        final CountDownLatch done = new CountDownLatch(WRITER_COUNT + READER_COUNT);
+
+        for (int t = 0; t < WRITER_COUNT + READER_COUNT; t++) {
+            final boolean writer = t < WRITER_COUNT;
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = seed; System.currentTimeMillis() < deadline; i++) {
+                            final String key = "k" + (i * 31 % KEY_COUNT);
+                            if (writer) {
+                                DiskLruCache.Editor editor = cache.edit(key);
+                                if (editor != null) {
+                                    OutputStream out = editor.newOutputStream(0);
+                                    try {
+                                        out.write(value);
+                                    } finally {
+                                        out.close();
+                                    }
+                                    editor.commit();
+                                    edits.incrementAndGet();
+                                }
+                            } else {
+                                DiskLruCache.Snapshot snapshot = cache.get(key);
+                                if (snapshot != null) {
+                                    snapshot.close();
+                                }
+                                reads.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        cache.flush();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        final long seconds = DURATION_MILLIS / 1000;
+        System.out.println("DiskLruCache: " + edits.get() / seconds + " edits/s, "
+                + reads.get() / seconds + " reads/s");
+    }
+}
@@ -0,0 +1,371 @@
+package com.yulay.imagefetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises {@link DiskLruCache} on the JVM, including from many threads at once.
+ */
+public class DiskLruCacheTest {
+    private File directory;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("DiskLruCacheTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (cache != null) {
+            cache.delete();
+        }
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void edit_commitMakesValueReadable() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 2, Long.MAX_VALUE);
+        set(cache, "k1", "a", "bb");
+
+        DiskLruCache.Snapshot snapshot = cache.get("k1");
+        assertEquals("a", snapshot.getString(0));
+        assertEquals("bb", snapshot.getString(1));
+        snapshot.close();
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void edit_returnsNullWhileAnotherEditIsInProgress() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        DiskLruCache.Editor editor = cache.edit("k1");
+        assertNull(cache.edit("k1"));
+        editor.set(0, "a");
+        editor.commit();
+        assertNotNull(cache.edit("k1"));
+    }
+
+    @Test
+    public void remove_dropsValueAndSize() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "k1", "abc");
+
+        assertTrue(cache.remove("k1"));
+        assertNull(cache.get("k1"));
+        assertEquals(0, cache.size());
+        assertFalse(cache.remove("k1"));
+    }
+
+    @Test
+    public void open_restoresEntriesFromJournal() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "k1", "a");
+        set(cache, "k2", "bb");
+        cache.remove("k1");
+        cache.get("k2").close();
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        assertNull(cache.get("k1"));
+        assertEquals("bb", cache.get("k2").getString(0));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void flush_evictsLeastRecentlyReadEntry() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, 25);
+        set(cache, "a", "0123456789");
+        set(cache, "b", "0123456789");
+        cache.get("a").close();
+        set(cache, "c", "0123456789");
+        cache.flush();
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(20, cache.size());
+    }
+
+    @Test
+    public void flush_writesQueuedRecordsToTheJournal() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "k1", "a");
+        cache.flush();
+
+        String journal = DiskLruCache.readFully(new FileReader(
+                new File(directory, DiskLruCache.JOURNAL_FILE)));
+        assertTrue(journal, journal.endsWith("DIRTY k1\nCLEAN k1 1\n"));
+    }
+
+    @Test
+    public void open_deletesFilesOfEditsTheJournalLost() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        // An edit whose DIRTY line was still queued when the process died
+        File orphan = new File(directory, "k1.0.tmp");
+        assertTrue(orphan.createNewFile());
+
+        DiskLruCache crashed = cache;
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        cache.flush(); // files are swept in the background
+        assertFalse(orphan.exists());
+        crashed.close();
+    }
+
+    @Test
+    public void open_dropsEntriesWhoseFilesDoNotMatchTheJournal() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "k1", "abc");
+        set(cache, "k2", "de");
+        cache.flush();
+        // A removal whose REMOVE line was still queued when the process died
+        assertTrue(new File(directory, "k1.0").delete());
+
+        DiskLruCache crashed = cache;
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        assertNull(cache.get("k1"));
+        assertEquals("de", cache.get("k2").getString(0));
+        assertEquals(2, cache.size());
+        crashed.close();
+    }
+
+    @Test
+    public void open_readsOnlyTheJournalAfterTheIndex() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "k1", "a");
+        cache.close();
+        assertTrue(new File(directory, DiskLruCache.JOURNAL_INDEX).exists());
+        // Damage a line the index covers; parsing it would discard the whole cache
+        File journal = new File(directory, DiskLruCache.JOURNAL_FILE);
+        String text = DiskLruCache.readFully(new FileReader(journal));
+        writeFile(journal, text.replace("CLEAN k1 1", "CLEAN k1 X"));
+
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        assertEquals("a", cache.get("k1").getString(0));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void open_replaysTheJournalAfterTheIndex() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "k1", "a");
+        set(cache, "k2", "bb");
+        cache.close();
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        cache.remove("k1");
+        set(cache, "k2", "ccc");
+        set(cache, "k3", "dddd");
+        cache.flush();
+
+        // Open again without closing, as after a crash
+        DiskLruCache crashed = cache;
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        assertNull(cache.get("k1"));
+        assertEquals("ccc", cache.get("k2").getString(0));
+        assertEquals("dddd", cache.get("k3").getString(0));
+        assertEquals(7, cache.size());
+        crashed.close();
+    }
+
+    @Test
+    public void open_fromIndexDropsEntriesWhoseFilesAreGone() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "k1", "a");
+        set(cache, "k2", "bb");
+        set(cache, "k3", "ccc");
+        cache.close();
+        // As if the REMOVE lines had been lost after the files were deleted
+        assertTrue(new File(directory, "k1.0").delete());
+        assertTrue(new File(directory, "k2.0").delete());
+
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        // k1 is likely looked up before the index is loaded, k2 after
+        assertNull(cache.get("k1"));
+        cache.flush();
+        assertNull(cache.get("k2"));
+        assertEquals("ccc", cache.get("k3").getString(0));
+        assertEquals(3, cache.size());
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        assertNull(cache.get("k1"));
+        assertNull(cache.get("k2"));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void open_fromIndexKeepsTheLruOrder() throws IOException {
+        cache = DiskLruCache.open(directory, 1, 1, 25);
+        set(cache, "a", "0123456789");
+        set(cache, "b", "0123456789");
+        cache.get("a").close();
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 1, 25);
+        set(cache, "c", "0123456789");
+        cache.flush();
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(20, cache.size());
+    }
+
+    @Test(timeout = 10000)
+    public void get_doesNotWaitForTheJournal() throws Exception {
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "k1", "a");
+
+        final AtomicReference<String> read = new AtomicReference<String>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read.set(cache.get("k1").getString(0));
+                } catch (IOException e) {
+                    read.set(e.toString());
+                }
+            }
+        });
+        // Writers hold the cache lock while they append to the journal
+        synchronized (cache) {
+            reader.start();
+            reader.join(5000);
+            assertFalse("get() blocked on the cache lock", reader.isAlive());
+        }
+        assertEquals("a", read.get());
+    }
+
+    @Test(timeout = 20000)
+    public void concurrentReadsAndWrites_seeWholeCommitsAndKeepSizeExact() throws Exception {
+        // Few keys so that threads keep meeting on them; throughput is DiskLruCacheBenchmark's
+        final int keyCount = 4;
+        final int threadCount = 4;
+        final int operationsPerThread = 50;
+        cache = DiskLruCache.open(directory, 1, 2, Long.MAX_VALUE);
+
+        final AtomicInteger tornReads = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < operationsPerThread; i++) {
+                            final String key = "k" + ((i * 7 + seed) % keyCount);
+                            final int operation = (i + seed) % 10;
+                            if (operation < 6) {
+                                DiskLruCache.Snapshot snapshot = cache.get(key);
+                                if (snapshot != null) {
+                                    // Both values of an entry are written by the same commit
+                                    if (!snapshot.getString(0).equals(snapshot.getString(1))) {
+                                        tornReads.incrementAndGet();
+                                    }
+                                    snapshot.close();
+                                }
+                            } else if (operation < 9) {
+                                DiskLruCache.Editor editor = cache.edit(key);
+                                if (editor != null) {
+                                    final String value = value(seed, i);
+                                    editor.set(0, value);
+                                    editor.set(1, value);
+                                    editor.commit();
+                                }
+                            } else {
+                                cache.remove(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(15, TimeUnit.SECONDS));
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(0, tornReads.get());
+
+        cache.flush();
+        final long size = cache.size();
+        assertEquals(sizeOfCleanFiles(keyCount), size);
+
+        // The journal written concurrently still describes the same entries
+        cache.close();
+        cache = DiskLruCache.open(directory, 1, 2, Long.MAX_VALUE);
+        assertEquals(size, cache.size());
+        assertEquals(size, sizeOfCleanFiles(keyCount));
+    }
+
+    private long sizeOfCleanFiles(int keyCount) throws IOException {
+        long size = 0;
+        for (int k = 0; k < keyCount; k++) {
+            DiskLruCache.Snapshot snapshot = cache.get("k" + k);
+            if (snapshot != null) {
+                size += snapshot.getFile(0).length() + snapshot.getFile(1).length();
+                snapshot.close();
+            }
+        }
+        return size;
+    }
+
+    /** A value whose length varies from commit to commit. */
+    private static String value(int thread, int operation) {
+        StringBuilder value = new StringBuilder();
+        final int repeat = 1 + (thread * 31 + operation) % 50;
+        for (int i = 0; i < repeat; i++) {
+            value.append(thread).append('-').append(operation).append(';');
+        }
+        return value.toString();
+    }
+
+    private static void set(DiskLruCache cache, String key, String... values) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        for (int i = 0; i < values.length; i++) {
+            editor.set(i, values[i]);
+        }
+        editor.commit();
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
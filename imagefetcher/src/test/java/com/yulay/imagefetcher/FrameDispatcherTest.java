@@ -0,0 +1,93 @@
+package com.yulay.imagefetcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how {@link FrameDispatcher} spreads queued results over frames.
+ */
+public class FrameDispatcherTest {
+
+    /**
+     * Counts the frames asked for instead of posting them to the main thread, and takes every
+     * caller for the main thread, so that no Looper or Handler is used.
+     */
+    private static class RecordingDispatcher extends FrameDispatcher {
+        int framesRequested;
+
+        RecordingDispatcher(long budgetNanos) {
+            super(budgetNanos);
+        }
+
+        @Override
+        void scheduleFrame() {
+            framesRequested++;
+        }
+
+        @Override
+        boolean isMainThread() {
+            return true;
+        }
+    }
+
+    private static Runnable record(final List<Integer> ran, final int id) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(id);
+            }
+        };
+    }
+
+    @Test
+    public void post_asksForOneFrameForABurst() {
+        final RecordingDispatcher dispatcher = new RecordingDispatcher(FrameDispatcher.DEFAULT_BUDGET_NANOS);
+        final List<Integer> ran = new ArrayList<Integer>();
+        for (int i = 0; i < 30; i++) {
+            dispatcher.post(record(ran, i));
+        }
+        assertEquals(1, dispatcher.framesRequested);
+
+        dispatcher.runFrame();
+        assertEquals(30, ran.size());
+        assertEquals(Integer.valueOf(0), ran.get(0));
+        assertEquals(Integer.valueOf(29), ran.get(29));
+        assertEquals("nothing left for the next frame", 1, dispatcher.framesRequested);
+
+        dispatcher.post(record(ran, 30));
+        assertEquals("a result after the batch asks for a new frame", 2, dispatcher.framesRequested);
+    }
+
+    @Test
+    public void runFrame_leavesWhatExceedsTheBudgetToTheNextFrames() {
+        final RecordingDispatcher dispatcher = new RecordingDispatcher(1);
+        final List<Integer> ran = new ArrayList<Integer>();
+        for (int i = 0; i < 3; i++) {
+            dispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    final long end = System.nanoTime() + 1000000;
+                    while (System.nanoTime() < end) {
+                        // Spend the frame's budget
+                    }
+                    ran.add(ran.size());
+                }
+            });
+        }
+
+        dispatcher.runFrame();
+        assertEquals("at least one result per frame", 1, ran.size());
+        assertEquals(2, dispatcher.framesRequested);
+        dispatcher.runFrame();
+        dispatcher.runFrame();
+        assertEquals(3, ran.size());
+        assertEquals("the last frame emptied the queue", 3, dispatcher.framesRequested);
+
+        dispatcher.post(record(ran, 3));
+        assertEquals(4, dispatcher.framesRequested);
+    }
+}
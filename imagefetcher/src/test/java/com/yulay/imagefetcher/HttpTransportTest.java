@@ -0,0 +1,165 @@
+package com.yulay.imagefetcher;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static com.yulay.imagefetcher.TestData.bytes;
+import static com.yulay.imagefetcher.TestData.readFully;
+import static org.junit.Assert.*;
+
+/**
+ * Exercises {@link HttpTransport} against a {@link LoopbackHttpServer}.
+ */
+public class HttpTransportTest {
+    private LoopbackHttpServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void execute_readsBodyAndReusesConnection() throws IOException {
+        final byte[] image = bytes(10 * 1024);
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return new LoopbackHttpServer.MockResponse().body(image);
+            }
+        });
+        HttpTransport transport = new HttpTransport();
+
+        for (int i = 0; i < 3; i++) {
+            Transport.Response response = transport.execute(new Transport.Request.Builder(server.url("/image.jpg")).build());
+            assertEquals(200, response.getCode());
+            assertEquals(image.length, response.getContentLength());
+            assertArrayEquals(image, readFully(response.getBody()));
+            response.close();
+        }
+
+        assertEquals(3, server.getRequests().size());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void execute_sendsRequestHeaders() throws IOException {
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return new LoopbackHttpServer.MockResponse().body(bytes(16));
+            }
+        });
+        Transport.Response response = new HttpTransport().execute(new Transport.Request.Builder(server.url("/a"))
+                .header("X-Test", "value")
+                .build());
+        response.close();
+
+        assertEquals("value", server.getRequests().get(0).getHeader("X-Test"));
+    }
+
+    @Test
+    public void execute_rejectsUnexpectedStatusCode() throws IOException {
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return new LoopbackHttpServer.MockResponse().code(404, "Not Found");
+            }
+        });
+        try {
+            new HttpTransport().execute(new Transport.Request.Builder(server.url("/missing")).build());
+            fail("expected a ResponseException");
+        } catch (Transport.ResponseException e) {
+            assertEquals(404, e.getResponseCode());
+        }
+    }
+
+    @Test
+    public void execute_rejectsOversizedContentLengthBeforeReadingBody() throws IOException {
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return new LoopbackHttpServer.MockResponse().body(bytes(64 * 1024)).throttle(1024, 50);
+            }
+        });
+        HttpTransport transport = new HttpTransport.Builder().maxContentLength(1024).build();
+        final long start = System.currentTimeMillis();
+        try {
+            transport.execute(new Transport.Request.Builder(server.url("/big")).build());
+            fail("expected a ResponseTooLargeException");
+        } catch (Transport.ResponseTooLargeException expected) {
+        }
+        // The throttled body would take seconds to arrive, it must not have been waited for
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    public void execute_rejectsOversizedBodyWithoutContentLength() throws IOException {
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return new LoopbackHttpServer.MockResponse().body(bytes(8 * 1024)).chunked().throttle(512, 0);
+            }
+        });
+        HttpTransport transport = new HttpTransport.Builder().maxContentLength(1024).build();
+        Transport.Response response = transport.execute(new Transport.Request.Builder(server.url("/chunked")).build());
+        assertEquals(-1, response.getContentLength());
+        try {
+            readFully(response.getBody());
+            fail("expected a ResponseTooLargeException");
+        } catch (Transport.ResponseTooLargeException expected) {
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void execute_failsOnReadTimeout() throws IOException {
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return new LoopbackHttpServer.MockResponse().hang();
+            }
+        });
+        HttpTransport transport = new HttpTransport.Builder().readTimeout(200).build();
+        final long start = System.currentTimeMillis();
+        try {
+            transport.execute(new Transport.Request.Builder(server.url("/hang")).build());
+            fail("expected a SocketTimeoutException");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+
+    @Test
+    public void execute_failsOnTotalTimeoutWhileBodyTrickles() throws IOException {
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                // Each read returns in time, but the whole body would take 10 seconds
+                return new LoopbackHttpServer.MockResponse().body(bytes(100)).throttle(1, 100);
+            }
+        });
+        HttpTransport transport = new HttpTransport.Builder()
+                .readTimeout(1000)
+                .totalTimeout(500)
+                .build();
+        final long start = System.currentTimeMillis();
+        Transport.Response response = null;
+        try {
+            response = transport.execute(new Transport.Request.Builder(server.url("/slow")).build());
+            readFully(response.getBody());
+            fail("expected a SocketTimeoutException");
+        } catch (SocketTimeoutException expected) {
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+}
@@ -0,0 +1,68 @@
+package com.yulay.imagefetcher;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how {@link ImageDecodeHelper} stops a decode its token cancels.
+ */
+public class ImageDecodeHelperTest {
+    private static final DisplayOptions SIZED = new DisplayOptions(100, 100, null, null,
+            0, 0, false);
+
+    /** Decodes a file, cancelling the token once the bounds have been read. */
+    private static class CancellingDecoder extends ImageDecodeHelper.Decoder {
+        private final ImageDecodeHelper.Decoder file;
+        private final CancellationToken cancellation;
+        int decodes;
+
+        CancellingDecoder(String filename, CancellationToken cancellation) {
+            this.file = ImageDecodeHelper.fileDecoder(filename);
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        Bitmap decode(BitmapFactory.Options options) {
+            decodes++;
+            final Bitmap bitmap = file.decode(options);
+            cancellation.cancel();
+            return bitmap;
+        }
+    }
+
+    @Test
+    public void decodeFile_cancelledPartWaySkipsTheFullDecode() throws IOException {
+        final File file = File.createTempFile("ImageDecodeHelperTest", ".jpg");
+        try {
+            final CancellationToken cancellation = new CancellationToken();
+            final CancellingDecoder decoder = new CancellingDecoder(file.getPath(), cancellation);
+
+            assertNull(ImageDecodeHelper.decodeSampledBitmap(decoder, SIZED, cancellation));
+            assertEquals("only the bounds were read", 1, decoder.decodes);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void decodeFile_cancelledBeforehandReadsNothing() throws IOException {
+        final File file = File.createTempFile("ImageDecodeHelperTest", ".jpg");
+        try {
+            final CancellationToken cancellation = new CancellationToken();
+            cancellation.cancel();
+            final CancellingDecoder decoder = new CancellingDecoder(file.getPath(), cancellation);
+
+            assertNull(ImageDecodeHelper.decodeSampledBitmap(decoder, SIZED, cancellation));
+            assertEquals(0, decoder.decodes);
+        } finally {
+            file.delete();
+        }
+    }
+}
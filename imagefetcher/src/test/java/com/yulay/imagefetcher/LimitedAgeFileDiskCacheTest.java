@@ -0,0 +1,142 @@
+package com.yulay.imagefetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the ages {@link LimitedAgeFileDiskCache} serves its entries at. Entries are aged by
+ * setting their modification times before the cache is opened.
+ */
+public class LimitedAgeFileDiskCacheTest {
+    private static final int MAX_AGE = 60;
+    private static final int MAX_STALE_AGE = 60;
+
+    private File directory;
+    private LimitedAgeFileDiskCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("LimitedAgeFileDiskCacheTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void get_hidesExpiredEntriesThatGetStaleStillReturns() {
+        store("fresh", 30);
+        store("stale", 90);
+        store("gone", 150);
+        cache = open();
+
+        assertTrue(isServed(cache.get("fresh")));
+        assertFalse(isServed(cache.getStale("fresh")));
+
+        assertFalse("expired", isServed(cache.get("stale")));
+        assertTrue("within the stale age", isServed(cache.getStale("stale")));
+
+        // Deleted by the sweeper once it got to it
+        assertFalse(isServed(cache.get("gone")));
+        assertFalse("past the stale age", isServed(cache.getStale("gone")));
+    }
+
+    @Test
+    public void sweeper_deletesEntriesPastTheStaleAgeInBatches() throws InterruptedException {
+        final int goneCount = 70;
+        for (int i = 0; i < goneCount; i++) {
+            store("gone" + i, 150);
+        }
+        store("stale", 90);
+        store("fresh", 0);
+        cache = open();
+
+        // The first sweep deletes one batch, the next one follows a second later
+        assertEquals(goneCount - 64, awaitGoneAtMost(goneCount, goneCount - 64, 20000));
+        Thread.sleep(200);
+        assertEquals("one batch at a time", goneCount - 64, countGone(goneCount));
+        assertEquals(0, awaitGoneAtMost(goneCount, 0, 20000));
+
+        assertTrue("kept to be served stale", isServed(cache.getStale("stale")));
+        assertTrue(isServed(cache.get("fresh")));
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void refresh_makesAnExpiredEntryFreshAgain() {
+        store("stale", 90);
+        cache = open();
+        assertFalse(isServed(cache.get("stale")));
+
+        // What the fetcher does once the server answered 304 Not Modified
+        cache.refresh("stale");
+        assertTrue(isServed(cache.get("stale")));
+        assertFalse(isServed(cache.getStale("stale")));
+        cache.close();
+
+        cache = open();
+        assertTrue("still fresh once reopened", isServed(cache.get("stale")));
+    }
+
+    private LimitedAgeFileDiskCache open() {
+        final LimitedAgeFileDiskCache cache = new LimitedAgeFileDiskCache(directory, MAX_AGE, MAX_STALE_AGE);
+        cache.open();
+        return cache;
+    }
+
+    /** Like the fetcher, a file is only served if it exists. */
+    private static boolean isServed(File file) {
+        return file != null && file.exists();
+    }
+
+    /** Writes an entry through a cache of its own, as stored {@code age} seconds ago. */
+    private void store(String key, int age) {
+        final LimitedAgeFileDiskCache writer = new LimitedAgeFileDiskCache(directory, MAX_AGE, MAX_STALE_AGE);
+        assertTrue(writer.put(key, new ByteArrayInputStream(new byte[10])));
+        assertTrue(writer.get(key).setLastModified(System.currentTimeMillis() - age * 1000L));
+    }
+
+    /**
+     * Waits until at most {@code atMost} of the entries named "gone" are left, and returns how
+     * many are.
+     */
+    private int awaitGoneAtMost(int goneCount, int atMost, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            final int left = countGone(goneCount);
+            if (left <= atMost || System.currentTimeMillis() > deadline) {
+                return left;
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private int countGone(int goneCount) {
+        int left = 0;
+        for (int i = 0; i < goneCount; i++) {
+            if (new File(directory, DiskCacheUtils.hashKeyForDisk("gone" + i)).exists()) {
+                left++;
+            }
+        }
+        return left;
+    }
+}
@@ -0,0 +1,137 @@
+package com.yulay.imagefetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how {@link LimitedSizeFileDiskCache} keeps to its budgets, trimming on the calling
+ * thread.
+ */
+public class LimitedSizeFileDiskCacheTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("LimitedSizeFileDiskCacheTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void lru_deletesTheLeastRecentlyUsedToTheByteBudget() throws InterruptedException {
+        final LimitedSizeFileDiskCache cache = open(250, 0, LimitedSizeFileDiskCache.Eviction.LRU);
+        put(cache, "a", 100);
+        put(cache, "b", 100);
+        assertTrue(cache.get("a").exists());
+        Thread.sleep(5);
+        put(cache, "c", 100);
+
+        assertTrue(cache.get("a").exists());
+        assertFalse("least recently used", cache.get("b").exists());
+        assertTrue(cache.get("c").exists());
+        assertEquals(200, cache.size());
+        assertEquals(2, cache.fileCount());
+    }
+
+    @Test
+    public void lfu_deletesTheLeastFrequentlyUsedToTheFileCount() throws InterruptedException {
+        final LimitedSizeFileDiskCache cache = open(Long.MAX_VALUE, 3, LimitedSizeFileDiskCache.Eviction.LFU);
+        put(cache, "a", 10);
+        put(cache, "b", 10);
+        put(cache, "c", 10);
+        for (int i = 0; i < 3; i++) {
+            cache.get("a");
+        }
+        cache.get("c");
+        Thread.sleep(5);
+        // b was read less often than the older a and c, and as often as the newer d
+        put(cache, "d", 10);
+
+        assertTrue(cache.get("a").exists());
+        assertFalse("least frequently used", cache.get("b").exists());
+        assertTrue(cache.get("c").exists());
+        assertTrue(cache.get("d").exists());
+        assertEquals(3, cache.fileCount());
+        assertEquals(30, cache.size());
+    }
+
+    @Test
+    public void trim_skipsFilesBeingWritten() throws IOException, InterruptedException {
+        final LimitedSizeFileDiskCache cache = open(Long.MAX_VALUE, 2, LimitedSizeFileDiskCache.Eviction.LRU);
+        put(cache, "a", 10);
+        put(cache, "b", 10);
+        final EditableDiskCache.Editor editor = cache.edit("a");
+        put(cache, "c", 10);
+
+        assertTrue("being written", cache.get("a").exists());
+        assertFalse(cache.get("b").exists());
+        assertTrue(cache.get("c").exists());
+
+        editor.getOutputStream().write(new byte[20]);
+        assertTrue(editor.commit());
+        assertEquals(20, cache.get("a").length());
+        assertEquals(2, cache.fileCount());
+        assertEquals(30, cache.size());
+    }
+
+    @Test
+    public void metadata_goesWithItsEntry() throws InterruptedException {
+        final LimitedSizeFileDiskCache cache = open(Long.MAX_VALUE, 2, LimitedSizeFileDiskCache.Eviction.LRU);
+        assertFalse("no entry to describe", cache.putMetadata("a", new byte[] {1}));
+        put(cache, "a", 10);
+        put(cache, "b", 10);
+        assertTrue(cache.putMetadata("a", new byte[] {1, 2}));
+        assertTrue(cache.putMetadata("b", new byte[] {3}));
+        assertArrayEquals(new byte[] {1, 2}, cache.getMetadata("a"));
+        assertEquals("not counted as an entry", 2, cache.fileCount());
+        assertEquals(20, cache.size());
+
+        put(cache, "b", 10);
+        assertNull("a new copy has none", cache.getMetadata("b"));
+
+        cache.get("b");
+        put(cache, "c", 10);
+        assertFalse(cache.get("a").exists());
+        assertNull(cache.getMetadata("a"));
+        assertEquals("deleted with its entry", 2, directory.list().length);
+    }
+
+    private LimitedSizeFileDiskCache open(long maxSize, int maxFileCount, LimitedSizeFileDiskCache.Eviction eviction) {
+        final LimitedSizeFileDiskCache cache =
+                new LimitedSizeFileDiskCache(directory, maxSize, maxFileCount, eviction, DIRECT);
+        cache.open();
+        return cache;
+    }
+
+    /** Stores {@code length} bytes, a little later than the previous put so uses are ordered. */
+    private static void put(LimitedSizeFileDiskCache cache, String key, int length) throws InterruptedException {
+        Thread.sleep(5);
+        assertTrue(cache.put(key, new ByteArrayInputStream(new byte[length])));
+    }
+}
@@ -0,0 +1,306 @@
+package com.yulay.imagefetcher;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal HTTP/1.1 server bound to the loopback interface, used to exercise transports without
+ * a real network. Connections are kept alive, every request is recorded and the number of body
+ * bytes written is counted so tests can assert on what actually went over the wire.
+ */
+class LoopbackHttpServer implements Closeable {
+
+    interface Handler {
+        MockResponse handle(RecordedRequest request);
+    }
+
+    static final class RecordedRequest {
+        final String method;
+        final String path;
+        final Map<String, String> headers;
+
+        RecordedRequest(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+
+        String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    static final class MockResponse {
+        int code = 200;
+        String reason = "OK";
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        byte[] body = new byte[0];
+        boolean chunked;
+        boolean hang;
+        int throttleBytes;
+        long throttlePeriodMillis;
+
+        MockResponse code(int code, String reason) {
+            this.code = code;
+            this.reason = reason;
+            return this;
+        }
+
+        MockResponse header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        MockResponse body(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        /** Sends the body with chunked transfer encoding, so no Content-Length is known. */
+        MockResponse chunked() {
+            this.chunked = true;
+            return this;
+        }
+
+        /** Accepts the request but never answers it. */
+        MockResponse hang() {
+            this.hang = true;
+            return this;
+        }
+
+        /** Writes the body {@code bytes} at a time, waiting {@code periodMillis} in between. */
+        MockResponse throttle(int bytes, long periodMillis) {
+            this.throttleBytes = bytes;
+            this.throttlePeriodMillis = periodMillis;
+            return this;
+        }
+    }
+
+    /**
+     * Returns a handler serving {@code image} with the given ETag, or none if null. A Range is
+     * honoured unless its If-Range names another version. Every body is throttled as by
+     * {@link MockResponse#throttle(int, long)} if {@code throttleBytes} is positive, and its
+     * length is recorded in {@code bodyLengths} if not null.
+     */
+    static Handler rangeHandler(final byte[] image, final String etag, final int throttleBytes,
+                                final long throttlePeriodMillis, final List<Integer> bodyLengths) {
+        return new Handler() {
+            @Override
+            public MockResponse handle(RecordedRequest request) {
+                final MockResponse response = new MockResponse().header("Accept-Ranges", "bytes");
+                if (etag != null) {
+                    response.header("ETag", etag);
+                }
+                final String range = request.getHeader("Range");
+                final String ifRange = request.getHeader("If-Range");
+                if (range == null || (ifRange != null && !ifRange.equals(etag))) {
+                    response.body(image);
+                } else {
+                    final String[] bounds = range.substring("bytes=".length()).split("-");
+                    final int start = Integer.parseInt(bounds[0]);
+                    final int end = bounds.length > 1
+                            ? Math.min(Integer.parseInt(bounds[1]), image.length - 1) : image.length - 1;
+                    response.code(206, "Partial Content")
+                            .header("Content-Range", "bytes " + start + "-" + end + "/" + image.length)
+                            .body(Arrays.copyOfRange(image, start, end + 1));
+                }
+                if (bodyLengths != null) {
+                    bodyLengths.add(response.body.length);
+                }
+                return throttleBytes > 0 ? response.throttle(throttleBytes, throttlePeriodMillis) : response;
+            }
+        };
+    }
+
+    private final ServerSocket serverSocket;
+    private final Handler handler;
+    private final List<RecordedRequest> requests = new ArrayList<RecordedRequest>();
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong bodyBytesSent = new AtomicLong();
+    private volatile boolean closed;
+
+    LoopbackHttpServer(Handler handler) throws IOException {
+        this.handler = handler;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "LoopbackHttpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    long getBodyBytesSent() {
+        return bodyBytesSent.get();
+    }
+
+    List<RecordedRequest> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<RecordedRequest>(requests);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connectionCount.incrementAndGet();
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            Thread connectionThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serveConnection(socket);
+                }
+            }, "LoopbackHttpServer-connection");
+            connectionThread.setDaemon(true);
+            connectionThread.start();
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (!closed) {
+                RecordedRequest request = readRequest(in);
+                if (request == null) {
+                    break;
+                }
+                synchronized (requests) {
+                    requests.add(request);
+                }
+                MockResponse response = handler.handle(request);
+                if (response.hang) {
+                    while (in.read() != -1) {
+                        // wait for the client to give up
+                    }
+                    break;
+                }
+                writeResponse(out, request, response);
+            }
+        } catch (IOException ignored) {
+        } catch (InterruptedException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static RecordedRequest readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return new RecordedRequest(parts[0], parts.length > 1 ? parts[1] : "/", headers);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                String result = line.toString("US-ASCII");
+                return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+            }
+            line.write(c);
+        }
+        return line.size() > 0 ? line.toString("US-ASCII") : null;
+    }
+
+    private void writeResponse(OutputStream out, RecordedRequest request, MockResponse response)
+            throws IOException, InterruptedException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.code).append(' ').append(response.reason).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        final boolean hasBody = !"HEAD".equals(request.method) && response.code != 304;
+        if (response.chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (!response.headers.containsKey("Content-Length")) {
+            head.append("Content-Length: ").append(hasBody ? response.body.length : 0).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+        out.flush();
+
+        if (hasBody) {
+            final int step = response.throttleBytes > 0 ? response.throttleBytes : Math.max(response.body.length, 1);
+            for (int offset = 0; offset < response.body.length; offset += step) {
+                final int count = Math.min(step, response.body.length - offset);
+                if (response.chunked) {
+                    out.write((Integer.toHexString(count) + "\r\n").getBytes("US-ASCII"));
+                }
+                // Counted before the write, so a client that has read the body always sees it
+                bodyBytesSent.addAndGet(count);
+                out.write(response.body, offset, count);
+                if (response.chunked) {
+                    out.write("\r\n".getBytes("US-ASCII"));
+                }
+                out.flush();
+                if (response.throttlePeriodMillis > 0) {
+                    Thread.sleep(response.throttlePeriodMillis);
+                }
+            }
+            if (response.chunked) {
+                out.write("0\r\n\r\n".getBytes("US-ASCII"));
+            }
+        }
+        out.flush();
+    }
+}
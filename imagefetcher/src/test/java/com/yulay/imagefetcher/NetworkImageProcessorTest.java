@@ -0,0 +1,253 @@
+package com.yulay.imagefetcher;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.yulay.imagefetcher.TestData.bytes;
+import static com.yulay.imagefetcher.TestData.readFully;
+import static org.junit.Assert.*;
+
+/**
+ * Exercises conditional requests of {@link NetworkImageProcessor} against a
+ * {@link LoopbackHttpServer}.
+ */
+public class NetworkImageProcessorTest {
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private LoopbackHttpServer server;
+    private File partialDirectory;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+        if (partialDirectory != null) {
+            File[] children = partialDirectory.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    child.delete();
+                }
+            }
+            partialDirectory.delete();
+        }
+    }
+
+    @Test
+    public void process_readsValidatorsOfTheResponse() throws IOException {
+        final byte[] image = bytes(4096);
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return new LoopbackHttpServer.MockResponse().body(image)
+                        .header("ETag", ETAG)
+                        .header("Last-Modified", LAST_MODIFIED)
+                        .header("Cache-Control", "public, max-age=60");
+            }
+        });
+        final long before = System.currentTimeMillis();
+
+        ImageProcessor.Result result = processor().process(server.url("/a.jpg"), null, null);
+        assertArrayEquals(image, readFully(result.getStream()));
+        result.getStream().close();
+
+        CacheValidators validators = result.getValidators();
+        assertFalse(result.isNotModified());
+        assertEquals(ETAG, validators.getEtag());
+        assertEquals(LAST_MODIFIED, validators.getLastModified());
+        assertTrue(validators.getExpiresAt() >= before + 60 * 1000);
+        assertNull(server.getRequests().get(0).getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void process_notModifiedMovesNoImageBytes() throws IOException {
+        final byte[] image = bytes(64 * 1024);
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                if (ETAG.equals(request.getHeader("If-None-Match"))) {
+                    return new LoopbackHttpServer.MockResponse().code(304, "Not Modified")
+                            .header("Cache-Control", "max-age=120");
+                }
+                return new LoopbackHttpServer.MockResponse().body(image).header("ETag", ETAG);
+            }
+        });
+        ImageProcessor.Result first = processor().process(server.url("/a.jpg"), null, null);
+        readFully(first.getStream());
+        first.getStream().close();
+        assertEquals(image.length, server.getBodyBytesSent());
+
+        ImageProcessor.Result second = processor().process(server.url("/a.jpg"), null, first.getValidators());
+
+        assertTrue(second.isNotModified());
+        assertNull(second.getStream());
+        assertEquals("no body bytes for a 304", image.length, server.getBodyBytesSent());
+        assertEquals(ETAG, server.getRequests().get(1).getHeader("If-None-Match"));
+        // The 304 carried a new max-age and kept the ETag
+        assertEquals(ETAG, second.getValidators().getEtag());
+        assertTrue(second.getValidators().isFresh(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void process_changedSourceIsDownloadedAgain() throws IOException {
+        final byte[] image = bytes(1024);
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return new LoopbackHttpServer.MockResponse().body(image).header("ETag", "\"v2\"");
+            }
+        });
+        CacheValidators old = new CacheValidators(ETAG, LAST_MODIFIED, 0);
+
+        ImageProcessor.Result result = processor().process(server.url("/a.jpg"), null, old);
+
+        assertFalse(result.isNotModified());
+        assertArrayEquals(image, readFully(result.getStream()));
+        result.getStream().close();
+        assertEquals("\"v2\"", result.getValidators().getEtag());
+        assertEquals(LAST_MODIFIED, server.getRequests().get(0).getHeader("If-Modified-Since"));
+    }
+
+    @Test
+    public void process_resumesInterruptedDownloadWithRange() throws IOException {
+        final byte[] image = bytes(512 * 1024);
+        final List<Integer> bodyLengths = new ArrayList<Integer>();
+        server = new LoopbackHttpServer(LoopbackHttpServer.rangeHandler(image, ETAG, 16 * 1024, 5, bodyLengths));
+        partialDirectory = newDirectory();
+        final String url = server.url("/large.jpg");
+
+        ImageProcessor.Result first = processor(partialDirectory).process(url, null, null);
+        final int received = readAtLeast(first.getStream(), 128 * 1024);
+        first.getStream().close();
+
+        ImageProcessor.Result second = processor(partialDirectory).process(url, null, null);
+        assertArrayEquals(image, readFully(second.getStream()));
+        second.getStream().close();
+
+        LoopbackHttpServer.RecordedRequest resumed = server.getRequests().get(1);
+        assertEquals("bytes=" + received + "-", resumed.getHeader("Range"));
+        assertEquals(ETAG, resumed.getHeader("If-Range"));
+        assertEquals("only the missing bytes are sent again",
+                image.length - received, (int) bodyLengths.get(1));
+        assertEquals("a finished download is not kept", 0, partialDirectory.list().length);
+    }
+
+    @Test
+    public void process_changedSourceRestartsInterruptedDownload() throws IOException {
+        final byte[] image = bytes(512 * 1024);
+        final List<Integer> bodyLengths = new ArrayList<Integer>();
+        final String[] etag = {ETAG};
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return LoopbackHttpServer.rangeHandler(image, etag[0], 16 * 1024, 5, bodyLengths).handle(request);
+            }
+        });
+        partialDirectory = newDirectory();
+        final String url = server.url("/large.jpg");
+
+        ImageProcessor.Result first = processor(partialDirectory).process(url, null, null);
+        readAtLeast(first.getStream(), 64 * 1024);
+        first.getStream().close();
+        etag[0] = "\"v2\"";
+
+        ImageProcessor.Result second = processor(partialDirectory).process(url, null, null);
+        assertArrayEquals(image, readFully(second.getStream()));
+        second.getStream().close();
+
+        assertEquals(ETAG, server.getRequests().get(1).getHeader("If-Range"));
+        assertEquals(image.length, (int) bodyLengths.get(1));
+    }
+
+    @Test
+    public void process_cancelClosesConnectionAndKeepsPartialDownload() throws IOException {
+        final byte[] image = bytes(512 * 1024);
+        final List<Integer> bodyLengths = new ArrayList<Integer>();
+        server = new LoopbackHttpServer(LoopbackHttpServer.rangeHandler(image, ETAG, 16 * 1024, 5, bodyLengths));
+        partialDirectory = newDirectory();
+        final String url = server.url("/large.jpg");
+        final CancellationToken cancellation = new CancellationToken();
+
+        ImageProcessor.Result first = processor(partialDirectory).process(url, null, null, cancellation);
+        int received = readAtLeast(first.getStream(), 64 * 1024);
+        cancellation.cancel();
+        try {
+            received += readAtLeast(first.getStream(), image.length);
+            fail("read " + received + " bytes after cancel");
+        } catch (IOException expected) {
+        }
+        first.getStream().close();
+
+        try {
+            processor(partialDirectory).process(url, null, null, cancellation);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        ImageProcessor.Result second = processor(partialDirectory).process(url, null, null);
+        assertArrayEquals(image, readFully(second.getStream()));
+        second.getStream().close();
+
+        assertEquals("resumed from the bytes read before cancel", 2, server.getRequests().size());
+        assertNotNull(server.getRequests().get(1).getHeader("Range"));
+        assertTrue(bodyLengths.get(1) < image.length);
+    }
+
+    @Test
+    public void startsAt_readsContentRange() {
+        assertTrue(NetworkImageProcessor.startsAt("bytes 100-999/1000", 100));
+        assertTrue(NetworkImageProcessor.startsAt("bytes 100-999/*", 100));
+        assertFalse(NetworkImageProcessor.startsAt("bytes 0-999/1000", 100));
+        assertFalse(NetworkImageProcessor.startsAt("bytes */1000", 100));
+        assertFalse(NetworkImageProcessor.startsAt(null, 0));
+    }
+
+    @Test
+    public void validators_surviveEncoding() {
+        CacheValidators validators = new CacheValidators(ETAG, LAST_MODIFIED, 1234L);
+        CacheValidators decoded = CacheValidators.decode(validators.encode());
+
+        assertEquals(ETAG, decoded.getEtag());
+        assertEquals(LAST_MODIFIED, decoded.getLastModified());
+        assertEquals(1234L, decoded.getExpiresAt());
+        assertNull(CacheValidators.decode(""));
+        assertEquals(0, CacheValidators.parseMaxAge("max-age=60, no-cache"));
+        assertEquals(-1, CacheValidators.parseMaxAge("public"));
+    }
+
+    private static NetworkImageProcessor processor() {
+        return new NetworkImageProcessor(new HttpTransport());
+    }
+
+    private static File newDirectory() throws IOException {
+        File directory = File.createTempFile("NetworkImageProcessorTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+        return directory;
+    }
+
+    private static NetworkImageProcessor processor(File partialDirectory) {
+        return new NetworkImageProcessor(new HttpTransport(), partialDirectory);
+    }
+
+    /** Reads at least {@code count} bytes and returns how many were read. */
+    private static int readAtLeast(InputStream in, int count) throws IOException {
+        byte[] buffer = new byte[4096];
+        int total = 0;
+        while (total < count) {
+            int read = in.read(buffer);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,144 @@
+package com.yulay.imagefetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises {@link PackedDiskCache} on the JVM.
+ */
+public class PackedDiskCacheTest {
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File directory;
+    private PackedDiskCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("PackedDiskCacheTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void put_makesBytesReadable() {
+        cache = open(Long.MAX_VALUE);
+        assertTrue(cache.put("a", stream(bytes(100, 1))));
+        assertTrue(cache.put("b", stream(bytes(200, 2))));
+
+        assertArrayEquals(bytes(100, 1), cache.getBytes("a"));
+        assertArrayEquals(bytes(200, 2), cache.getBytes("b"));
+        assertNull(cache.getBytes("c"));
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void put_replacesEarlierBytes() {
+        cache = open(Long.MAX_VALUE);
+        cache.put("a", stream(bytes(100, 1)));
+        cache.put("a", stream(bytes(50, 2)));
+
+        assertArrayEquals(bytes(50, 2), cache.getBytes("a"));
+    }
+
+    @Test
+    public void open_restoresEntriesFromSegments() {
+        cache = open(Long.MAX_VALUE);
+        cache.put("a", stream(bytes(100, 1)));
+        cache.put("b", stream(bytes(3000, 2)));
+        cache.put("a", stream(bytes(2000, 3))); // starts a second segment
+        cache.close();
+
+        cache = open(Long.MAX_VALUE);
+        assertArrayEquals(bytes(2000, 3), cache.getBytes("a"));
+        assertArrayEquals(bytes(3000, 2), cache.getBytes("b"));
+    }
+
+    @Test(timeout = 10000)
+    public void compaction_keepsTheCacheWithinItsBudget() throws InterruptedException {
+        cache = open(3 * SEGMENT_SIZE);
+        for (int i = 0; i < 40; i++) {
+            cache.put("k" + i, stream(bytes(1000, i)));
+        }
+
+        while (segmentCount() > 3) {
+            Thread.sleep(10);
+        }
+        // The newest entries survive
+        assertArrayEquals(bytes(1000, 39), cache.getBytes("k39"));
+        assertNull(cache.getBytes("k0"));
+    }
+
+    @Test(timeout = 10000)
+    public void compaction_keepsEntriesReadSinceTheyWereWritten() throws InterruptedException {
+        cache = open(3 * SEGMENT_SIZE);
+        cache.put("hot", stream(bytes(1000, 7)));
+        for (int i = 0; i < 40; i++) {
+            cache.put("k" + i, stream(bytes(1000, i)));
+            // Read often enough to be copied forward before each eviction of its segment
+            assertNotNull(cache.getBytes("hot"));
+        }
+
+        while (segmentCount() > 3) {
+            Thread.sleep(10);
+        }
+        assertArrayEquals(bytes(1000, 7), cache.getBytes("hot"));
+    }
+
+    @Test(timeout = 10000)
+    public void compaction_reclaimsSpaceOfReplacedEntries() throws InterruptedException {
+        cache = open(Long.MAX_VALUE);
+        for (int i = 0; i < 40; i++) {
+            cache.put("k" + (i % 2), stream(bytes(1000, i)));
+        }
+
+        while (segmentCount() > 2) {
+            Thread.sleep(10);
+        }
+        assertArrayEquals(bytes(1000, 38), cache.getBytes("k0"));
+        assertArrayEquals(bytes(1000, 39), cache.getBytes("k1"));
+    }
+
+    private PackedDiskCache open(long maxSize) {
+        PackedDiskCache cache = new PackedDiskCache(directory, maxSize, SEGMENT_SIZE);
+        cache.open();
+        return cache;
+    }
+
+    private int segmentCount() {
+        File[] files = directory.listFiles();
+        return files != null ? files.length : 0;
+    }
+
+    private static ByteArrayInputStream stream(byte[] bytes) {
+        return new ByteArrayInputStream(bytes);
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        bytes[length - 1] = (byte) (seed * 31 + length);
+        return bytes;
+    }
+}
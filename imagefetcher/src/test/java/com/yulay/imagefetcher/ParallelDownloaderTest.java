@@ -0,0 +1,149 @@
+package com.yulay.imagefetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static com.yulay.imagefetcher.TestData.bytes;
+import static com.yulay.imagefetcher.TestData.readFully;
+import static org.junit.Assert.*;
+
+/**
+ * Exercises {@link ParallelDownloader}, through the {@link NetworkImageProcessor} deciding which
+ * downloads to split, against a {@link LoopbackHttpServer} that limits the bandwidth of every
+ * connection.
+ */
+public class ParallelDownloaderTest {
+    private static final String ETAG = "\"v1\"";
+    private static final int CHUNK_SIZE = 128 * 1024;
+
+    private LoopbackHttpServer server;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("ParallelDownloaderTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void download_fetchesLargeImageOverSeveralConnections() throws IOException {
+        final byte[] image = bytes(2 * 1024 * 1024);
+        server = new LoopbackHttpServer(LoopbackHttpServer.rangeHandler(image, ETAG, 32 * 1024, 10, null));
+
+        ImageProcessor.Result result = process(server.url("/pano.jpg"));
+        assertEquals("still downloaded to the staging file", 1, directory.list().length);
+        assertArrayEquals(image, readFully(result.getStream()));
+        result.getStream().close();
+
+        final List<LoopbackHttpServer.RecordedRequest> requests = server.getRequests();
+        assertNull("the image is asked for whole first", requests.get(0).getHeader("Range"));
+        assertTrue("the first response is read on: " + requests.size(), requests.size() < image.length / CHUNK_SIZE);
+        assertTrue("at most part of a chunk is sent twice: " + server.getBodyBytesSent(),
+                server.getBodyBytesSent() < image.length + CHUNK_SIZE);
+        assertTrue("connections: " + server.getConnectionCount(), server.getConnectionCount() >= 3);
+        assertTrue(server.getConnectionCount() <= 4);
+        for (LoopbackHttpServer.RecordedRequest request : requests.subList(1, requests.size())) {
+            assertEquals(ETAG, request.getHeader("If-Range"));
+        }
+        assertEquals("the staging file is deleted on close", 0, directory.list().length);
+    }
+
+    @Test
+    public void download_readsImageBelowMinLengthWithOneGet() throws IOException {
+        final byte[] image = bytes(CHUNK_SIZE * 3 / 2);
+        server = new LoopbackHttpServer(LoopbackHttpServer.rangeHandler(image, ETAG, 0, 0, null));
+
+        ImageProcessor.Result result = process(server.url("/a.jpg"));
+        assertArrayEquals(image, readFully(result.getStream()));
+        result.getStream().close();
+
+        assertEquals(1, server.getRequests().size());
+        assertNull(server.getRequests().get(0).getHeader("Range"));
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void download_usesWholeResponseWhenRangesAreNotSupported() throws IOException {
+        final byte[] image = bytes(1024 * 1024);
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                return new LoopbackHttpServer.MockResponse().body(image).header("ETag", ETAG);
+            }
+        });
+
+        ImageProcessor.Result result = process(server.url("/a.jpg"));
+        assertArrayEquals(image, readFully(result.getStream()));
+        result.getStream().close();
+
+        assertEquals(1, server.getRequests().size());
+    }
+
+    @Test
+    public void download_usesWholeResponseWithoutValidator() throws IOException {
+        final byte[] image = bytes(1024 * 1024);
+        server = new LoopbackHttpServer(LoopbackHttpServer.rangeHandler(image, null, 0, 0, null));
+
+        ImageProcessor.Result result = process(server.url("/a.jpg"));
+        assertArrayEquals(image, readFully(result.getStream()));
+        result.getStream().close();
+
+        assertEquals("ranges without If-Range could mix versions", 1, server.getRequests().size());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void download_failsWhenImageChangesMidway() throws IOException {
+        final byte[] image = bytes(1024 * 1024);
+        server = new LoopbackHttpServer(new LoopbackHttpServer.Handler() {
+            @Override
+            public LoopbackHttpServer.MockResponse handle(LoopbackHttpServer.RecordedRequest request) {
+                if (request.getHeader("Range") == null) {
+                    return LoopbackHttpServer.rangeHandler(image, ETAG, 32 * 1024, 10, null).handle(request);
+                }
+                // A new version, the server ignores the range
+                return new LoopbackHttpServer.MockResponse().body(image).header("ETag", "\"v2\"");
+            }
+        });
+
+        try {
+            process(server.url("/a.jpg"));
+            fail();
+        } catch (Transport.ResponseException expected) {
+            assertEquals(200, expected.getResponseCode());
+        }
+        assertEquals("the staging file is deleted", 0, directory.list().length);
+    }
+
+    private ImageProcessor.Result process(String url) throws IOException {
+        return new NetworkImageProcessor(new HttpTransport(), null, downloader(4)).process(url, null, null);
+    }
+
+    private ParallelDownloader downloader(int maxConnections) {
+        return new ParallelDownloader.Builder(directory)
+                .maxConnections(maxConnections)
+                .minLength(512 * 1024)
+                .chunkSize(CHUNK_SIZE)
+                .build();
+    }
+}
@@ -0,0 +1,150 @@
+package com.yulay.imagefetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static com.yulay.imagefetcher.TestData.bytes;
+import static org.junit.Assert.*;
+
+public class RecyclableBufferedInputStreamTest {
+    private static final int BUFFER_SIZE = 64;
+
+    private File spoolDirectory;
+    private ByteArrayPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        spoolDirectory = File.createTempFile("RecyclableBufferedInputStreamTest", "");
+        spoolDirectory.delete();
+        spoolDirectory.mkdirs();
+        pool = new ByteArrayPool(BUFFER_SIZE, 2);
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = spoolDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spoolDirectory.delete();
+    }
+
+    @Test
+    public void reset_withinTheBufferReplaysTheMarkedBytes() throws IOException {
+        final byte[] source = bytes(1000);
+        final RecyclableBufferedInputStream stream = open(source);
+
+        assertEquals(source[0] & 0xff, stream.read());
+        stream.mark(BUFFER_SIZE);
+        assertArrayEquals(Arrays.copyOfRange(source, 1, 41), read(stream, 40));
+        stream.reset();
+        assertArrayEquals("replays, then reads on from the source",
+                Arrays.copyOfRange(source, 1, 1000), read(stream, 999));
+        assertEquals(-1, stream.read());
+        assertEquals("nothing spooled", 0, spoolDirectory.list().length);
+        stream.release();
+    }
+
+    @Test
+    public void reset_pastTheBufferReplaysFromTheSpoolFile() throws IOException {
+        final byte[] source = bytes(5000);
+        final RecyclableBufferedInputStream stream = open(source);
+
+        stream.mark(2000);
+        // Marking the same position again must not shrink the region kept
+        stream.mark(10);
+        assertArrayEquals(Arrays.copyOf(source, 1500), read(stream, 1500));
+        assertEquals(1, spoolDirectory.list().length);
+        stream.reset();
+
+        assertArrayEquals(Arrays.copyOf(source, 20), read(stream, 20));
+        // A new mark while replaying keeps what was recorded after it
+        stream.mark(100);
+        assertArrayEquals(Arrays.copyOfRange(source, 20, 100), read(stream, 80));
+        stream.reset();
+        assertArrayEquals(Arrays.copyOfRange(source, 20, 5000), read(stream, 4980));
+        assertEquals(-1, stream.read());
+        stream.release();
+    }
+
+    @Test
+    public void reset_afterTheMarkLimitThrows() throws IOException {
+        final byte[] source = bytes(1000);
+        final RecyclableBufferedInputStream stream = open(source);
+
+        stream.mark(10);
+        assertArrayEquals(Arrays.copyOf(source, 100), read(stream, 100));
+        try {
+            stream.reset();
+            fail("reset past the mark limit");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals("reads on from the source",
+                Arrays.copyOfRange(source, 100, 1000), read(stream, 900));
+        stream.release();
+    }
+
+    @Test
+    public void fixMarkLimit_keepsFurtherMarksInTheBuffer() throws IOException {
+        final byte[] source = bytes(1000);
+        final RecyclableBufferedInputStream stream = open(source);
+
+        stream.fixMarkLimit();
+        stream.mark(500);
+        read(stream, 200);
+        try {
+            stream.reset();
+            fail("reset past the buffer once the mark limit is fixed");
+        } catch (IOException expected) {
+        }
+        assertEquals("nothing spooled", 0, spoolDirectory.list().length);
+        stream.release();
+    }
+
+    @Test
+    public void release_deletesTheSpoolFileAndReturnsTheBuffer() throws IOException {
+        final byte[] source = bytes(1000);
+        final InputStream in = new ByteArrayInputStream(source);
+        final RecyclableBufferedInputStream stream = new RecyclableBufferedInputStream(in, pool, spoolDirectory);
+
+        stream.mark(1000);
+        read(stream, 500);
+        assertEquals(1, spoolDirectory.list().length);
+
+        stream.release();
+        assertEquals(0, spoolDirectory.list().length);
+        assertNotNull(pool.get());
+        try {
+            stream.read();
+            fail("read after release");
+        } catch (IOException expected) {
+        }
+        assertEquals("the source is left open", source[500] & 0xff, in.read());
+    }
+
+    private RecyclableBufferedInputStream open(byte[] source) {
+        return new RecyclableBufferedInputStream(new ByteArrayInputStream(source), pool, spoolDirectory);
+    }
+
+    private static byte[] read(InputStream stream, int length) throws IOException {
+        final byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            final int count = stream.read(result, offset, Math.min(length - offset, 37));
+            if (count == -1) {
+                break;
+            }
+            offset += count;
+        }
+        return offset == length ? result : Arrays.copyOf(result, offset);
+    }
+}
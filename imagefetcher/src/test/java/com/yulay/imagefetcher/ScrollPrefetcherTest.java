@@ -0,0 +1,168 @@
+package com.yulay.imagefetcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which positions {@link ScrollPrefetcher} prefetches for a given scroll.
+ */
+public class ScrollPrefetcherTest {
+    private static final int VISIBLE = 10;
+    private static final int ITEMS = 1000;
+
+    /** Records the batches instead of loading anything. */
+    private static class FakeLoader implements ScrollPrefetcher.Loader {
+        final List<FakeBatch> batches = new ArrayList<FakeBatch>();
+        final List<Boolean> pauses = new ArrayList<Boolean>();
+
+        @Override
+        public ScrollPrefetcher.Batch prefetch(List<Object> data, DisplayOptions options, PrefetchTarget target) {
+            final FakeBatch batch = new FakeBatch(data);
+            batches.add(batch);
+            return batch;
+        }
+
+        @Override
+        public void setPauseNetworkWork(boolean paused) {
+            pauses.add(paused);
+        }
+    }
+
+    private static class FakeBatch implements ScrollPrefetcher.Batch {
+        final List<Object> data;
+        boolean done;
+        boolean cancelled;
+
+        FakeBatch(List<Object> data) {
+            this.data = data;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+    }
+
+    private final FakeLoader loader = new FakeLoader();
+    private final ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(loader,
+            new ScrollPrefetcher.DataResolver() {
+                @Override
+                public Object getData(int position) {
+                    return position;
+                }
+            }).build();
+
+    @Test
+    public void onScrolled_slowScrollMergesSmallIncrementsIntoTheNextBatch() {
+        // One position every 100 ms, 10 per second: a screen ahead
+        scrollThrough(0, 1);
+        assertEquals(1, loader.batches.size());
+        assertEquals(positions(11, 21), loader.batches.get(0).data);
+
+        scrollThrough(2, 5);
+        assertEquals("a position at a time waits for more", 1, loader.batches.size());
+        scrollThrough(6, 6);
+        assertEquals(2, loader.batches.size());
+        assertEquals(positions(21, 26), loader.batches.get(1).data);
+        assertFalse(loader.batches.get(0).cancelled);
+    }
+
+    @Test
+    public void onScrolled_keepsTheNearestBatchesAndDefersTheFarthest() {
+        scrollThrough(0, 1);
+        scrollThrough(2, 6);
+        scrollThrough(7, 11);
+        assertEquals(3, loader.batches.size());
+
+        scrollThrough(12, 20);
+        assertEquals("no batch past the third", 3, loader.batches.size());
+        for (FakeBatch batch : loader.batches) {
+            assertFalse("the nearest images are not dropped", batch.cancelled);
+        }
+
+        loader.batches.get(0).done = true;
+        scrollThrough(21, 21);
+        assertEquals(4, loader.batches.size());
+        assertEquals("goes on where the last batch stopped", positions(31, 41), loader.batches.get(3).data);
+    }
+
+    @Test
+    public void onScrolled_fastFlingPausesDownloadsAndStoppingPrefetchesAgain() {
+        scrollThrough(0, 1);
+        scrollThrough(2, 6);
+        final FakeBatch unfinished = loader.batches.get(1);
+        loader.batches.get(0).done = true;
+
+        // 30 positions in 100 ms, far above 4 screens per second
+        prefetcher.onScrolled(36, VISIBLE, ITEMS, 700);
+        assertEquals(Boolean.TRUE, loader.pauses.get(0));
+        assertTrue(unfinished.cancelled);
+
+        prefetcher.onScrollStopped();
+        assertEquals(Boolean.FALSE, loader.pauses.get(1));
+        assertEquals("a screen past where the fling stopped", positions(46, 56),
+                loader.batches.get(loader.batches.size() - 1).data);
+    }
+
+    @Test
+    public void onScrolled_turningBackCancelsAndPrefetchesUpwards() {
+        prefetcher.onScrolled(500, VISIBLE, ITEMS, 0);
+        prefetcher.onScrolled(501, VISIBLE, ITEMS, 100);
+        prefetcher.onScrolled(499, VISIBLE, ITEMS, 200);
+
+        assertEquals(2, loader.batches.size());
+        assertTrue(loader.batches.get(0).cancelled);
+        assertEquals("20 positions a second, as many ahead", positions(498, 478), loader.batches.get(1).data);
+    }
+
+    /** Scrolls from the position after the last one to {@code last}, one position every 100 ms. */
+    private void scrollThrough(int first, int last) {
+        for (int position = first; position <= last; position++) {
+            prefetcher.onScrolled(position, VISIBLE, ITEMS, position * 100L);
+        }
+    }
+
+    /** Returns the positions from {@code start} to {@code end} excluded, either way. */
+    private static List<Object> positions(int start, int end) {
+        final List<Object> positions = new ArrayList<Object>();
+        final int step = end > start ? 1 : -1;
+        for (int position = start; position != end; position += step) {
+            positions.add(position);
+        }
+        return positions;
+    }
+
+    @Test
+    public void lookahead_growsWithVelocityWithinScreenAndMaximum() {
+        assertEquals("at least a screen", 12, ScrollPrefetcher.lookahead(3f, 12, 24));
+        assertEquals(18, ScrollPrefetcher.lookahead(-18f, 12, 24));
+        assertEquals("at most the maximum", 24, ScrollPrefetcher.lookahead(100f, 12, 24));
+        assertEquals(8, ScrollPrefetcher.lookahead(0f, 12, 8));
+    }
+
+    @Test
+    public void nextRange_walksDownPastPositionsAlreadyPrefetched() {
+        assertArrayEquals(new int[] {20, 30}, ScrollPrefetcher.nextRange(20, 10, 1, 20, 100));
+        assertArrayEquals("skips what was asked for",
+                new int[] {30, 32}, ScrollPrefetcher.nextRange(22, 10, 1, 30, 100));
+        assertArrayEquals("stops at the end", new int[] {95, 100}, ScrollPrefetcher.nextRange(95, 10, 1, 95, 100));
+        assertNull(ScrollPrefetcher.nextRange(22, 5, 1, 30, 100));
+    }
+
+    @Test
+    public void nextRange_walksUpToTheFirstPosition() {
+        assertArrayEquals(new int[] {39, 29}, ScrollPrefetcher.nextRange(39, 10, -1, 39, 100));
+        assertArrayEquals(new int[] {29, 27}, ScrollPrefetcher.nextRange(37, 10, -1, 29, 100));
+        assertArrayEquals("stops at the start", new int[] {4, -1}, ScrollPrefetcher.nextRange(4, 10, -1, 4, 100));
+        assertNull(ScrollPrefetcher.nextRange(0, 10, -1, -1, 100));
+    }
+}
@@ -0,0 +1,58 @@
+package com.yulay.imagefetcher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.yulay.imagefetcher.TestData.bytes;
+import static org.junit.Assert.*;
+
+public class TeeInputStreamTest {
+
+    @Test
+    public void read_copiesReadAndSkippedBytes() throws IOException {
+        final byte[] source = bytes(10000);
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        TeeInputStream tee = new TeeInputStream(new ByteArrayInputStream(source), copy);
+
+        assertEquals(source[0] & 0xff, tee.read());
+        byte[] buffer = new byte[100];
+        assertEquals(100, tee.read(buffer, 0, 100));
+        assertEquals(1000, tee.skip(1000));
+
+        assertArrayEquals(Arrays.copyOf(source, 1101), copy.toByteArray());
+    }
+
+    @Test
+    public void drain_copiesWhatTheReaderLeft() throws IOException {
+        final byte[] source = bytes(50000);
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        TeeInputStream tee = new TeeInputStream(new ByteArrayInputStream(source), copy);
+        tee.read(new byte[10], 0, 10);
+
+        assertTrue(tee.drain());
+        assertArrayEquals(source, copy.toByteArray());
+        assertEquals(-1, tee.read());
+    }
+
+    @Test
+    public void failedCopy_doesNotStopReading() throws IOException {
+        final byte[] source = bytes(1000);
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        TeeInputStream tee = new TeeInputStream(new ByteArrayInputStream(source), broken);
+
+        byte[] buffer = new byte[1000];
+        assertEquals(1000, tee.read(buffer, 0, 1000));
+        assertArrayEquals(source, buffer);
+        assertFalse(tee.drain());
+    }
+}
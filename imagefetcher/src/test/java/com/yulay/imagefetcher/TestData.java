@@ -0,0 +1,34 @@
+package com.yulay.imagefetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Content for the stream and network tests.
+ */
+final class TestData {
+    private TestData() {
+    }
+
+    /**
+     * Returns {@code length} pseudo-random bytes, the same for the same length, so that bytes
+     * read from the wrong offset never match by chance.
+     */
+    static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}